@@ -2,33 +2,56 @@ package de.cerus.iotaspigotpoc;
 
 import co.aikar.commands.PaperCommandManager;
 import com.google.gson.GsonBuilder;
-import com.mongodb.ConnectionString;
-import com.mongodb.MongoClientSettings;
-import com.mongodb.reactivestreams.client.MongoClient;
-import com.mongodb.reactivestreams.client.MongoClients;
-import com.mongodb.reactivestreams.client.MongoDatabase;
+import de.cerus.iotaspigotpoc.analytics.SalesAnalytics;
+import de.cerus.iotaspigotpoc.command.CommandRateLimiter;
 import de.cerus.iotaspigotpoc.command.IotaSpigotPocCommand;
+import de.cerus.iotaspigotpoc.delivery.DeliveryJournal;
+import de.cerus.iotaspigotpoc.delivery.DeliveryService;
+import de.cerus.iotaspigotpoc.listener.OfflineDeliveryListener;
+import de.cerus.iotaspigotpoc.listener.PlayerNameCacheListener;
+import de.cerus.iotaspigotpoc.listener.PlayerTransactionCacheListener;
 import de.cerus.iotaspigotpoc.model.Product;
+import de.cerus.iotaspigotpoc.product.ProductFileWatcher;
+import de.cerus.iotaspigotpoc.product.ProductPageCache;
 import de.cerus.iotaspigotpoc.product.ProductRegistry;
+import de.cerus.iotaspigotpoc.storage.address.AddressStorageService;
+import de.cerus.iotaspigotpoc.storage.backend.StorageBackend;
+import de.cerus.iotaspigotpoc.storage.backend.StorageBackendType;
+import de.cerus.iotaspigotpoc.storage.cache.PlayerNameCache;
+import de.cerus.iotaspigotpoc.storage.cache.PlayerTransactionCache;
+import de.cerus.iotaspigotpoc.storage.analytics.SalesRollupCleaner;
+import de.cerus.iotaspigotpoc.storage.completed.CompletedTransactionArchiver;
 import de.cerus.iotaspigotpoc.storage.completed.CompletedTransactionStorageService;
-import de.cerus.iotaspigotpoc.storage.completed.impl.MongoDbCompletedTransactionStorageService;
+import de.cerus.iotaspigotpoc.storage.completed.impl.CachingCompletedTransactionStorageService;
 import de.cerus.iotaspigotpoc.storage.pending.PendingTransactionStorageService;
-import de.cerus.iotaspigotpoc.storage.pending.impl.MongoDbPendingTransactionStorageService;
+import de.cerus.iotaspigotpoc.storage.pending.impl.CachingPendingTransactionStorageService;
+import de.cerus.iotaspigotpoc.transaction.DepositAddressPool;
+import de.cerus.iotaspigotpoc.transaction.DepositWatcher;
+import de.cerus.iotaspigotpoc.transaction.ExpirySweeper;
 import de.cerus.iotaspigotpoc.transaction.IotaCommunicator;
 import de.cerus.iotaspigotpoc.transaction.TransactionController;
+import de.cerus.iotaspigotpoc.transaction.node.IotaNodePool;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.Arrays;
-import org.bson.UuidRepresentation;
-import org.bson.codecs.configuration.CodecRegistries;
-import org.bson.codecs.configuration.CodecRegistry;
-import org.bson.codecs.pojo.PojoCodecProvider;
+import java.util.concurrent.CompletableFuture;
+import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
 
 public class IotaSpigotPocPlugin extends JavaPlugin {
 
+    private IotaNodePool iotaNodePool;
+    private DepositWatcher depositWatcher;
+    private ExpirySweeper expirySweeper;
+    private CompletedTransactionArchiver completedTransactionArchiver;
+    private SalesRollupCleaner salesRollupCleaner;
+    private PlayerNameCache playerNameCache;
+    private StorageBackend storageBackend;
+    private DeliveryService deliveryService;
+    private ProductFileWatcher productFileWatcher;
+
     @Override
     public void onEnable() {
         final boolean firstStart = !new File(this.getDataFolder(), "config.yml").exists();
@@ -43,30 +66,151 @@ public class IotaSpigotPocPlugin extends JavaPlugin {
             return;
         }
 
-        // Init mongo
-        final MongoClient mongoClient = this.getMongoClient();
-        final MongoDatabase database = mongoClient.getDatabase("iota-spigot-poc");
+        // Init storage
+        this.storageBackend = this.getStorageBackendType().create(this);
+        final CompletableFuture<Void> storageFuture = this.storageBackend.initialize();
+        if (storageFuture.isCompletedExceptionally()) {
+            // Don't run on top of a partially loaded storage
+            this.getLogger().severe("Failed to load the " + this.storageBackend.getType() + " storage");
+            storageFuture.exceptionally(throwable -> {
+                this.getLogger().severe(throwable.getMessage());
+                return null;
+            });
+            this.getPluginLoader().disablePlugin(this);
+            return;
+        }
 
         // Init transaction stuff
-        final PendingTransactionStorageService pendingTransactionStorageService = new MongoDbPendingTransactionStorageService(database, this);
-        final CompletedTransactionStorageService completedTransactionStorageService = new MongoDbCompletedTransactionStorageService(database, this);
-        final IotaCommunicator iotaCommunicator = new IotaCommunicator(this);
-        final ProductRegistry productRegistry = new ProductRegistry();
-        final TransactionController transactionController = new TransactionController(pendingTransactionStorageService, completedTransactionStorageService, iotaCommunicator, productRegistry);
+        final PlayerTransactionCache playerTransactionCache = new PlayerTransactionCache(this.getConfig().getInt("storage.cache.max-players", 500));
+        final PendingTransactionStorageService pendingTransactionStorageService = new CachingPendingTransactionStorageService(
+                this.storageBackend.getPendingTransactionStorageService(), playerTransactionCache);
+        final CompletedTransactionStorageService completedTransactionStorageService = new CachingCompletedTransactionStorageService(
+                this.storageBackend.getCompletedTransactionStorageService(), playerTransactionCache);
+        final AddressStorageService addressStorageService = this.storageBackend.getAddressStorageService();
+        final IotaNodePool iotaNodePool = new IotaNodePool(this);
+        this.iotaNodePool = iotaNodePool;
+        final IotaCommunicator iotaCommunicator = new IotaCommunicator(this, iotaNodePool);
+        final DepositAddressPool depositAddressPool = new DepositAddressPool(this, addressStorageService, iotaCommunicator);
+        final ProductRegistry productRegistry = new ProductRegistry(this.getLogger());
+        final PlayerNameCache playerNameCache = new PlayerNameCache(this.getConfig().getInt("storage.cache.max-names", 10000));
+        this.playerNameCache = playerNameCache;
+        this.getServer().getOnlinePlayers().forEach(player -> playerNameCache.put(player.getUniqueId(), player.getName()));
+        this.deliveryService = new DeliveryService(this, new DeliveryJournal(this.getDataFolder().toPath().resolve("delivery.journal"),
+                new GsonBuilder().create(), this.getLogger()), productRegistry, playerNameCache,
+                this.storageBackend.getOfflineDeliveryStorageService());
+        final TransactionController transactionController = new TransactionController(pendingTransactionStorageService,
+                completedTransactionStorageService, iotaCommunicator, depositAddressPool, this.deliveryService);
 
-        // Init products
+        // Expose the sales figures to other plugins
+        final SalesAnalytics salesAnalytics = new SalesAnalytics(this.storageBackend.getSalesAnalyticsStorageService(),
+                completedTransactionStorageService);
+        this.getServer().getServicesManager().register(SalesAnalytics.class, salesAnalytics, this, ServicePriority.Normal);
+
+        // Start probing the nodes and filling the address pool once the storage is ready
+        iotaNodePool.start();
+        storageFuture.whenComplete((unused, throwable) -> depositAddressPool.load());
+
+        // Init products, changes of the products file are picked up without a restart
         this.loadProducts(productRegistry);
+        if (this.getConfig().getBoolean("products.hot-reload", true)) {
+            this.productFileWatcher = new ProductFileWatcher(productRegistry, new File(this.getDataFolder(), "products.json"), this.getLogger());
+            try {
+                this.productFileWatcher.start();
+            } catch (final IOException e) {
+                this.getLogger().warning("Failed to watch the products file, changes require a restart");
+                this.getLogger().warning(e.getMessage());
+            }
+        }
+
+        // Init deliveries, unfinished deliveries of the last run are replayed right away
+        try {
+            this.deliveryService.start();
+        } catch (final IOException e) {
+            // Don't take payments we can't deliver
+            this.getLogger().severe("Failed to open the delivery journal");
+            this.getLogger().severe(e.getMessage());
+            this.getPluginLoader().disablePlugin(this);
+            return;
+        }
+        // Purchases that were reserved when the server stopped are finished or dropped once their claims can be checked,
+        // new purchases are completed only after that
+        storageFuture.whenComplete((unused, throwable) -> transactionController.recover());
+        // Players that are already online, e.g. after a reload, don't join again
+        this.getServer().getOnlinePlayers().forEach(player -> this.deliveryService.flush(player.getUniqueId()));
+
+        // Init deposit watcher
+        this.depositWatcher = new DepositWatcher(this, pendingTransactionStorageService, iotaCommunicator, transactionController);
+        this.depositWatcher.start();
+
+        // Init expiry sweeper
+        this.expirySweeper = new ExpirySweeper(this, pendingTransactionStorageService, depositAddressPool);
+        this.expirySweeper.start();
+
+        // Init archiver
+        this.completedTransactionArchiver = new CompletedTransactionArchiver(this, completedTransactionStorageService);
+        this.completedTransactionArchiver.start();
+
+        // Init rollup cleaner
+        this.salesRollupCleaner = new SalesRollupCleaner(this, this.storageBackend.getSalesAnalyticsStorageService());
+        this.salesRollupCleaner.start();
+
+        // Init listeners
+        this.getServer().getPluginManager().registerEvents(new PlayerTransactionCacheListener(playerTransactionCache,
+                pendingTransactionStorageService), this);
+        this.getServer().getPluginManager().registerEvents(new PlayerNameCacheListener(playerNameCache), this);
+        this.getServer().getPluginManager().registerEvents(new OfflineDeliveryListener(this.deliveryService), this);
 
         // Init command stuff
         final PaperCommandManager commandManager = new PaperCommandManager(this);
         commandManager.registerDependency(PendingTransactionStorageService.class, pendingTransactionStorageService);
         commandManager.registerDependency(CompletedTransactionStorageService.class, completedTransactionStorageService);
         commandManager.registerDependency(IotaCommunicator.class, iotaCommunicator);
+        commandManager.registerDependency(IotaNodePool.class, iotaNodePool);
+        commandManager.registerDependency(StorageBackend.class, this.storageBackend);
+        commandManager.registerDependency(DeliveryService.class, this.deliveryService);
         commandManager.registerDependency(ProductRegistry.class, productRegistry);
+        commandManager.registerDependency(CommandRateLimiter.class, new CommandRateLimiter(
+                this.getConfig().getConfigurationSection("rate-limit"), "view", "cancel", "confirm", "buy"));
+        commandManager.registerDependency(ProductPageCache.class, new ProductPageCache(productRegistry,
+                this.getConfig().getInt("products.page-size", 8), this.getConfig().getInt("products.cached-queries", 64)));
         commandManager.registerDependency(TransactionController.class, transactionController);
+        commandManager.registerDependency(SalesAnalytics.class, salesAnalytics);
+        commandManager.registerDependency(PlayerNameCache.class, playerNameCache);
         commandManager.registerCommand(new IotaSpigotPocCommand());
     }
 
+    @Override
+    public void onDisable() {
+        if (this.depositWatcher != null) {
+            this.depositWatcher.stop();
+        }
+        if (this.expirySweeper != null) {
+            this.expirySweeper.stop();
+        }
+        if (this.completedTransactionArchiver != null) {
+            this.completedTransactionArchiver.stop();
+        }
+        if (this.salesRollupCleaner != null) {
+            this.salesRollupCleaner.stop();
+        }
+        if (this.iotaNodePool != null) {
+            this.iotaNodePool.shutdown();
+        }
+        if (this.playerNameCache != null) {
+            this.playerNameCache.shutdown();
+        }
+        if (this.productFileWatcher != null) {
+            this.productFileWatcher.stop();
+        }
+        if (this.deliveryService != null) {
+            this.deliveryService.stop();
+        }
+        this.getServer().getServicesManager().unregisterAll(this);
+        if (this.storageBackend != null) {
+            this.storageBackend.close();
+        }
+    }
+
     /**
      * Load products from a file
      *
@@ -79,12 +223,12 @@ public class IotaSpigotPocPlugin extends JavaPlugin {
                 file.createNewFile();
                 // Save defaults
                 final String str = new GsonBuilder().setPrettyPrinting().create().toJson(Arrays.asList(
-                        new Product(0, 1337, "Test", "This is a test", Arrays.asList(
+                        new Product(0, 1337, "Test", "This is a test", "Tests", Arrays.asList(
                                 "say Hello there"
-                        )),
-                        new Product(1, 10, "Test 2", "This is also a test", Arrays.asList(
+                        ), false),
+                        new Product(1, 10, "Test 2", "This is also a test", "Items", Arrays.asList(
                                 "give {PLAYER_NAME} apple 16"
-                        ))
+                        ), true)
                 ));
                 Files.write(file.toPath(), str.getBytes(StandardCharsets.UTF_8));
             } catch (final IOException e) {
@@ -95,24 +239,18 @@ public class IotaSpigotPocPlugin extends JavaPlugin {
     }
 
     /**
-     * Create a new mongo client
+     * Reads the storage backend from the config
      *
-     * @return A mongo client
+     * @return The configured backend type
      */
-    private MongoClient getMongoClient() {
-        // Initialize the POJO codec registry
-        final CodecRegistry codecRegistry = CodecRegistries.fromRegistries(
-                MongoClientSettings.getDefaultCodecRegistry(),
-                CodecRegistries.fromProviders(PojoCodecProvider.builder().automatic(true).build())
-        );
-
-        // Initialize the MongoDB client
-        final MongoClientSettings settings = MongoClientSettings.builder()
-                .codecRegistry(codecRegistry)
-                .applyConnectionString(new ConnectionString(this.getConfig().getString("storage.mongo.uri", "")))
-                .uuidRepresentation(UuidRepresentation.STANDARD)
-                .build();
-        return MongoClients.create(settings);
+    private StorageBackendType getStorageBackendType() {
+        final String type = this.getConfig().getString("storage.backend", "MONGO");
+        try {
+            return StorageBackendType.valueOf(type.toUpperCase());
+        } catch (final IllegalArgumentException e) {
+            this.getLogger().warning("Unknown storage backend '" + type + "', using MONGO");
+            return StorageBackendType.MONGO;
+        }
     }
 
 }
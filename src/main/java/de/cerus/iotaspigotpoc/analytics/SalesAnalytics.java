@@ -0,0 +1,101 @@
+package de.cerus.iotaspigotpoc.analytics;
+
+import de.cerus.iotaspigotpoc.model.PlayerSummary;
+import de.cerus.iotaspigotpoc.model.RollupPeriod;
+import de.cerus.iotaspigotpoc.model.SalesRollup;
+import de.cerus.iotaspigotpoc.storage.analytics.SalesAnalyticsStorageService;
+import de.cerus.iotaspigotpoc.storage.completed.CompletedTransactionStorageService;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+/**
+ * Sales figures for dashboards and other plugins
+ * <p>
+ * Everything is read from rollups and player summaries that are kept up to date with every completed transaction,
+ * so a read costs one document per product, bucket or buyer and never scans the transactions. Registered with
+ * the Bukkit services manager.
+ */
+public class SalesAnalytics {
+
+    private final SalesAnalyticsStorageService salesAnalyticsStorageService;
+    private final CompletedTransactionStorageService completedTransactionStorageService;
+
+    public SalesAnalytics(final SalesAnalyticsStorageService salesAnalyticsStorageService,
+                          final CompletedTransactionStorageService completedTransactionStorageService) {
+        this.salesAnalyticsStorageService = salesAnalyticsStorageService;
+        this.completedTransactionStorageService = completedTransactionStorageService;
+    }
+
+    /**
+     * Retrieves the all-time sales of every product
+     *
+     * @return A callback with the rollups of the products, highest revenue first
+     */
+    public CompletableFuture<List<SalesRollup>> getProductTotals() {
+        return this.salesAnalyticsStorageService.retrieveTotals().thenApply(rollups -> rollups.stream()
+                .filter(rollup -> rollup.getProductId() != SalesRollup.ALL_PRODUCTS)
+                .sorted(Comparator.comparingLong(SalesRollup::getTotalIota).reversed())
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Retrieves the all-time sales of a product
+     *
+     * @param productId The product id or {@link SalesRollup#ALL_PRODUCTS}
+     *
+     * @return A callback with the rollup, empty if the product was never sold
+     */
+    public CompletableFuture<SalesRollup> getTotal(final int productId) {
+        return this.salesAnalyticsStorageService.retrieveTotals().thenApply(rollups -> rollups.stream()
+                .filter(rollup -> rollup.getProductId() == productId)
+                .findFirst()
+                .orElse(SalesRollup.empty(RollupPeriod.TOTAL, productId, 0)));
+    }
+
+    /**
+     * Retrieves the sales of the newest buckets of a period, the current one included
+     *
+     * @param period    The period, not {@link RollupPeriod#TOTAL}
+     * @param productId The product id or {@link SalesRollup#ALL_PRODUCTS}
+     * @param buckets   The amount of buckets
+     *
+     * @return A callback with the rollups, oldest first, buckets without sales have no rollup
+     */
+    public CompletableFuture<List<SalesRollup>> getRecent(final RollupPeriod period, final int productId, final int buckets) {
+        if (period == RollupPeriod.TOTAL) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("The total has no buckets"));
+        }
+
+        final long current = period.bucketOf(System.currentTimeMillis());
+        return this.salesAnalyticsStorageService.retrieveBuckets(period, productId,
+                current - (buckets - 1) * period.getLengthMillis(), current + period.getLengthMillis());
+    }
+
+    /**
+     * Retrieves the sales within a time span
+     *
+     * @param period    The period, not {@link RollupPeriod#TOTAL}
+     * @param productId The product id or {@link SalesRollup#ALL_PRODUCTS}
+     * @param from      The start of the time span, inclusive
+     * @param to        The end of the time span, exclusive
+     *
+     * @return A callback with the rollups, oldest first, buckets without sales have no rollup
+     */
+    public CompletableFuture<List<SalesRollup>> getBuckets(final RollupPeriod period, final int productId, final long from, final long to) {
+        return this.salesAnalyticsStorageService.retrieveBuckets(period, productId, from, to);
+    }
+
+    /**
+     * Retrieves the players that spent the most
+     *
+     * @param limit The max amount of players
+     *
+     * @return A callback with their summaries, highest total first
+     */
+    public CompletableFuture<List<PlayerSummary>> getTopBuyers(final int limit) {
+        return this.completedTransactionStorageService.retrieveTopBuyers(limit);
+    }
+
+}
@@ -0,0 +1,55 @@
+package de.cerus.iotaspigotpoc.command;
+
+import de.cerus.iotaspigotpoc.util.RateLimiter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+
+/**
+ * Limits how often a player can use each subcommand
+ * <p>
+ * Every subcommand has its own limit, using one subcommand doesn't lock the player out of another one.
+ */
+public class CommandRateLimiter {
+
+    private final Map<String, RateLimiter> limiterMap = new HashMap<>();
+
+    /**
+     * @param config   The 'rate-limit' section of the config, may be null
+     * @param commands The subcommands that are limited
+     */
+    public CommandRateLimiter(final ConfigurationSection config, final String... commands) {
+        for (final String command : commands) {
+            final int burst = config == null ? 1 : config.getInt(command + ".burst", 1);
+            final long interval = config == null ? 30 : config.getLong(command + ".interval", 30);
+            this.limiterMap.put(command, new RateLimiter(burst, interval, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * Takes a token for a subcommand and tells the player to wait if there is none
+     *
+     * @param player  The player
+     * @param command The subcommand
+     *
+     * @return True if the player may use the subcommand
+     */
+    public boolean tryAcquire(final Player player, final String command) {
+        final RateLimiter limiter = this.limiterMap.get(command);
+        if (limiter == null) {
+            return true;
+        }
+
+        final long waitNanos = limiter.tryAcquire(player.getUniqueId());
+        if (waitNanos > 0) {
+            // Player is on cooldown
+            player.sendMessage("§ePlease wait, you are currently on cooldown. §7("
+                    + (TimeUnit.NANOSECONDS.toSeconds(waitNanos) + 1) + "s remaining)");
+            return false;
+        }
+        return true;
+    }
+
+}
@@ -2,41 +2,81 @@ package de.cerus.iotaspigotpoc.command;
 
 import co.aikar.commands.BaseCommand;
 import co.aikar.commands.annotation.CommandAlias;
+import co.aikar.commands.annotation.CommandPermission;
 import co.aikar.commands.annotation.Default;
 import co.aikar.commands.annotation.Dependency;
 import co.aikar.commands.annotation.Optional;
 import co.aikar.commands.annotation.Subcommand;
-import co.aikar.commands.lib.expiringmap.ExpiringMap;
+import de.cerus.iotaspigotpoc.analytics.SalesAnalytics;
+import de.cerus.iotaspigotpoc.delivery.DeliveryQueue;
+import de.cerus.iotaspigotpoc.delivery.DeliveryService;
+import de.cerus.iotaspigotpoc.model.CompletedTransaction;
 import de.cerus.iotaspigotpoc.model.PendingTransaction;
 import de.cerus.iotaspigotpoc.model.Product;
+import de.cerus.iotaspigotpoc.model.RollupPeriod;
+import de.cerus.iotaspigotpoc.model.SalesRollup;
+import de.cerus.iotaspigotpoc.product.ProductPageCache;
 import de.cerus.iotaspigotpoc.product.ProductRegistry;
+import de.cerus.iotaspigotpoc.storage.backend.StorageBackend;
+import de.cerus.iotaspigotpoc.storage.backend.StorageBackendType;
+import de.cerus.iotaspigotpoc.storage.backend.StorageMigrator;
+import de.cerus.iotaspigotpoc.storage.batch.BatchingWriter;
+import de.cerus.iotaspigotpoc.storage.cache.PlayerNameCache;
 import de.cerus.iotaspigotpoc.storage.completed.CompletedTransactionStorageService;
 import de.cerus.iotaspigotpoc.storage.pending.PendingTransactionStorageService;
+import de.cerus.iotaspigotpoc.storage.query.TransactionQuery;
+import de.cerus.iotaspigotpoc.storage.query.TransactionReport;
 import de.cerus.iotaspigotpoc.transaction.TransactionController;
-import java.util.UUID;
+import de.cerus.iotaspigotpoc.transaction.node.IotaNode;
+import de.cerus.iotaspigotpoc.transaction.node.IotaNodePool;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.TextComponent;
 import net.kyori.adventure.text.event.ClickEvent;
 import net.kyori.adventure.text.event.HoverEvent;
+import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
+import org.bukkit.plugin.java.JavaPlugin;
 
 @CommandAlias("iotaspigotpoc|iota")
 public class IotaSpigotPocCommand extends BaseCommand {
 
-    private final ExpiringMap<UUID, Long> cooldownMap = ExpiringMap.builder()
-            .expiration(30, TimeUnit.SECONDS)
-            .build();
+    private static final int HISTORY_SIZE = 5;
+    private static final int REPORT_BATCH_SIZE = 256;
+    private static final int STATS_SIZE = 5;
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
 
     @Dependency
     private TransactionController transactionController;
     @Dependency
-    private CompletedTransactionStorageService completedTransactionStorageService;
-    @Dependency
     private PendingTransactionStorageService pendingTransactionStorageService;
     @Dependency
+    private CompletedTransactionStorageService completedTransactionStorageService;
+    @Dependency
     private ProductRegistry productRegistry;
+    @Dependency
+    private ProductPageCache productPageCache;
+    @Dependency
+    private IotaNodePool iotaNodePool;
+    @Dependency
+    private StorageBackend storageBackend;
+    @Dependency
+    private DeliveryService deliveryService;
+    @Dependency
+    private JavaPlugin plugin;
+    @Dependency
+    private CommandRateLimiter commandRateLimiter;
+    @Dependency
+    private SalesAnalytics salesAnalytics;
+    @Dependency
+    private PlayerNameCache playerNameCache;
 
     @Default
     public void handle(final Player player) {
@@ -44,31 +84,282 @@ public class IotaSpigotPocCommand extends BaseCommand {
         player.sendMessage("§e/iota buy <product>");
         player.sendMessage("§e/iota confirm <transaction hash>");
         player.sendMessage("§e/iota cancel");
-        player.sendMessage("§e/iota products");
+        player.sendMessage("§e/iota products [page|query]");
+        player.sendMessage("§e/iota history");
+        if (player.hasPermission("iotaspigotpoc.admin")) {
+            player.sendMessage("§e/iota nodes");
+            player.sendMessage("§e/iota storage");
+            player.sendMessage("§e/iota deliveries");
+            player.sendMessage("§e/iota migrate <backend>");
+            player.sendMessage("§e/iota report <product>");
+            player.sendMessage("§e/iota stats [product]");
+        }
     }
 
     @Subcommand("products")
-    public void handleProducts(final Player player) {
-        // Send the player a list of products
-        for (final Product product : this.productRegistry.getAllProducts()) {
-            final TextComponent component = Component.text()
-                    .content("§6" + product.getName() + " (#" + product.getId() + "): §f" + product.getDescription())
-                    .hoverEvent(HoverEvent.showText(Component.text("§7Click to purchase")))
-                    .clickEvent(ClickEvent.runCommand("/iota buy " + product.getId()))
-                    .build();
-            player.sendMessage(component);
+    public void handleProducts(final Player player, final String[] arguments) {
+        // A trailing number is the page, everything before it is the search query
+        int page = 1;
+        int queryLength = arguments.length;
+        if (arguments.length > 0 && arguments[arguments.length - 1].matches("\\d{1,9}")) {
+            page = Integer.parseInt(arguments[arguments.length - 1]);
+            queryLength--;
+        }
+
+        // Send the player a page of products
+        player.sendMessage(this.productPageCache.getPage(String.join(" ", Arrays.copyOf(arguments, queryLength)), page));
+    }
+
+    @Subcommand("history")
+    public void handleHistory(final Player player) {
+        // Send the player their summary and their newest purchases
+        this.completedTransactionStorageService.retrieveSummary(player.getUniqueId()).thenCombine(
+                this.completedTransactionStorageService.retrieveRecent(player.getUniqueId(), HISTORY_SIZE),
+                (summary, transactions) -> {
+                    if (summary.getPurchases() == 0) {
+                        player.sendMessage("§7You didn't buy anything yet.");
+                        return null;
+                    }
+
+                    player.sendMessage("§aYou bought §e" + summary.getPurchases() + " §aproducts for §e"
+                            + this.formatIota(summary.getTotalIota()) + "§a.");
+                    for (final CompletedTransaction transaction : transactions) {
+                        final Product product = this.productRegistry.getById(transaction.getProductId());
+                        player.sendMessage("§7" + DATE_FORMAT.format(Instant.ofEpochMilli(transaction.getCompletedTimestamp()))
+                                + " §6" + (product == null ? "#" + transaction.getProductId() : product.getName())
+                                + " §7for §f" + this.formatIota(transaction.getIotaAmount()));
+                    }
+                    return null;
+                }).exceptionally(throwable -> {
+                    player.sendMessage("§cError: §7" + throwable.getMessage());
+                    return null;
+                });
+    }
+
+    @Subcommand("nodes")
+    @CommandPermission("iotaspigotpoc.admin")
+    public void handleNodes(final CommandSender sender) {
+        // Send the sender the stats of every node
+        for (final IotaNode node : this.iotaNodePool.getNodes()) {
+            sender.sendMessage((node.isHealthy() ? "§a" : "§c") + node.getEndpoint()
+                    + " §7avg §f" + node.getAverageLatency() + "ms"
+                    + " §7p95 §f" + node.getLatencyPercentile(95) + "ms"
+                    + " §7requests §f" + node.getRequests()
+                    + " §7failures §f" + node.getFailures());
+        }
+    }
+
+    @Subcommand("storage")
+    @CommandPermission("iotaspigotpoc.admin")
+    public void handleStorage(final CommandSender sender) {
+        // Send the sender the stats of the write pipeline
+        sender.sendMessage("§7Backend §f" + this.storageBackend.getType());
+        for (final BatchingWriter<?> writer : this.storageBackend.getWriters()) {
+            sender.sendMessage("§e" + writer.getName() + " writes"
+                    + " §7queued §f" + writer.getQueueDepth() + "/" + writer.getQueueCapacity()
+                    + " §7in flight §f" + writer.getInFlight()
+                    + " §7batches §f" + writer.getBatches()
+                    + " §7written §f" + writer.getWrites());
         }
     }
 
+    @Subcommand("deliveries")
+    @CommandPermission("iotaspigotpoc.admin")
+    public void handleDeliveries(final CommandSender sender) {
+        // Send the sender the stats of the delivery queue
+        final DeliveryQueue queue = this.deliveryService.getQueue();
+        sender.sendMessage("§edeliveries §7queued §f" + queue.getQueueDepth()
+                + " §7budget §f" + TimeUnit.NANOSECONDS.toMicros(queue.getBudgetNanos()) + "µs");
+        sender.sendMessage("§7last tick §f" + queue.getLastTickCommands() + " §7commands §f"
+                + queue.getLastTickDeliveries() + " §7deliveries in §f" + TimeUnit.NANOSECONDS.toMicros(queue.getLastTickNanos()) + "µs");
+        sender.sendMessage("§7total §f" + queue.getTotalCommands() + " §7commands §f" + queue.getTotalDeliveries()
+                + " §7deliveries, §f" + queue.getTicksOverBudget() + " §7ticks over budget");
+    }
+
+    @Subcommand("migrate")
+    @CommandPermission("iotaspigotpoc.admin")
+    public void handleMigrate(final CommandSender sender, final String backend) {
+        final StorageBackendType targetType;
+        try {
+            targetType = StorageBackendType.valueOf(backend.toUpperCase());
+        } catch (final IllegalArgumentException e) {
+            sender.sendMessage("§cUnknown backend. §7Available: " + Arrays.toString(StorageBackendType.values()));
+            return;
+        }
+        if (targetType == this.storageBackend.getType()) {
+            sender.sendMessage("§cThe " + targetType + " backend is already in use.");
+            return;
+        }
+
+        // Copy everything into the other backend, switching over is up to the admin
+        sender.sendMessage("§7Migrating to §f" + targetType + "§7...");
+        final StorageBackend targetBackend = targetType.create(this.plugin);
+        new StorageMigrator(this.storageBackend, targetBackend).migrate().whenComplete((result, throwable) -> {
+            targetBackend.close();
+            if (throwable != null) {
+                sender.sendMessage("§cError: §7" + throwable.getMessage());
+                return;
+            }
+
+            sender.sendMessage("§aMigrated §e" + result.getPendingTransactions() + " §apending transactions, §e"
+                    + result.getCompletedTransactions() + " §acompleted transactions, §e" + result.getPlayerSummaries()
+                    + " §asummaries, §e" + result.getSalesRollups() + " §asales rollups, §e" + result.getOfflineDeliveries() + " §aoffline deliveries and §e" + result.getAddresses()
+                    + " §aaddresses.");
+            sender.sendMessage("§7Set §fstorage.backend §7to §f" + targetType + " §7and restart the server to use it.");
+        });
+    }
+
+    @Subcommand("report")
+    @CommandPermission("iotaspigotpoc.admin")
+    public void handleReport(final CommandSender sender, final int productId) {
+        // Sum up the sales of the product while streaming them, no matter how many there are
+        sender.sendMessage("§7Reading the sales of product §f#" + productId + "§7...");
+        TransactionReport.of(this.completedTransactionStorageService.streamRecords(TransactionQuery.byProduct(productId)), REPORT_BATCH_SIZE)
+                .whenComplete((report, throwable) -> {
+                    if (throwable != null) {
+                        sender.sendMessage("§cError: §7" + throwable.getMessage());
+                        return;
+                    }
+                    if (report.getTransactions() == 0) {
+                        sender.sendMessage("§7Product §f#" + productId + " §7was not sold yet.");
+                    } else {
+                        final Product product = this.productRegistry.getById(productId);
+                        sender.sendMessage("§6" + (product == null ? "#" + productId : product.getName()) + " §asold §e"
+                                + report.getTransactions() + " §atimes for §e" + this.formatIota(report.getTotalIota()) + "§a.");
+                        sender.sendMessage("§7First sale §f" + DATE_FORMAT.format(Instant.ofEpochMilli(report.getFirstTimestamp()))
+                                + " §7last sale §f" + DATE_FORMAT.format(Instant.ofEpochMilli(report.getLastTimestamp())));
+                    }
+                    this.sendArchiveNotice(sender, productId);
+                });
+    }
+
+    /**
+     * Tells the sender that archived sales are not part of a report
+     *
+     * @param sender    The receiver
+     * @param productId The id of the reported product
+     */
+    private void sendArchiveNotice(final CommandSender sender, final int productId) {
+        if (!this.plugin.getConfig().getBoolean("storage.archive.enabled", true)) {
+            return;
+        }
+
+        // The rollups count archived sales as well
+        sender.sendMessage("§7Only covers sales of the last §f" + this.plugin.getConfig().getInt("storage.archive.after", 90)
+                + " §7days, older sales are archived. See §f/iota stats " + productId + " §7for the all-time figures.");
+    }
+
+    @Subcommand("stats")
+    @CommandPermission("iotaspigotpoc.admin")
+    public void handleStats(final CommandSender sender, @Optional final Integer productId) {
+        if (productId == null) {
+            this.sendOverallStats(sender);
+        } else {
+            this.sendProductStats(sender, productId);
+        }
+    }
+
+    /**
+     * Sends the sales of every product, the last day and the top buyers
+     *
+     * @param sender The receiver
+     */
+    private void sendOverallStats(final CommandSender sender) {
+        final CompletableFuture<SalesRollup> totalFuture = this.salesAnalytics.getTotal(SalesRollup.ALL_PRODUCTS);
+        final CompletableFuture<List<SalesRollup>> productsFuture = this.salesAnalytics.getProductTotals();
+        final CompletableFuture<List<SalesRollup>> recentFuture = this.salesAnalytics.getRecent(RollupPeriod.HOUR, SalesRollup.ALL_PRODUCTS, 24);
+        final CompletableFuture<List<String>> buyersFuture = this.salesAnalytics.getTopBuyers(STATS_SIZE).thenCompose(summaries -> {
+            final List<CompletableFuture<String>> lineFutures = summaries.stream()
+                    .map(summary -> this.playerNameCache.resolve(summary.getPlayerUuid()).thenApply(name ->
+                            "§f" + (name == null ? summary.getPlayerUuid().toString() : name) + " §7spent §e"
+                                    + this.formatIota(summary.getTotalIota()) + " §7in §f" + summary.getPurchases() + " §7purchases"))
+                    .collect(Collectors.toList());
+            return CompletableFuture.allOf(lineFutures.toArray(new CompletableFuture[0]))
+                    .thenApply(unused -> lineFutures.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+        });
+
+        CompletableFuture.allOf(totalFuture, productsFuture, recentFuture, buyersFuture).whenComplete((unused, throwable) -> {
+            if (throwable != null) {
+                sender.sendMessage("§cError: §7" + throwable.getMessage());
+                return;
+            }
+
+            final SalesRollup total = totalFuture.join();
+            sender.sendMessage("§aSold §e" + total.getSales() + " §atimes for §e" + this.formatIota(total.getTotalIota()) + "§a.");
+            final SalesRollup lastDay = this.sum(recentFuture.join());
+            sender.sendMessage("§7Last 24 hours: §f" + lastDay.getSales() + " §7sales for §f" + this.formatIota(lastDay.getTotalIota()));
+
+            sender.sendMessage("§6Top products:");
+            productsFuture.join().stream()
+                    .limit(STATS_SIZE)
+                    .forEach(rollup -> sender.sendMessage("§f" + this.nameOf(rollup.getProductId()) + " §7sold §f"
+                            + rollup.getSales() + " §7times for §e" + this.formatIota(rollup.getTotalIota())));
+            sender.sendMessage("§6Top buyers:");
+            buyersFuture.join().forEach(sender::sendMessage);
+        });
+    }
+
+    /**
+     * Sends the sales of a product and of its last days
+     *
+     * @param sender    The receiver
+     * @param productId The product id
+     */
+    private void sendProductStats(final CommandSender sender, final int productId) {
+        final CompletableFuture<SalesRollup> totalFuture = this.salesAnalytics.getTotal(productId);
+        final CompletableFuture<List<SalesRollup>> daysFuture = this.salesAnalytics.getRecent(RollupPeriod.DAY, productId, 7);
+
+        totalFuture.thenCombine(daysFuture, (total, days) -> {
+            if (total.getSales() == 0) {
+                sender.sendMessage("§7Product §f#" + productId + " §7was not sold yet.");
+                return null;
+            }
+
+            sender.sendMessage("§6" + this.nameOf(productId) + " §asold §e" + total.getSales() + " §atimes for §e"
+                    + this.formatIota(total.getTotalIota()) + "§a.");
+            sender.sendMessage("§6Last 7 days:");
+            days.forEach(day -> sender.sendMessage("§7" + DATE_FORMAT.format(Instant.ofEpochMilli(day.getBucket())) + " §f"
+                    + day.getSales() + " §7sales for §e" + this.formatIota(day.getTotalIota())));
+            return null;
+        }).whenComplete((unused, throwable) -> {
+            if (throwable != null) {
+                sender.sendMessage("§cError: §7" + throwable.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Adds up rollups
+     *
+     * @param rollups The rollups
+     *
+     * @return A rollup with the sum of the sales
+     */
+    private SalesRollup sum(final List<SalesRollup> rollups) {
+        SalesRollup sum = SalesRollup.empty(RollupPeriod.TOTAL, SalesRollup.ALL_PRODUCTS, 0);
+        for (final SalesRollup rollup : rollups) {
+            sum = sum.plus(rollup.getSales(), rollup.getTotalIota());
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the display name of a product
+     *
+     * @param productId The product id
+     *
+     * @return The name, or the id if the product was removed
+     */
+    private String nameOf(final int productId) {
+        final Product product = this.productRegistry.getById(productId);
+        return product == null ? "#" + productId : product.getName();
+    }
+
     @Subcommand("cancel")
     public void handleCancel(final Player player) {
-        if (this.cooldownMap.containsKey(player.getUniqueId())) {
-            // Player is on cooldown
-            player.sendMessage("§ePlease wait, you are currently on cooldown. §7("
-                    + (this.cooldownMap.get(player.getUniqueId()) - System.currentTimeMillis()) / 1000 + "s remaining)");
+        if (!this.commandRateLimiter.tryAcquire(player, "cancel")) {
             return;
         }
-        this.cooldownMap.put(player.getUniqueId(), System.currentTimeMillis() + 30 * 1000);
 
         // Cancel pending transaction
         this.getPendingTransaction(player).whenComplete((transaction, throwable) -> {
@@ -80,13 +371,9 @@ public class IotaSpigotPocCommand extends BaseCommand {
 
     @Subcommand("view")
     public void handleView(final Player player) {
-        if (this.cooldownMap.containsKey(player.getUniqueId())) {
-            // Player is on cooldown
-            player.sendMessage("§ePlease wait, you are currently on cooldown. §7("
-                    + (this.cooldownMap.get(player.getUniqueId()) - System.currentTimeMillis()) / 1000 + "s remaining)");
+        if (!this.commandRateLimiter.tryAcquire(player, "view")) {
             return;
         }
-        this.cooldownMap.put(player.getUniqueId(), System.currentTimeMillis() + 30 * 1000);
 
         // Show the deposit details
         this.sendTransactionMessage(player);
@@ -94,13 +381,9 @@ public class IotaSpigotPocCommand extends BaseCommand {
 
     @Subcommand("confirm")
     public void handleConfirm(final Player player, final String transactionHash) {
-        if (this.cooldownMap.containsKey(player.getUniqueId())) {
-            // Player is on cooldown
-            player.sendMessage("§ePlease wait, you are currently on cooldown. §7("
-                    + (this.cooldownMap.get(player.getUniqueId()) - System.currentTimeMillis()) / 1000 + "s remaining)");
+        if (!this.commandRateLimiter.tryAcquire(player, "confirm")) {
             return;
         }
-        this.cooldownMap.put(player.getUniqueId(), System.currentTimeMillis() + 30 * 1000);
 
         player.sendMessage("§7§oPlease wait...");
         this.getPendingTransaction(player).whenComplete((pendingTransaction, throwable) -> {
@@ -147,13 +430,9 @@ public class IotaSpigotPocCommand extends BaseCommand {
             return;
         }
 
-        if (this.cooldownMap.containsKey(player.getUniqueId())) {
-            // Player is on cooldown
-            player.sendMessage("§ePlease wait, you are currently on cooldown. §7("
-                    + (this.cooldownMap.get(player.getUniqueId()) - System.currentTimeMillis()) / 1000 + "s remaining)");
+        if (!this.commandRateLimiter.tryAcquire(player, "buy")) {
             return;
         }
-        this.cooldownMap.put(player.getUniqueId(), System.currentTimeMillis() + 30 * 1000);
 
         player.sendMessage("§7§oPlease wait...");
         this.transactionController.startTransaction(player.getUniqueId(), product).whenComplete((pair, throwable) -> {
@@ -190,30 +469,18 @@ public class IotaSpigotPocCommand extends BaseCommand {
      */
     private CompletableFuture<PendingTransaction> getPendingTransaction(final Player player) {
         final CompletableFuture<PendingTransaction> future = new CompletableFuture<>();
-        this.pendingTransactionStorageService.retrieveAll(player.getUniqueId()).whenComplete((pendingTransactions, throwable) -> {
+        this.pendingTransactionStorageService.findOpen(player.getUniqueId()).whenComplete((transaction, throwable) -> {
             if (throwable != null) {
                 player.sendMessage("§cError: §7" + throwable.getMessage());
                 return;
             }
 
-            this.completedTransactionStorageService.retrieveAll(player.getUniqueId()).whenComplete((completedTransactions, otherThrowable) -> {
-                if (otherThrowable != null) {
-                    player.sendMessage("§cError: §7" + otherThrowable.getMessage());
-                    return;
-                }
-
-                final java.util.Optional<PendingTransaction> optional = pendingTransactions.stream()
-                        .filter(transaction -> completedTransactions.stream()
-                                .noneMatch(completedTransaction ->
-                                        completedTransaction.getLinkedPendingTransactionId().equals(transaction.getTransactionId())))
-                        .findAny();
-                if (optional.isEmpty()) {
-                    player.sendMessage("§7You don't have any pending purchases.");
-                    return;
-                }
-
-                future.complete(optional.get());
-            });
+            if (transaction == null) {
+                player.sendMessage("§7You don't have any pending purchases.");
+                return;
+            }
+
+            future.complete(transaction);
         });
         return future;
     }
@@ -239,8 +506,8 @@ public class IotaSpigotPocCommand extends BaseCommand {
                             .content(" §awith message §7\"")
                             .build(),
                     Component.text()
-                            .content("§7" + player.getUniqueId() + " " + transaction.getTransactionId())
-                            .clickEvent(net.kyori.adventure.text.event.ClickEvent.copyToClipboard(player.getUniqueId() + " " + transaction.getTransactionId()))
+                            .content("§7" + transaction.getMessage())
+                            .clickEvent(net.kyori.adventure.text.event.ClickEvent.copyToClipboard(transaction.getMessage()))
                             .hoverEvent(net.kyori.adventure.text.event.HoverEvent.showText(Component.text("§7Click to copy message")))
                             .build(),
                     Component.text()
@@ -0,0 +1,342 @@
+package de.cerus.iotaspigotpoc.delivery;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import de.cerus.iotaspigotpoc.model.CompletedTransaction;
+import de.cerus.iotaspigotpoc.model.Delivery;
+import de.cerus.iotaspigotpoc.storage.batch.BatchingWriter;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Memory mapped, append-only journal of product deliveries
+ * <p>
+ * A "due" entry is written before the commands of a delivery run and a "done" entry once they ran. Purchases are
+ * journaled as reserved before their payment is claimed, together with the completed transaction, and only become
+ * due once the completed transaction is stored. Entries are grouped by a {@link BatchingWriter} and every batch is
+ * forced to the disk once, so concurrent purchases share a single fsync. Every entry is stored as length, CRC32 and
+ * JSON, so the torn tail of a crash is detected and ignored. Once the mapped region is full the journal is
+ * rewritten with the unfinished deliveries only.
+ */
+public class DeliveryJournal {
+
+    private static final int MIN_SIZE = 1024 * 1024;
+    private static final int HEADER_SIZE = 8;
+
+    private final Map<UUID, Delivery> unfinished = new LinkedHashMap<>();
+    private final Map<UUID, CompletedTransaction> reserved = new HashMap<>();
+    private final Path file;
+    private final Gson gson;
+    private final Logger logger;
+    private final BatchingWriter<Entry> writer;
+    private MappedByteBuffer buffer;
+
+    public DeliveryJournal(final Path file, final Gson gson, final Logger logger) {
+        this.file = file;
+        this.gson = gson;
+        this.logger = logger;
+        this.writer = new BatchingWriter<>("delivery", this::append, 128, 2, 4096);
+    }
+
+    /**
+     * Maps the journal and replays it
+     *
+     * @return The deliveries that were due or reserved but never done
+     *
+     * @throws IOException If the journal can't be read or mapped
+     */
+    public synchronized Collection<Delivery> open() throws IOException {
+        Files.createDirectories(this.file.getParent());
+        final long size = Files.exists(this.file) ? Math.max(MIN_SIZE, Files.size(this.file)) : MIN_SIZE;
+        this.buffer = this.map(this.file, size);
+
+        while (this.buffer.remaining() >= HEADER_SIZE) {
+            final int start = this.buffer.position();
+            final Entry entry = this.readEntry();
+            if (entry == null) {
+                // End of the journal or the torn tail of a crash, continue writing here
+                final boolean torn = this.buffer.getInt(start) != 0;
+                this.buffer.position(start);
+                if (torn) {
+                    // Zero whatever the torn write left behind, so it can't be mistaken for an entry later
+                    this.logger.warning("Skipping torn tail of " + this.file.getFileName());
+                    for (int i = start; i < this.buffer.limit(); i++) {
+                        this.buffer.put(i, (byte) 0);
+                    }
+                    this.buffer.force();
+                }
+                break;
+            }
+            this.apply(entry);
+        }
+        return new ArrayList<>(this.unfinished.values());
+    }
+
+    /**
+     * Records that a delivery is due
+     * <p>
+     * Also confirms a reserved delivery.
+     *
+     * @param delivery The delivery
+     *
+     * @return A callback that completes once the entry is on the disk
+     */
+    public CompletableFuture<Void> due(final Delivery delivery) {
+        return this.writer.write(new Entry(delivery.getDeliveryId(), delivery, null));
+    }
+
+    /**
+     * Records a delivery whose payment is about to be claimed
+     *
+     * @param delivery    The delivery
+     * @param transaction The completed transaction the delivery belongs to, it is not stored yet
+     *
+     * @return A callback that completes once the entry is on the disk
+     */
+    public CompletableFuture<Void> reserve(final Delivery delivery, final CompletedTransaction transaction) {
+        return this.writer.write(new Entry(delivery.getDeliveryId(), delivery, transaction));
+    }
+
+    /**
+     * Records that a delivery is done
+     *
+     * @param deliveryId The id of the delivery
+     *
+     * @return A callback that completes once the entry is on the disk
+     */
+    public CompletableFuture<Void> done(final UUID deliveryId) {
+        return this.writer.write(new Entry(deliveryId, null, null));
+    }
+
+    /**
+     * Returns the deliveries that are due but not done
+     *
+     * @return A collection of deliveries
+     */
+    public synchronized Collection<Delivery> getUnfinished() {
+        return new ArrayList<>(this.unfinished.values());
+    }
+
+    /**
+     * Retrieves a delivery that is due or reserved but not done
+     *
+     * @param deliveryId The id of the delivery
+     *
+     * @return The delivery or null
+     */
+    public synchronized Delivery getUnfinished(final UUID deliveryId) {
+        return this.unfinished.get(deliveryId);
+    }
+
+    /**
+     * Returns the completed transactions of the reserved deliveries
+     *
+     * @return A collection of completed transactions
+     */
+    public synchronized Collection<CompletedTransaction> getReserved() {
+        return new ArrayList<>(this.reserved.values());
+    }
+
+    /**
+     * Checks whether a delivery is reserved
+     *
+     * @param deliveryId The id of the delivery
+     *
+     * @return True if the payment of the delivery may not be claimed yet
+     */
+    public synchronized boolean isReserved(final UUID deliveryId) {
+        return this.reserved.containsKey(deliveryId);
+    }
+
+    /**
+     * Writes everything that is queued and forces the journal to the disk
+     */
+    public void close() {
+        this.writer.close();
+        synchronized (this) {
+            if (this.buffer != null) {
+                this.buffer.force();
+            }
+        }
+    }
+
+    /**
+     * Appends a batch of entries and forces them to the disk
+     * <p>
+     * Only ever called from the writer thread.
+     *
+     * @param entries The entries
+     *
+     * @return A callback with no errors, or a failed callback if the batch can't be written
+     */
+    private synchronized CompletableFuture<List<Throwable>> append(final List<Entry> entries) {
+        try {
+            for (final Entry entry : entries) {
+                final byte[] bytes = this.encode(entry);
+                if (this.buffer.remaining() < bytes.length) {
+                    this.compact(bytes.length);
+                }
+
+                this.buffer.put(bytes);
+                this.apply(entry);
+            }
+            this.buffer.force();
+        } catch (final IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return CompletableFuture.completedFuture(Collections.nCopies(entries.size(), null));
+    }
+
+    /**
+     * Rewrites the journal with the unfinished deliveries only
+     * <p>
+     * The new journal is written next to the old one and moved over it afterwards, a crash in between leaves the
+     * old journal intact.
+     *
+     * @param reserve The amount of bytes that have to fit into the new journal on top of the unfinished deliveries
+     *
+     * @throws IOException If the new journal can't be written
+     */
+    private void compact(final int reserve) throws IOException {
+        final List<byte[]> dueEntries = new ArrayList<>();
+        int used = 0;
+        for (final Delivery delivery : this.unfinished.values()) {
+            final byte[] bytes = this.encode(new Entry(delivery.getDeliveryId(), delivery, this.reserved.get(delivery.getDeliveryId())));
+            dueEntries.add(bytes);
+            used += bytes.length;
+        }
+
+        // Leave at least half of the journal free so the next compaction is far away
+        long size = MIN_SIZE;
+        while (size < (long) (used + reserve) * 2) {
+            size *= 2;
+        }
+
+        final Path tempFile = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        Files.deleteIfExists(tempFile);
+        final MappedByteBuffer tempBuffer = this.map(tempFile, size);
+        dueEntries.forEach(tempBuffer::put);
+        tempBuffer.force();
+
+        Files.move(tempFile, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.buffer = tempBuffer;
+    }
+
+    /**
+     * Reads the entry at the current position
+     *
+     * @return The entry or null if there is no intact entry
+     */
+    private Entry readEntry() {
+        try {
+            final int length = this.buffer.getInt();
+            final int checksum = this.buffer.getInt();
+            if (length <= 0 || length > this.buffer.remaining()) {
+                return null;
+            }
+
+            final byte[] bytes = new byte[length];
+            this.buffer.get(bytes);
+            final CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+            return this.gson.fromJson(new String(bytes, StandardCharsets.UTF_8), Entry.class);
+        } catch (final BufferUnderflowException | JsonParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Encodes an entry
+     *
+     * @param entry The entry
+     *
+     * @return The length, checksum and JSON of the entry
+     */
+    private byte[] encode(final Entry entry) {
+        final byte[] json = this.gson.toJson(entry).getBytes(StandardCharsets.UTF_8);
+        final CRC32 crc = new CRC32();
+        crc.update(json);
+
+        final byte[] bytes = new byte[HEADER_SIZE + json.length];
+        final ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+        wrapped.putInt(json.length);
+        wrapped.putInt((int) crc.getValue());
+        wrapped.put(json);
+        return bytes;
+    }
+
+    /**
+     * Applies an entry to the unfinished deliveries
+     *
+     * @param entry The entry
+     */
+    private void apply(final Entry entry) {
+        if (entry.delivery == null) {
+            this.unfinished.remove(entry.deliveryId);
+        } else {
+            this.unfinished.put(entry.deliveryId, entry.delivery);
+        }
+        if (entry.transaction == null) {
+            this.reserved.remove(entry.deliveryId);
+        } else {
+            this.reserved.put(entry.deliveryId, entry.transaction);
+        }
+    }
+
+    /**
+     * Maps a file
+     *
+     * @param path The file
+     * @param size The size of the mapped region, the file grows if it is smaller
+     *
+     * @return The mapped region, positioned at the start
+     *
+     * @throws IOException If the file can't be mapped
+     */
+    private MappedByteBuffer map(final Path path, final long size) throws IOException {
+        // The mapping stays valid after the channel is closed
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * A journal entry, a due or reserved delivery or the id of a done delivery
+     */
+    private static final class Entry {
+
+        private final UUID deliveryId;
+        private final Delivery delivery;
+        private final CompletedTransaction transaction;
+
+        private Entry(final UUID deliveryId, final Delivery delivery, final CompletedTransaction transaction) {
+            this.deliveryId = deliveryId;
+            this.delivery = delivery;
+            this.transaction = transaction;
+        }
+
+    }
+
+}
@@ -0,0 +1,17 @@
+package de.cerus.iotaspigotpoc.delivery;
+
+/**
+ * Order in which queued deliveries run, higher priorities first
+ */
+public enum DeliveryPriority {
+
+    /**
+     * A purchase that was just completed, the player is probably waiting for it
+     */
+    HIGH,
+    /**
+     * A delivery that is replayed from the journal after a restart
+     */
+    NORMAL
+
+}
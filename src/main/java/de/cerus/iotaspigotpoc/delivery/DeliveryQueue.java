@@ -0,0 +1,229 @@
+package de.cerus.iotaspigotpoc.delivery;
+
+import de.cerus.iotaspigotpoc.model.Delivery;
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Runs the commands of queued deliveries on the main thread within a time budget per tick
+ * <p>
+ * Deliveries are ordered by priority and then by the time they were queued. Every tick deliveries run until the
+ * budget is used up. All commands of a delivery run in the same tick, the journal only records whether a delivery is
+ * done and replaying a half run delivery would run its first commands twice. At least one
+ * delivery runs per tick, so a single slow delivery can't stop the queue. Deliveries that need an online player are
+ * handed to the offline consumer instead if the player is offline once their turn comes.
+ */
+public class DeliveryQueue {
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong totalCommands = new AtomicLong();
+    private final AtomicLong totalDeliveries = new AtomicLong();
+    private final AtomicLong ticksOverBudget = new AtomicLong();
+    private final PriorityBlockingQueue<QueuedDelivery> queue = new PriorityBlockingQueue<>(64,
+            Comparator.comparing((QueuedDelivery queuedDelivery) -> queuedDelivery.priority)
+                    .thenComparingLong(queuedDelivery -> queuedDelivery.sequence));
+    private final JavaPlugin plugin;
+    private final Consumer<Delivery> doneConsumer;
+    private final Consumer<Delivery> offlineConsumer;
+    private final long budgetNanos;
+    private BukkitTask task;
+
+    // Counters of the last tick, only written by the main thread
+    private volatile int lastTickCommands;
+    private volatile int lastTickDeliveries;
+    private volatile long lastTickNanos;
+
+    /**
+     * @param plugin          The plugin
+     * @param doneConsumer    Gets called on the main thread once all commands of a delivery ran
+     * @param offlineConsumer Gets called on the main thread instead of running a delivery that needs an online player
+     *                        whose player is offline
+     */
+    public DeliveryQueue(final JavaPlugin plugin, final Consumer<Delivery> doneConsumer, final Consumer<Delivery> offlineConsumer) {
+        this.plugin = plugin;
+        this.doneConsumer = doneConsumer;
+        this.offlineConsumer = offlineConsumer;
+        this.budgetNanos = TimeUnit.MICROSECONDS.toNanos((long) (Math.max(0.1, plugin.getConfig().getDouble("delivery.tick-budget", 2)) * 1000));
+    }
+
+    /**
+     * Starts draining the queue every tick
+     */
+    public void start() {
+        this.task = Bukkit.getScheduler().runTaskTimer(this.plugin, this::drain, 1, 1);
+    }
+
+    /**
+     * Stops draining the queue
+     * <p>
+     * Deliveries that did not finish stay unfinished in the journal and are replayed on the next start.
+     */
+    public void stop() {
+        if (this.task != null) {
+            this.task.cancel();
+            this.task = null;
+        }
+    }
+
+    /**
+     * Queues a delivery
+     *
+     * @param delivery The delivery
+     * @param priority The priority
+     */
+    public void submit(final Delivery delivery, final DeliveryPriority priority) {
+        this.queue.add(new QueuedDelivery(delivery, priority, this.sequence.getAndIncrement()));
+    }
+
+    /**
+     * Runs deliveries until the budget of this tick is used up
+     */
+    private void drain() {
+        final long start = System.nanoTime();
+        int commands = 0;
+        int deliveries = 0;
+
+        do {
+            final QueuedDelivery queuedDelivery = this.queue.poll();
+            if (queuedDelivery == null) {
+                break;
+            }
+
+            final Delivery delivery = queuedDelivery.delivery;
+            if (delivery.isRequireOnline() && Bukkit.getPlayer(delivery.getPlayerUuid()) == null) {
+                // The player left or was never online since the delivery was journaled
+                this.offlineConsumer.accept(delivery);
+                continue;
+            }
+
+            for (final String command : delivery.getCommands()) {
+                this.dispatch(delivery, command);
+                commands++;
+            }
+            deliveries++;
+            this.doneConsumer.accept(delivery);
+        } while (System.nanoTime() - start < this.budgetNanos);
+
+        final long elapsed = System.nanoTime() - start;
+        if (elapsed > this.budgetNanos) {
+            this.ticksOverBudget.incrementAndGet();
+        }
+        this.lastTickCommands = commands;
+        this.lastTickDeliveries = deliveries;
+        this.lastTickNanos = elapsed;
+        this.totalCommands.addAndGet(commands);
+        this.totalDeliveries.addAndGet(deliveries);
+    }
+
+    /**
+     * Runs a single, already rendered command of a delivery
+     *
+     * @param delivery The delivery
+     * @param command  The command
+     */
+    private void dispatch(final Delivery delivery, final String command) {
+        try {
+            Bukkit.dispatchCommand(Bukkit.getConsoleSender(), command);
+        } catch (final RuntimeException e) {
+            // Don't let one broken command stop the rest, running it again won't fix it
+            this.plugin.getLogger().severe("Failed to run command '" + command + "' of delivery " + delivery.getDeliveryId());
+            this.plugin.getLogger().severe(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the amount of deliveries waiting to run
+     *
+     * @return The queue depth
+     */
+    public int getQueueDepth() {
+        return this.queue.size();
+    }
+
+    /**
+     * Returns the time budget per tick
+     *
+     * @return The budget in nanoseconds
+     */
+    public long getBudgetNanos() {
+        return this.budgetNanos;
+    }
+
+    /**
+     * Returns the amount of commands that ran in the last tick
+     *
+     * @return The amount of commands
+     */
+    public int getLastTickCommands() {
+        return this.lastTickCommands;
+    }
+
+    /**
+     * Returns the amount of deliveries that finished in the last tick
+     *
+     * @return The amount of deliveries
+     */
+    public int getLastTickDeliveries() {
+        return this.lastTickDeliveries;
+    }
+
+    /**
+     * Returns the time the last tick spent running commands
+     *
+     * @return The time in nanoseconds
+     */
+    public long getLastTickNanos() {
+        return this.lastTickNanos;
+    }
+
+    /**
+     * Returns the amount of commands that ran since the start
+     *
+     * @return The amount of commands
+     */
+    public long getTotalCommands() {
+        return this.totalCommands.get();
+    }
+
+    /**
+     * Returns the amount of deliveries that finished since the start
+     *
+     * @return The amount of deliveries
+     */
+    public long getTotalDeliveries() {
+        return this.totalDeliveries.get();
+    }
+
+    /**
+     * Returns the amount of ticks that exceeded the budget, e.g. because of a single slow delivery
+     *
+     * @return The amount of ticks
+     */
+    public long getTicksOverBudget() {
+        return this.ticksOverBudget.get();
+    }
+
+    /**
+     * A queued delivery and its position in the queue
+     */
+    private static final class QueuedDelivery {
+
+        private final Delivery delivery;
+        private final DeliveryPriority priority;
+        private final long sequence;
+
+        private QueuedDelivery(final Delivery delivery, final DeliveryPriority priority, final long sequence) {
+            this.delivery = delivery;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+    }
+
+}
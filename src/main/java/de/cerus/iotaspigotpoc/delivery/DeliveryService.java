@@ -0,0 +1,306 @@
+package de.cerus.iotaspigotpoc.delivery;
+
+import de.cerus.iotaspigotpoc.model.CompletedTransaction;
+import de.cerus.iotaspigotpoc.model.Delivery;
+import de.cerus.iotaspigotpoc.model.Product;
+import de.cerus.iotaspigotpoc.product.CommandTemplate;
+import de.cerus.iotaspigotpoc.product.Placeholder;
+import de.cerus.iotaspigotpoc.product.ProductRegistry;
+import de.cerus.iotaspigotpoc.product.ProductSnapshot;
+import de.cerus.iotaspigotpoc.storage.cache.PlayerNameCache;
+import de.cerus.iotaspigotpoc.storage.delivery.OfflineDeliveryStorageService;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * Runs the commands of purchased products
+ * <p>
+ * Every delivery is journaled before its commands are queued and marked as done once they ran. Deliveries that
+ * never finished, e.g. because the server crashed or was stopped before the queue got to them, are run again on
+ * the next start. Purchases are reserved in the journal before their payment is claimed, so a crash right after the
+ * claim can't lose them.
+ * <p>
+ * Deliveries of products that need an online player are stored per player while the player is offline. They are
+ * loaded during the pre-login of the player and queued as one batch once the player joined.
+ */
+public class DeliveryService {
+
+    private final JavaPlugin plugin;
+    private final DeliveryJournal journal;
+    private final ProductRegistry productRegistry;
+    private final PlayerNameCache playerNameCache;
+    private final OfflineDeliveryStorageService offlineDeliveryStorageService;
+    private final DeliveryQueue queue;
+    private final Map<UUID, CompletableFuture<List<Delivery>>> prefetched = new ConcurrentHashMap<>();
+    // Players whose deliveries are being flushed, true if the flush has to run again once it's done
+    private final Map<UUID, Boolean> flushing = new ConcurrentHashMap<>();
+
+    public DeliveryService(final JavaPlugin plugin, final DeliveryJournal journal, final ProductRegistry productRegistry,
+                           final PlayerNameCache playerNameCache, final OfflineDeliveryStorageService offlineDeliveryStorageService) {
+        this.plugin = plugin;
+        this.journal = journal;
+        this.productRegistry = productRegistry;
+        this.playerNameCache = playerNameCache;
+        this.offlineDeliveryStorageService = offlineDeliveryStorageService;
+        this.queue = new DeliveryQueue(plugin, this::markDone, this::holdBack);
+    }
+
+    /**
+     * Opens the journal and queues every unfinished delivery
+     * <p>
+     * Reserved deliveries are not queued, they wait for {@link #getReserved()} to be checked.
+     *
+     * @throws IOException If the journal can't be opened
+     */
+    public void start() throws IOException {
+        final List<Delivery> unfinished = new ArrayList<>(this.journal.open());
+        unfinished.removeIf(delivery -> this.journal.isReserved(delivery.getDeliveryId()));
+        this.queue.start();
+        if (unfinished.isEmpty()) {
+            return;
+        }
+
+        this.plugin.getLogger().info("Replaying " + unfinished.size() + " unfinished deliveries");
+        unfinished.forEach(delivery -> this.queue.submit(delivery, DeliveryPriority.NORMAL));
+    }
+
+    /**
+     * Writes everything that is queued to the journal
+     * <p>
+     * Deliveries that did not run yet stay in the journal and are replayed on the next start.
+     */
+    public void stop() {
+        this.queue.stop();
+        this.journal.close();
+    }
+
+    /**
+     * Reserves the delivery of a completed transaction whose payment is about to be claimed
+     * <p>
+     * The commands are rendered here, off the main thread, and journaled together with the transaction. Nothing is
+     * run until the delivery is confirmed. Fails if a command needs the name of the player and the name is unknown,
+     * the payment is not claimed then and the completion can be retried once the player joined.
+     *
+     * @param transaction The completed transaction, the delivery gets its id
+     *
+     * @return A callback that completes once the delivery is journaled
+     */
+    public CompletableFuture<Void> reserve(final CompletedTransaction transaction) {
+        // Both from the same snapshot, a reload in between can't mix them up
+        final ProductSnapshot products = this.productRegistry.getSnapshot();
+        final Product product = products.getById(transaction.getProductId());
+        final List<CommandTemplate> templates = products.getCommandTemplates(transaction.getProductId());
+        if (product == null || templates == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Unknown product #" + transaction.getProductId()));
+        }
+
+        return this.playerNameCache.resolve(transaction.getPlayerUuid()).thenCompose(playerName -> {
+            if (playerName == null && templates.stream().anyMatch(template -> template.uses(Placeholder.PLAYER_NAME))) {
+                return CompletableFuture.failedFuture(new IllegalStateException("The name of player "
+                        + transaction.getPlayerUuid() + " is unknown"));
+            }
+
+            final String[] values = new String[Placeholder.values().length];
+            values[Placeholder.PLAYER_UUID.ordinal()] = transaction.getPlayerUuid().toString();
+            values[Placeholder.PLAYER_NAME.ordinal()] = playerName == null ? "" : playerName;
+            values[Placeholder.PRODUCT_ID.ordinal()] = String.valueOf(product.getId());
+            values[Placeholder.PRODUCT_NAME.ordinal()] = product.getName();
+            values[Placeholder.IOTA_AMOUNT.ordinal()] = String.valueOf(transaction.getIotaAmount());
+            values[Placeholder.TRANSACTION_ID.ordinal()] = transaction.getTransactionId().toString();
+            values[Placeholder.TRANSACTION_HASH.ordinal()] = transaction.getTransactionHash();
+            values[Placeholder.TIMESTAMP.ordinal()] = String.valueOf(transaction.getCompletedTimestamp());
+
+            // The rendered commands are journaled, later product changes don't affect this purchase
+            final List<String> commands = new ArrayList<>(templates.size());
+            templates.forEach(template -> commands.add(template.render(values)));
+            final Delivery delivery = new Delivery(
+                    transaction.getTransactionId(),
+                    transaction.getPlayerUuid(),
+                    product.getId(),
+                    commands,
+                    product.isRequireOnline(),
+                    System.currentTimeMillis()
+            );
+            return this.journal.reserve(delivery, transaction);
+        });
+    }
+
+    /**
+     * Delivers a reserved delivery once its payment is claimed and its completed transaction is stored
+     * <p>
+     * If the product needs an online player and the player is offline the delivery is stored until the player
+     * joins.
+     *
+     * @param deliveryId The id of the delivery
+     *
+     * @return A callback that completes once the delivery is journaled as due and queued or stored
+     */
+    public CompletableFuture<Void> confirm(final UUID deliveryId) {
+        final Delivery delivery = this.journal.getUnfinished(deliveryId);
+        if (delivery == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Unknown delivery " + deliveryId));
+        }
+
+        if (delivery.isRequireOnline() && Bukkit.getPlayer(delivery.getPlayerUuid()) == null) {
+            return this.offlineDeliveryStorageService.storeDelivery(delivery)
+                    .thenCompose(unused -> this.journal.done(deliveryId))
+                    .thenRun(() -> this.handleStored(delivery.getPlayerUuid()));
+        }
+        return this.journal.due(delivery).thenRun(() -> this.queue.submit(delivery, DeliveryPriority.HIGH));
+    }
+
+    /**
+     * Drops a reserved delivery whose payment was not claimed
+     *
+     * @param deliveryId The id of the delivery
+     *
+     * @return A callback that completes once the delivery is journaled as done
+     */
+    public CompletableFuture<Void> discard(final UUID deliveryId) {
+        return this.journal.done(deliveryId);
+    }
+
+    /**
+     * Returns the completed transactions of the deliveries that were reserved but neither confirmed nor discarded
+     *
+     * @return A collection of completed transactions
+     */
+    public Collection<CompletedTransaction> getReserved() {
+        return this.journal.getReserved();
+    }
+
+    /**
+     * Starts loading the stored deliveries of a player that is logging in
+     * <p>
+     * Called during the async pre-login, the deliveries are queued by {@link #flush(UUID)} once the player joined.
+     *
+     * @param playerUuid The players uuid
+     */
+    public void prefetch(final UUID playerUuid) {
+        this.prefetched.put(playerUuid, this.offlineDeliveryStorageService.retrieveAll(playerUuid));
+    }
+
+    /**
+     * Drops the prefetched deliveries of a player that never joined
+     *
+     * @param playerUuid The players uuid
+     */
+    public void discardPrefetch(final UUID playerUuid) {
+        this.prefetched.remove(playerUuid);
+    }
+
+    /**
+     * Queues the stored deliveries of a player that joined
+     * <p>
+     * The deliveries are journaled before they are removed from the storage, a crash in between replays them from
+     * the journal. They are queued together, so they run in as few ticks as the budget allows.
+     *
+     * @param playerUuid The players uuid
+     */
+    public void flush(final UUID playerUuid) {
+        if (this.flushing.merge(playerUuid, false, (running, ignored) -> true)) {
+            // Already flushing, the running flush starts over once it's done
+            return;
+        }
+        this.runFlush(playerUuid);
+    }
+
+    /**
+     * Loads, journals and queues the stored deliveries of a player
+     *
+     * @param playerUuid The players uuid
+     */
+    private void runFlush(final UUID playerUuid) {
+        final CompletableFuture<List<Delivery>> prefetchFuture = this.prefetched.remove(playerUuid);
+        final CompletableFuture<List<Delivery>> deliveriesFuture = prefetchFuture == null
+                ? this.offlineDeliveryStorageService.retrieveAll(playerUuid) : prefetchFuture;
+
+        deliveriesFuture.thenCompose(deliveries -> {
+            if (deliveries.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            final List<UUID> deliveryIds = new ArrayList<>(deliveries.size());
+            final List<CompletableFuture<Void>> dueFutures = new ArrayList<>(deliveries.size());
+            for (final Delivery delivery : deliveries) {
+                deliveryIds.add(delivery.getDeliveryId());
+                dueFutures.add(this.journal.due(delivery));
+            }
+            return CompletableFuture.allOf(dueFutures.toArray(new CompletableFuture[0]))
+                    .thenCompose(unused -> this.offlineDeliveryStorageService.removeDeliveries(deliveryIds))
+                    .thenRun(() -> deliveries.forEach(delivery -> this.queue.submit(delivery, DeliveryPriority.HIGH)));
+        }).whenComplete((unused, throwable) -> {
+            if (throwable != null) {
+                this.plugin.getLogger().severe("Failed to flush offline deliveries of " + playerUuid);
+                this.plugin.getLogger().severe(throwable.getMessage());
+            }
+
+            // Run again if deliveries were stored while this flush ran
+            if (this.flushing.computeIfPresent(playerUuid, (uuid, again) -> again ? false : null) != null) {
+                this.runFlush(playerUuid);
+            }
+        });
+    }
+
+    /**
+     * Makes sure a delivery that was stored for an offline player isn't missed by a join
+     *
+     * @param playerUuid The players uuid
+     */
+    private void handleStored(final UUID playerUuid) {
+        // A prefetch that ran before the delivery was stored would miss it
+        this.prefetched.remove(playerUuid);
+        if (Bukkit.getPlayer(playerUuid) != null) {
+            // The player joined while the delivery was stored
+            this.flush(playerUuid);
+        }
+    }
+
+    /**
+     * Moves a queued delivery whose player is offline from the journal into the offline storage
+     *
+     * @param delivery The delivery
+     */
+    private void holdBack(final Delivery delivery) {
+        this.offlineDeliveryStorageService.storeDelivery(delivery)
+                .thenCompose(unused -> this.journal.done(delivery.getDeliveryId()))
+                .thenRun(() -> this.handleStored(delivery.getPlayerUuid()))
+                .exceptionally(throwable -> {
+                    // Stays in the journal and is replayed on the next start
+                    this.plugin.getLogger().severe("Failed to store delivery " + delivery.getDeliveryId() + " for an offline player");
+                    this.plugin.getLogger().severe(throwable.getMessage());
+                    return null;
+                });
+    }
+
+    /**
+     * Marks a delivery whose commands ran as done
+     *
+     * @param delivery The delivery
+     */
+    private void markDone(final Delivery delivery) {
+        this.journal.done(delivery.getDeliveryId()).exceptionally(throwable -> {
+            this.plugin.getLogger().severe("Failed to journal delivery " + delivery.getDeliveryId() + " as done");
+            this.plugin.getLogger().severe(throwable.getMessage());
+            return null;
+        });
+    }
+
+    /**
+     * Returns the queue the commands wait in
+     *
+     * @return The delivery queue
+     */
+    public DeliveryQueue getQueue() {
+        return this.queue;
+    }
+
+}
@@ -0,0 +1,42 @@
+package de.cerus.iotaspigotpoc.listener;
+
+import de.cerus.iotaspigotpoc.delivery.DeliveryService;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * Loads the offline deliveries of logging in players and queues them once they joined
+ */
+public class OfflineDeliveryListener implements Listener {
+
+    private final DeliveryService deliveryService;
+
+    public OfflineDeliveryListener(final DeliveryService deliveryService) {
+        this.deliveryService = deliveryService;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void handlePreLogin(final AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return;
+        }
+
+        // Load the deliveries while the player is still logging in
+        this.deliveryService.prefetch(event.getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void handleJoin(final PlayerJoinEvent event) {
+        this.deliveryService.flush(event.getPlayer().getUniqueId());
+    }
+
+    @EventHandler
+    public void handleQuit(final PlayerQuitEvent event) {
+        this.deliveryService.discardPrefetch(event.getPlayer().getUniqueId());
+    }
+
+}
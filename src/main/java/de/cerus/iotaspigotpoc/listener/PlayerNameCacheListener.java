@@ -0,0 +1,29 @@
+package de.cerus.iotaspigotpoc.listener;
+
+import de.cerus.iotaspigotpoc.storage.cache.PlayerNameCache;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+
+/**
+ * Remembers the names of joining players
+ */
+public class PlayerNameCacheListener implements Listener {
+
+    private final PlayerNameCache cache;
+
+    public PlayerNameCacheListener(final PlayerNameCache cache) {
+        this.cache = cache;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void handlePreLogin(final AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return;
+        }
+
+        this.cache.put(event.getUniqueId(), event.getName());
+    }
+
+}
@@ -0,0 +1,40 @@
+package de.cerus.iotaspigotpoc.listener;
+
+import de.cerus.iotaspigotpoc.storage.cache.PlayerTransactionCache;
+import de.cerus.iotaspigotpoc.storage.pending.PendingTransactionStorageService;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * Warms the transaction cache of joining players and evicts it when they quit
+ */
+public class PlayerTransactionCacheListener implements Listener {
+
+    private final PlayerTransactionCache cache;
+    private final PendingTransactionStorageService pendingTransactionStorageService;
+
+    public PlayerTransactionCacheListener(final PlayerTransactionCache cache,
+                                          final PendingTransactionStorageService pendingTransactionStorageService) {
+        this.cache = cache;
+        this.pendingTransactionStorageService = pendingTransactionStorageService;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void handlePreLogin(final AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return;
+        }
+
+        // Load the open transaction while the player is still logging in
+        this.pendingTransactionStorageService.findOpen(event.getUniqueId());
+    }
+
+    @EventHandler
+    public void handleQuit(final PlayerQuitEvent event) {
+        this.cache.invalidate(event.getPlayer().getUniqueId());
+    }
+
+}
@@ -0,0 +1,66 @@
+package de.cerus.iotaspigotpoc.model;
+
+import java.util.List;
+import java.util.UUID;
+import org.bson.codecs.pojo.annotations.BsonCreator;
+import org.bson.codecs.pojo.annotations.BsonId;
+import org.bson.codecs.pojo.annotations.BsonProperty;
+
+/**
+ * Product delivery model, the rendered commands that still have to run for a completed transaction
+ */
+public class Delivery {
+
+    @BsonId
+    private final UUID deliveryId;
+    @BsonProperty("player")
+    private final UUID playerUuid;
+    @BsonProperty("product")
+    private final int productId;
+    @BsonProperty("commands")
+    private final List<String> commands;
+    @BsonProperty("require_online")
+    private final boolean requireOnline;
+    @BsonProperty("timestamp")
+    private final long createdTimestamp;
+
+    @BsonCreator
+    public Delivery(@BsonId final UUID deliveryId,
+                    @BsonProperty("player") final UUID playerUuid,
+                    @BsonProperty("product") final int productId,
+                    @BsonProperty("commands") final List<String> commands,
+                    @BsonProperty("require_online") final boolean requireOnline,
+                    @BsonProperty("timestamp") final long createdTimestamp) {
+        this.deliveryId = deliveryId;
+        this.playerUuid = playerUuid;
+        this.productId = productId;
+        this.commands = commands;
+        this.requireOnline = requireOnline;
+        this.createdTimestamp = createdTimestamp;
+    }
+
+    public UUID getDeliveryId() {
+        return this.deliveryId;
+    }
+
+    public UUID getPlayerUuid() {
+        return this.playerUuid;
+    }
+
+    public int getProductId() {
+        return this.productId;
+    }
+
+    public List<String> getCommands() {
+        return this.commands;
+    }
+
+    public boolean isRequireOnline() {
+        return this.requireOnline;
+    }
+
+    public long getCreatedTimestamp() {
+        return this.createdTimestamp;
+    }
+
+}
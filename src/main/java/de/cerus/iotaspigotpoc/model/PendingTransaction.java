@@ -3,7 +3,9 @@ package de.cerus.iotaspigotpoc.model;
 import java.util.UUID;
 import org.bson.codecs.pojo.annotations.BsonCreator;
 import org.bson.codecs.pojo.annotations.BsonId;
+import org.bson.codecs.pojo.annotations.BsonIgnore;
 import org.bson.codecs.pojo.annotations.BsonProperty;
+import org.iota.jota.utils.TrytesConverter;
 
 /**
  * Pending transaction model
@@ -22,6 +24,10 @@ public class PendingTransaction {
     private final String assignedAddress;
     @BsonProperty("timestamp")
     private final long timestamp;
+    @BsonProperty("state")
+    private final TransactionState state;
+    @BsonIgnore
+    private transient String messageTrytes;
 
     @BsonCreator
     public PendingTransaction(
@@ -30,13 +36,15 @@ public class PendingTransaction {
             @BsonProperty("product") final int productId,
             @BsonProperty("iota") final long iotaAmount,
             @BsonProperty("address") final String assignedAddress,
-            @BsonProperty("timestamp") final long timestamp) {
+            @BsonProperty("timestamp") final long timestamp,
+            @BsonProperty("state") final TransactionState state) {
         this.transactionId = transactionId;
         this.playerUuid = playerUuid;
         this.productId = productId;
         this.iotaAmount = iotaAmount;
         this.assignedAddress = assignedAddress;
         this.timestamp = timestamp;
+        this.state = state;
     }
 
     public UUID getTransactionId() {
@@ -63,4 +71,45 @@ public class PendingTransaction {
         return this.timestamp;
     }
 
+    public TransactionState getState() {
+        return this.state;
+    }
+
+    /**
+     * Creates a copy of this transaction with another state
+     *
+     * @param state The new state
+     *
+     * @return A copy with the new state
+     */
+    public PendingTransaction withState(final TransactionState state) {
+        return new PendingTransaction(this.transactionId, this.playerUuid, this.productId, this.iotaAmount,
+                this.assignedAddress, this.timestamp, state);
+    }
+
+    /**
+     * Returns the message the buyer has to attach to their payment
+     *
+     * @return The expected message
+     */
+    @BsonIgnore
+    public String getMessage() {
+        return this.playerUuid + " " + this.transactionId;
+    }
+
+    /**
+     * Returns the expected message encoded as trytes
+     * <p>
+     * The encoding is computed once and then reused for every transaction this transaction is checked against.
+     *
+     * @return The expected message as trytes
+     */
+    @BsonIgnore
+    public String getMessageTrytes() {
+        if (this.messageTrytes == null) {
+            this.messageTrytes = TrytesConverter.asciiToTrytes(this.getMessage());
+        }
+        return this.messageTrytes;
+    }
+
 }
@@ -0,0 +1,72 @@
+package de.cerus.iotaspigotpoc.model;
+
+import java.util.UUID;
+import org.bson.codecs.pojo.annotations.BsonCreator;
+import org.bson.codecs.pojo.annotations.BsonId;
+import org.bson.codecs.pojo.annotations.BsonProperty;
+
+/**
+ * Purchase summary of a player, kept up to date with every completed transaction
+ */
+public class PlayerSummary {
+
+    @BsonId
+    private final UUID playerUuid;
+    @BsonProperty("count")
+    private final long purchases;
+    @BsonProperty("total_iota")
+    private final long totalIota;
+    @BsonProperty("last_purchase")
+    private final long lastPurchase;
+
+    @BsonCreator
+    public PlayerSummary(@BsonId final UUID playerUuid,
+                         @BsonProperty("count") final long purchases,
+                         @BsonProperty("total_iota") final long totalIota,
+                         @BsonProperty("last_purchase") final long lastPurchase) {
+        this.playerUuid = playerUuid;
+        this.purchases = purchases;
+        this.totalIota = totalIota;
+        this.lastPurchase = lastPurchase;
+    }
+
+    /**
+     * Creates an empty summary
+     *
+     * @param playerUuid The players uuid
+     *
+     * @return An empty summary
+     */
+    public static PlayerSummary empty(final UUID playerUuid) {
+        return new PlayerSummary(playerUuid, 0, 0, 0);
+    }
+
+    /**
+     * Adds a completed transaction to this summary
+     *
+     * @param transaction The transaction
+     *
+     * @return A new summary that includes the transaction
+     */
+    public PlayerSummary with(final CompletedTransaction transaction) {
+        return new PlayerSummary(this.playerUuid, this.purchases + 1, this.totalIota + transaction.getIotaAmount(),
+                Math.max(this.lastPurchase, transaction.getCompletedTimestamp()));
+    }
+
+    public UUID getPlayerUuid() {
+        return this.playerUuid;
+    }
+
+    public long getPurchases() {
+        return this.purchases;
+    }
+
+    public long getTotalIota() {
+        return this.totalIota;
+    }
+
+    public long getLastPurchase() {
+        return this.lastPurchase;
+    }
+
+}
@@ -0,0 +1,37 @@
+package de.cerus.iotaspigotpoc.model;
+
+import org.bson.codecs.pojo.annotations.BsonCreator;
+import org.bson.codecs.pojo.annotations.BsonId;
+import org.bson.codecs.pojo.annotations.BsonProperty;
+
+/**
+ * Pre-generated deposit address model
+ */
+public class PooledAddress {
+
+    /**
+     * Key index of addresses that came back to the pool without their key index, e.g. from expired transactions
+     */
+    public static final int UNKNOWN_INDEX = -1;
+
+    @BsonId
+    private final String address;
+    @BsonProperty("index")
+    private final int keyIndex;
+
+    @BsonCreator
+    public PooledAddress(@BsonId final String address,
+                         @BsonProperty("index") final int keyIndex) {
+        this.address = address;
+        this.keyIndex = keyIndex;
+    }
+
+    public String getAddress() {
+        return this.address;
+    }
+
+    public int getKeyIndex() {
+        return this.keyIndex;
+    }
+
+}
@@ -7,18 +7,26 @@ import java.util.List;
  */
 public class Product {
 
+    public static final String DEFAULT_CATEGORY = "General";
+
     private final int id;
     private final long price;
     private final String name;
     private final String description;
+    private final String category;
     private final List<String> commands;
+    private final boolean requireOnline;
 
-    public Product(final int id, final long price, final String name, final String description, final List<String> commands) {
+    public Product(final int id, final long price, final String name, final String description, final String category,
+                   final List<String> commands, final boolean requireOnline) {
         this.id = id;
         this.price = price;
         this.name = name;
         this.description = description;
-        this.commands = commands;
+        this.category = category;
+        // Products are shared between threads, nobody may change the commands of a loaded product
+        this.commands = List.copyOf(commands);
+        this.requireOnline = requireOnline;
     }
 
     public int getId() {
@@ -37,8 +45,28 @@ public class Product {
         return this.description;
     }
 
+    /**
+     * The category the product is listed in
+     *
+     * @return The category or {@link #DEFAULT_CATEGORY} if the product has none
+     */
+    public String getCategory() {
+        return this.category == null ? DEFAULT_CATEGORY : this.category;
+    }
+
     public List<String> getCommands() {
         return this.commands;
     }
 
+    /**
+     * Whether the commands need the buyer to be online, e.g. to give them items
+     * <p>
+     * Deliveries of these products wait until the buyer joins.
+     *
+     * @return True if the buyer has to be online
+     */
+    public boolean isRequireOnline() {
+        return this.requireOnline;
+    }
+
 }
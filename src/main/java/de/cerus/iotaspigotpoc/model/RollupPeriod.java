@@ -0,0 +1,49 @@
+package de.cerus.iotaspigotpoc.model;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time span a sales rollup counts the sales of
+ */
+public enum RollupPeriod {
+
+    /**
+     * Every sale since the rollups exist
+     */
+    TOTAL(0),
+    /**
+     * The sales of one hour
+     */
+    HOUR(TimeUnit.HOURS.toMillis(1)),
+    /**
+     * The sales of one day (UTC)
+     */
+    DAY(TimeUnit.DAYS.toMillis(1));
+
+    private final long lengthMillis;
+
+    RollupPeriod(final long lengthMillis) {
+        this.lengthMillis = lengthMillis;
+    }
+
+    /**
+     * Returns the bucket a point in time falls into
+     *
+     * @param timestamp The point in time
+     *
+     * @return The start of the bucket, 0 for {@link #TOTAL}
+     */
+    public long bucketOf(final long timestamp) {
+        return this.lengthMillis == 0 ? 0 : timestamp - Math.floorMod(timestamp, this.lengthMillis);
+    }
+
+    /**
+     * Returns the length of a bucket
+     *
+     * @return The length in milliseconds, 0 for {@link #TOTAL}
+     */
+    public long getLengthMillis() {
+        return this.lengthMillis;
+    }
+
+}
@@ -0,0 +1,109 @@
+package de.cerus.iotaspigotpoc.model;
+
+import org.bson.codecs.pojo.annotations.BsonCreator;
+import org.bson.codecs.pojo.annotations.BsonId;
+import org.bson.codecs.pojo.annotations.BsonProperty;
+
+/**
+ * Sales of a product, or of every product, within one bucket of a period
+ * <p>
+ * Rollups are kept up to date with every completed transaction, so reading them doesn't touch the transactions.
+ */
+public class SalesRollup {
+
+    /**
+     * The product id of rollups that count the sales of every product
+     */
+    public static final int ALL_PRODUCTS = -1;
+
+    @BsonId
+    private final String rollupId;
+    @BsonProperty("period")
+    private final RollupPeriod period;
+    @BsonProperty("product")
+    private final int productId;
+    @BsonProperty("bucket")
+    private final long bucket;
+    @BsonProperty("count")
+    private final long sales;
+    @BsonProperty("iota")
+    private final long totalIota;
+
+    @BsonCreator
+    public SalesRollup(@BsonId final String rollupId,
+                       @BsonProperty("period") final RollupPeriod period,
+                       @BsonProperty("product") final int productId,
+                       @BsonProperty("bucket") final long bucket,
+                       @BsonProperty("count") final long sales,
+                       @BsonProperty("iota") final long totalIota) {
+        this.rollupId = rollupId;
+        this.period = period;
+        this.productId = productId;
+        this.bucket = bucket;
+        this.sales = sales;
+        this.totalIota = totalIota;
+    }
+
+    /**
+     * Creates an empty rollup
+     *
+     * @param period    The period
+     * @param productId The product id or {@link #ALL_PRODUCTS}
+     * @param bucket    The start of the bucket
+     *
+     * @return An empty rollup
+     */
+    public static SalesRollup empty(final RollupPeriod period, final int productId, final long bucket) {
+        return new SalesRollup(idOf(period, productId, bucket), period, productId, bucket, 0, 0);
+    }
+
+    /**
+     * Creates the id of a rollup
+     *
+     * @param period    The period
+     * @param productId The product id or {@link #ALL_PRODUCTS}
+     * @param bucket    The start of the bucket
+     *
+     * @return The id
+     */
+    public static String idOf(final RollupPeriod period, final int productId, final long bucket) {
+        return period.name() + ":" + productId + ":" + bucket;
+    }
+
+    /**
+     * Adds sales to this rollup
+     *
+     * @param sales     The amount of sales
+     * @param totalIota The amount of IOTA they were paid with
+     *
+     * @return A new rollup that includes the sales
+     */
+    public SalesRollup plus(final long sales, final long totalIota) {
+        return new SalesRollup(this.rollupId, this.period, this.productId, this.bucket, this.sales + sales, this.totalIota + totalIota);
+    }
+
+    public String getRollupId() {
+        return this.rollupId;
+    }
+
+    public RollupPeriod getPeriod() {
+        return this.period;
+    }
+
+    public int getProductId() {
+        return this.productId;
+    }
+
+    public long getBucket() {
+        return this.bucket;
+    }
+
+    public long getSales() {
+        return this.sales;
+    }
+
+    public long getTotalIota() {
+        return this.totalIota;
+    }
+
+}
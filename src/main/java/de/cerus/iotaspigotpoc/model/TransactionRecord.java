@@ -0,0 +1,84 @@
+package de.cerus.iotaspigotpoc.model;
+
+import java.util.UUID;
+import org.bson.codecs.pojo.annotations.BsonCreator;
+import org.bson.codecs.pojo.annotations.BsonId;
+import org.bson.codecs.pojo.annotations.BsonProperty;
+
+/**
+ * The fields of a pending or completed transaction that reports need
+ * <p>
+ * Streamed instead of the full transactions, so only these fields are decoded. The timestamp is the start of a
+ * pending transaction and the completion of a completed transaction.
+ */
+public class TransactionRecord {
+
+    @BsonId
+    private final UUID transactionId;
+    @BsonProperty("player")
+    private final UUID playerUuid;
+    @BsonProperty("product")
+    private final int productId;
+    @BsonProperty("iota")
+    private final long iotaAmount;
+    @BsonProperty("timestamp")
+    private final long timestamp;
+
+    @BsonCreator
+    public TransactionRecord(@BsonId final UUID transactionId,
+                             @BsonProperty("player") final UUID playerUuid,
+                             @BsonProperty("product") final int productId,
+                             @BsonProperty("iota") final long iotaAmount,
+                             @BsonProperty("timestamp") final long timestamp) {
+        this.transactionId = transactionId;
+        this.playerUuid = playerUuid;
+        this.productId = productId;
+        this.iotaAmount = iotaAmount;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Creates the record of a pending transaction
+     *
+     * @param transaction The transaction
+     *
+     * @return A record
+     */
+    public static TransactionRecord of(final PendingTransaction transaction) {
+        return new TransactionRecord(transaction.getTransactionId(), transaction.getPlayerUuid(), transaction.getProductId(),
+                transaction.getIotaAmount(), transaction.getTimestamp());
+    }
+
+    /**
+     * Creates the record of a completed transaction
+     *
+     * @param transaction The transaction
+     *
+     * @return A record
+     */
+    public static TransactionRecord of(final CompletedTransaction transaction) {
+        return new TransactionRecord(transaction.getTransactionId(), transaction.getPlayerUuid(), transaction.getProductId(),
+                transaction.getIotaAmount(), transaction.getCompletedTimestamp());
+    }
+
+    public UUID getTransactionId() {
+        return this.transactionId;
+    }
+
+    public UUID getPlayerUuid() {
+        return this.playerUuid;
+    }
+
+    public int getProductId() {
+        return this.productId;
+    }
+
+    public long getIotaAmount() {
+        return this.iotaAmount;
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+}
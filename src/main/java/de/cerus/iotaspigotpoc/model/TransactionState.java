@@ -0,0 +1,25 @@
+package de.cerus.iotaspigotpoc.model;
+
+/**
+ * Lifecycle state of a pending transaction
+ */
+public enum TransactionState {
+
+    /**
+     * Waiting for the payment
+     */
+    OPEN,
+    /**
+     * Paid and delivered
+     */
+    COMPLETED,
+    /**
+     * Cancelled by the player
+     */
+    CANCELLED,
+    /**
+     * Not paid in time
+     */
+    EXPIRED
+
+}
@@ -0,0 +1,118 @@
+package de.cerus.iotaspigotpoc.product;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Product command that was parsed into literal parts and placeholders once
+ * <p>
+ * Rendering only appends the parts into a single, presized builder. Unknown placeholders are kept as they are.
+ */
+public class CommandTemplate {
+
+    private final String source;
+    private final String[] literals;
+    private final Placeholder[] placeholders;
+    private final int literalLength;
+
+    private CommandTemplate(final String source, final String[] literals, final Placeholder[] placeholders) {
+        this.source = source;
+        this.literals = literals;
+        this.placeholders = placeholders;
+
+        int length = 0;
+        for (final String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * Parses a command
+     *
+     * @param command The command, e.g. "give {PLAYER_NAME} apple 16"
+     *
+     * @return The template
+     */
+    public static CommandTemplate compile(final String command) {
+        final List<String> literals = new ArrayList<>();
+        final List<Placeholder> placeholders = new ArrayList<>();
+
+        final StringBuilder literal = new StringBuilder();
+        int index = 0;
+        while (index < command.length()) {
+            // Innermost pair of braces, so "{{PLAYER_NAME}}" becomes "{Name}"
+            final int close = command.indexOf('}', index);
+            if (close < 0) {
+                break;
+            }
+            final int open = command.lastIndexOf('{', close);
+
+            final Placeholder placeholder = open < index ? null : Placeholder.getByName(command.substring(open + 1, close));
+            if (placeholder == null) {
+                // Not ours, keep it
+                literal.append(command, index, close + 1);
+            } else {
+                literal.append(command, index, open);
+                literals.add(literal.toString());
+                placeholders.add(placeholder);
+                literal.setLength(0);
+            }
+            index = close + 1;
+        }
+        literal.append(command, Math.min(index, command.length()), command.length());
+        literals.add(literal.toString());
+
+        return new CommandTemplate(command, literals.toArray(new String[0]), placeholders.toArray(new Placeholder[0]));
+    }
+
+    /**
+     * Renders the command
+     *
+     * @param values The value of every placeholder, indexed by {@link Placeholder#ordinal()}
+     *
+     * @return The command
+     */
+    public String render(final String[] values) {
+        if (this.placeholders.length == 0) {
+            return this.literals[0];
+        }
+
+        int length = this.literalLength;
+        for (final Placeholder placeholder : this.placeholders) {
+            length += values[placeholder.ordinal()].length();
+        }
+
+        final StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < this.placeholders.length; i++) {
+            builder.append(this.literals[i]).append(values[this.placeholders[i].ordinal()]);
+        }
+        return builder.append(this.literals[this.placeholders.length]).toString();
+    }
+
+    /**
+     * Checks whether the command contains a placeholder
+     *
+     * @param placeholder The placeholder
+     *
+     * @return Whether the placeholder is rendered into the command
+     */
+    public boolean uses(final Placeholder placeholder) {
+        for (final Placeholder used : this.placeholders) {
+            if (used == placeholder) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the command this template was parsed from
+     *
+     * @return The command
+     */
+    public String getSource() {
+        return this.source;
+    }
+
+}
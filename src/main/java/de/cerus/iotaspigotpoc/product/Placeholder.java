@@ -0,0 +1,63 @@
+package de.cerus.iotaspigotpoc.product;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Placeholders that can be used in product commands, e.g. {PLAYER_NAME}
+ */
+public enum Placeholder {
+
+    /**
+     * The uuid of the buyer
+     */
+    PLAYER_UUID,
+    /**
+     * The name of the buyer
+     */
+    PLAYER_NAME,
+    /**
+     * The id of the product
+     */
+    PRODUCT_ID,
+    /**
+     * The name of the product
+     */
+    PRODUCT_NAME,
+    /**
+     * The amount of IOTA that was paid
+     */
+    IOTA_AMOUNT,
+    /**
+     * The id of the completed transaction
+     */
+    TRANSACTION_ID,
+    /**
+     * The hash of the payment
+     */
+    TRANSACTION_HASH,
+    /**
+     * The time of the purchase in milliseconds since the epoch
+     */
+    TIMESTAMP;
+
+    private static final Map<String, Placeholder> BY_NAME = new HashMap<>();
+
+    static {
+        for (final Placeholder placeholder : values()) {
+            BY_NAME.put(placeholder.name(), placeholder);
+        }
+    }
+
+    /**
+     * Retrieves a placeholder by its name
+     *
+     * @param name The name without braces
+     *
+     * @return The placeholder or null
+     */
+    public static Placeholder getByName(final String name) {
+        return BY_NAME.get(name);
+    }
+
+}
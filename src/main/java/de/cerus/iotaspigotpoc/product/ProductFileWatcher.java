@@ -0,0 +1,113 @@
+package de.cerus.iotaspigotpoc.product;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Reloads the product registry whenever the products file changes
+ * <p>
+ * Runs on its own thread, parsing and validating never touch the main thread. Editors often write a file in
+ * multiple steps, so changes are only picked up once the file was quiet for a moment.
+ */
+public class ProductFileWatcher {
+
+    private static final long QUIET_MILLIS = 500;
+
+    private final ProductRegistry productRegistry;
+    private final File file;
+    private final Logger logger;
+    private WatchService watchService;
+    private Thread thread;
+
+    public ProductFileWatcher(final ProductRegistry productRegistry, final File file, final Logger logger) {
+        this.productRegistry = productRegistry;
+        this.file = file;
+        this.logger = logger;
+    }
+
+    /**
+     * Starts watching the products file
+     *
+     * @throws IOException If the folder of the file can't be watched
+     */
+    public void start() throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        // Editors and 'mv' replace the file, so the folder is watched instead of the file
+        this.file.getParentFile().toPath().register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        this.thread = new Thread(this::watch, "iota-spigot-poc-product-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stops watching the products file
+     */
+    public void stop() {
+        if (this.watchService == null) {
+            return;
+        }
+
+        try {
+            // Wakes up the watcher thread
+            this.watchService.close();
+        } catch (final IOException e) {
+            this.logger.warning("Failed to stop watching " + this.file.getName());
+        }
+    }
+
+    /**
+     * Waits for changes of the products file and reloads the registry
+     */
+    private void watch() {
+        try {
+            while (true) {
+                if (!this.isProductFileChange(this.watchService.take())) {
+                    continue;
+                }
+
+                // Wait until the file is quiet
+                WatchKey key;
+                while ((key = this.watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    this.isProductFileChange(key);
+                }
+
+                if (this.file.exists() && this.productRegistry.load(this.file)) {
+                    this.logger.info("Reloaded " + this.productRegistry.getAllProducts().size() + " products");
+                }
+            }
+        } catch (final ClosedWatchServiceException | InterruptedException ignored) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Checks whether a key holds a change of the products file and resets it
+     *
+     * @param key The signalled key
+     *
+     * @return True if the products file changed
+     */
+    private boolean isProductFileChange(final WatchKey key) {
+        boolean changed = false;
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || this.file.getName().equals(((Path) event.context()).toString())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+}
@@ -0,0 +1,132 @@
+package de.cerus.iotaspigotpoc.product;
+
+import de.cerus.iotaspigotpoc.model.Product;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.TextComponent;
+import net.kyori.adventure.text.event.ClickEvent;
+import net.kyori.adventure.text.event.HoverEvent;
+
+/**
+ * Renders pages of the product list and keeps them for the following requests
+ * <p>
+ * Pages are rendered on first use and cached per query. The cache belongs to a single product snapshot and is
+ * dropped as soon as the registry published a new one.
+ */
+public class ProductPageCache {
+
+    private final ProductRegistry productRegistry;
+    private final int pageSize;
+    private final Map<String, RenderedQuery> queryMap;
+    private ProductSnapshot snapshot;
+
+    /**
+     * @param productRegistry The product registry
+     * @param pageSize        The amount of products per page
+     * @param maxQueries      The max amount of queries whose pages are kept
+     */
+    public ProductPageCache(final ProductRegistry productRegistry, final int pageSize, final int maxQueries) {
+        this.productRegistry = productRegistry;
+        this.pageSize = Math.max(1, pageSize);
+        this.queryMap = new LinkedHashMap<String, RenderedQuery>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, RenderedQuery> eldest) {
+                return this.size() > maxQueries;
+            }
+        };
+    }
+
+    /**
+     * Retrieves a rendered page of products
+     *
+     * @param query The search query, empty for all products
+     * @param page  The page, starting at 1, clamped to the existing pages
+     *
+     * @return The page including its header and navigation
+     */
+    public synchronized Component getPage(final String query, final int page) {
+        final ProductSnapshot currentSnapshot = this.productRegistry.getSnapshot();
+        if (currentSnapshot != this.snapshot) {
+            // The products were reloaded
+            this.queryMap.clear();
+            this.snapshot = currentSnapshot;
+        }
+
+        final String normalized = query.trim().toLowerCase(Locale.ROOT);
+        final RenderedQuery renderedQuery = this.queryMap.computeIfAbsent(normalized, key -> {
+            final List<Product> products = currentSnapshot.search(key);
+            return new RenderedQuery(products, new Component[Math.max(1, (products.size() + this.pageSize - 1) / this.pageSize)]);
+        });
+
+        final int index = Math.min(Math.max(1, page), renderedQuery.pages.length) - 1;
+        if (renderedQuery.pages[index] == null) {
+            renderedQuery.pages[index] = this.render(normalized, renderedQuery.products, index, renderedQuery.pages.length);
+        }
+        return renderedQuery.pages[index];
+    }
+
+    /**
+     * Renders a page
+     *
+     * @param query    The normalized query
+     * @param products The products matching the query
+     * @param index    The index of the page
+     * @param pages    The amount of pages
+     *
+     * @return The page
+     */
+    private Component render(final String query, final List<Product> products, final int index, final int pages) {
+        final String baseCommand = query.isEmpty() ? "/iota products " : "/iota products " + query + " ";
+        final TextComponent.Builder builder = Component.text()
+                .content((query.isEmpty() ? "§6Products" : "§6Products matching '" + query + "'")
+                        + " §7(page " + (index + 1) + "/" + pages + ")");
+
+        if (products.isEmpty()) {
+            builder.append(Component.newline()).append(Component.text("§cNo products found"));
+        }
+        for (final Product product : products.subList(index * this.pageSize, Math.min(products.size(), (index + 1) * this.pageSize))) {
+            builder.append(Component.newline()).append(Component.text()
+                    .content("§6" + product.getName() + " (#" + product.getId() + "): §f" + product.getDescription())
+                    .hoverEvent(HoverEvent.showText(Component.text("§7" + product.getCategory() + " - Click to purchase")))
+                    .clickEvent(ClickEvent.runCommand("/iota buy " + product.getId()))
+                    .build());
+        }
+
+        // Navigation
+        if (pages > 1) {
+            builder.append(Component.newline());
+            if (index > 0) {
+                builder.append(Component.text()
+                        .content("§e« Previous ")
+                        .clickEvent(ClickEvent.runCommand(baseCommand + index))
+                        .build());
+            }
+            if (index < pages - 1) {
+                builder.append(Component.text()
+                        .content("§eNext »")
+                        .clickEvent(ClickEvent.runCommand(baseCommand + (index + 2)))
+                        .build());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * The products matching a query and their pages that were rendered so far
+     */
+    private static final class RenderedQuery {
+
+        private final List<Product> products;
+        private final Component[] pages;
+
+        private RenderedQuery(final List<Product> products, final Component[] pages) {
+            this.products = products;
+            this.pages = pages;
+        }
+
+    }
+
+}
@@ -2,34 +2,112 @@ package de.cerus.iotaspigotpoc.product;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
 import de.cerus.iotaspigotpoc.model.Product;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
 
 /**
- * Very simple registry to cache products / packages.
+ * Registry to cache products / packages.
+ * <p>
+ * The products are published as immutable snapshots through a volatile reference. Readers never lock or copy,
+ * a reload parses and validates the file first and replaces the whole snapshot at once. A file that fails to
+ * load leaves the current products untouched.
  */
 public class ProductRegistry {
 
-    private final Map<Integer, Product> productMap = new LinkedHashMap<>();
-    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private final Gson gson = new GsonBuilder().create();
+    private final Logger logger;
+    private volatile ProductSnapshot snapshot = ProductSnapshot.EMPTY;
 
-    public void load(final File file) {
+    public ProductRegistry(final Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Loads the products from a file and replaces the current products
+     *
+     * @param file The products file
+     *
+     * @return True if the products were replaced, false if the file is broken or invalid
+     */
+    public boolean load(final File file) {
+        final List<Product> products;
         try {
-            for (final JsonElement jsonElement : new JsonParser().parse(new FileReader(file)).getAsJsonArray()) {
-                final Product product = this.gson.fromJson(jsonElement, Product.class);
-                this.productMap.put(product.getId(), product);
+            products = this.parse(file);
+        } catch (final IOException | JsonParseException | IllegalStateException e) {
+            this.logger.severe("Failed to load " + file.getName() + ", keeping the current products");
+            this.logger.severe(e.getMessage());
+            return false;
+        }
+
+        this.snapshot = new ProductSnapshot(products);
+        return true;
+    }
+
+    /**
+     * Parses and validates a products file
+     * <p>
+     * The file is streamed, only one product is held as JSON at a time.
+     *
+     * @param file The products file
+     *
+     * @return The products in file order
+     *
+     * @throws IOException If the file can't be read
+     */
+    private List<Product> parse(final File file) throws IOException {
+        final List<Product> products = new ArrayList<>();
+        final Set<Integer> ids = new HashSet<>();
+        try (final JsonReader reader = new JsonReader(Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                final Product product = this.gson.fromJson(reader, Product.class);
+                if (product == null) {
+                    throw new IllegalStateException("Product #" + products.size() + " is null");
+                }
+                if (!ids.add(product.getId())) {
+                    throw new IllegalStateException("Duplicate product id " + product.getId());
+                }
+                if (product.getPrice() <= 0) {
+                    throw new IllegalStateException("Product #" + product.getId() + " has no price");
+                }
+                if (product.getName() == null || product.getDescription() == null) {
+                    throw new IllegalStateException("Product #" + product.getId() + " has no name or description");
+                }
+                if (product.getCategory().trim().isEmpty()) {
+                    throw new IllegalStateException("Product #" + product.getId() + " has an empty category");
+                }
+                if (product.getCommands() == null || product.getCommands().contains(null)) {
+                    throw new IllegalStateException("Product #" + product.getId() + " has no commands");
+                }
+
+                // Gson doesn't call the constructor, which copies the commands into an immutable list
+                products.add(new Product(product.getId(), product.getPrice(), product.getName(), product.getDescription(),
+                        product.getCategory(), product.getCommands(), product.isRequireOnline()));
             }
-        } catch (final FileNotFoundException e) {
-            e.printStackTrace();
+            reader.endArray();
         }
+        return products;
+    }
+
+    /**
+     * Retrieves the current products
+     * <p>
+     * Use the same snapshot for lookups that have to agree with each other, e.g. a product and its commands.
+     *
+     * @return The current snapshot
+     */
+    public ProductSnapshot getSnapshot() {
+        return this.snapshot;
     }
 
     /**
@@ -40,16 +118,40 @@ public class ProductRegistry {
      * @return The product or null
      */
     public Product getById(final int id) {
-        return this.productMap.get(id);
+        return this.snapshot.getById(id);
+    }
+
+    /**
+     * Retrieves the parsed commands of a product
+     *
+     * @param id The product id
+     *
+     * @return The command templates or null
+     */
+    public List<CommandTemplate> getCommandTemplates(final int id) {
+        return this.snapshot.getCommandTemplates(id);
     }
 
     /**
      * Retrieves all products
      *
-     * @return all products
+     * @return An unmodifiable list of all products
      */
     public List<Product> getAllProducts() {
-        return new ArrayList<>(this.productMap.values());
+        return this.snapshot.getAllProducts();
+    }
+
+    /**
+     * Searches for products by category or name
+     *
+     * @param query The query
+     *
+     * @return The matching products in list order
+     *
+     * @see ProductSnapshot#search(String)
+     */
+    public List<Product> search(final String query) {
+        return this.snapshot.search(query);
     }
 
 }
@@ -0,0 +1,176 @@
+package de.cerus.iotaspigotpoc.product;
+
+import de.cerus.iotaspigotpoc.model.Product;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable set of products, their parsed commands and search indices
+ * <p>
+ * A snapshot is never changed after it was built, so it can be read from any thread without locking. A reload
+ * builds a new snapshot instead.
+ */
+public final class ProductSnapshot {
+
+    public static final ProductSnapshot EMPTY = new ProductSnapshot(Collections.emptyList());
+
+    private final List<Product> products;
+    private final Map<Integer, Product> productMap;
+    private final Map<Integer, List<CommandTemplate>> templateMap;
+    // Lower case category -> products of the category in list order
+    private final Map<String, List<Product>> categoryIndex;
+    // Lower case word of a product name -> list positions of the products whose name contains the word
+    private final NavigableMap<String, BitSet> nameIndex;
+
+    /**
+     * @param products The products in the order they should be listed, ids have to be unique
+     */
+    public ProductSnapshot(final List<Product> products) {
+        final Map<Integer, Product> productMap = new HashMap<>();
+        final Map<Integer, List<CommandTemplate>> templateMap = new HashMap<>();
+        final Map<String, List<Product>> categoryIndex = new LinkedHashMap<>();
+        final NavigableMap<String, BitSet> nameIndex = new TreeMap<>();
+        for (int i = 0; i < products.size(); i++) {
+            final Product product = products.get(i);
+            productMap.put(product.getId(), product);
+
+            // Parse the commands once instead of on every delivery
+            final List<CommandTemplate> templates = new ArrayList<>(product.getCommands().size());
+            product.getCommands().forEach(command -> templates.add(CommandTemplate.compile(command)));
+            templateMap.put(product.getId(), Collections.unmodifiableList(templates));
+
+            categoryIndex.computeIfAbsent(product.getCategory().toLowerCase(Locale.ROOT), category -> new ArrayList<>()).add(product);
+            for (final String word : this.words(product.getName())) {
+                nameIndex.computeIfAbsent(word, key -> new BitSet()).set(i);
+            }
+        }
+        categoryIndex.replaceAll((category, categoryProducts) -> Collections.unmodifiableList(categoryProducts));
+
+        this.products = Collections.unmodifiableList(new ArrayList<>(products));
+        this.productMap = productMap;
+        this.templateMap = templateMap;
+        this.categoryIndex = categoryIndex;
+        this.nameIndex = nameIndex;
+    }
+
+    /**
+     * Retrieves a product by its id
+     *
+     * @param id The product id
+     *
+     * @return The product or null
+     */
+    public Product getById(final int id) {
+        return this.productMap.get(id);
+    }
+
+    /**
+     * Retrieves the parsed commands of a product
+     *
+     * @param id The product id
+     *
+     * @return The command templates or null
+     */
+    public List<CommandTemplate> getCommandTemplates(final int id) {
+        return this.templateMap.get(id);
+    }
+
+    /**
+     * Retrieves all products
+     *
+     * @return An unmodifiable list of all products
+     */
+    public List<Product> getAllProducts() {
+        return this.products;
+    }
+
+    /**
+     * Retrieves the products of a category
+     *
+     * @param category The category, case insensitive
+     *
+     * @return An unmodifiable list of products, empty if the category doesn't exist
+     */
+    public List<Product> getByCategory(final String category) {
+        return this.categoryIndex.getOrDefault(category.toLowerCase(Locale.ROOT), Collections.emptyList());
+    }
+
+    /**
+     * Retrieves the lower case names of all categories
+     *
+     * @return A collection of categories
+     */
+    public Collection<String> getCategories() {
+        return Collections.unmodifiableSet(this.categoryIndex.keySet());
+    }
+
+    /**
+     * Searches for products
+     * <p>
+     * A query that names a category returns the products of the category. Otherwise every word of the query has
+     * to be the start of a word in the product name, e.g. "dia sw" finds "Diamond Sword".
+     *
+     * @param query The query
+     *
+     * @return The matching products in list order
+     */
+    public List<Product> search(final String query) {
+        final String normalized = query.trim().toLowerCase(Locale.ROOT);
+        if (normalized.isEmpty()) {
+            return this.products;
+        }
+
+        final List<Product> categoryProducts = this.categoryIndex.get(normalized);
+        if (categoryProducts != null) {
+            return categoryProducts;
+        }
+
+        BitSet matches = null;
+        for (final String word : this.words(normalized)) {
+            // Union of every indexed word that starts with the query word
+            final BitSet wordMatches = new BitSet();
+            this.nameIndex.subMap(word, true, word + Character.MAX_VALUE, false).values().forEach(wordMatches::or);
+            if (matches == null) {
+                matches = wordMatches;
+            } else {
+                matches.and(wordMatches);
+            }
+        }
+        if (matches == null) {
+            return Collections.emptyList();
+        }
+
+        final List<Product> results = new ArrayList<>(matches.cardinality());
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            results.add(this.products.get(i));
+        }
+        return results;
+    }
+
+    /**
+     * Splits a text into lower case words, ignoring color codes
+     *
+     * @param text The text
+     *
+     * @return The words
+     */
+    private List<String> words(final String text) {
+        final List<String> words = new ArrayList<>();
+        for (final String word : text.replaceAll("§.", "").toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+}
@@ -0,0 +1,45 @@
+package de.cerus.iotaspigotpoc.storage.address;
+
+import de.cerus.iotaspigotpoc.model.PooledAddress;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+public interface AddressStorageService {
+
+    /**
+     * Stores pre-generated addresses
+     *
+     * @param addresses The addresses
+     *
+     * @return A callback
+     */
+    CompletableFuture<Void> storeAddresses(Collection<PooledAddress> addresses);
+
+    /**
+     * Removes a taken address so it won't be handed out again
+     *
+     * @param address The address
+     *
+     * @return A callback
+     */
+    CompletableFuture<Void> removeAddress(String address);
+
+    /**
+     * Retrieves all addresses that were not taken yet
+     *
+     * @return A collection of addresses, ordered by key index
+     */
+    CompletableFuture<Collection<PooledAddress>> retrieveAvailable();
+
+    /**
+     * Atomically reserves a range of key indices
+     * <p>
+     * Every index is reserved at most once, even if multiple servers share the storage.
+     *
+     * @param amount The amount of indices to reserve
+     *
+     * @return The first reserved index
+     */
+    CompletableFuture<Integer> reserveIndices(int amount);
+
+}
@@ -0,0 +1,165 @@
+package de.cerus.iotaspigotpoc.storage.address.impl;
+
+import com.google.gson.Gson;
+import de.cerus.iotaspigotpoc.model.PooledAddress;
+import de.cerus.iotaspigotpoc.storage.address.AddressStorageService;
+import de.cerus.iotaspigotpoc.storage.log.AppendOnlyLog;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+/**
+ * Address storage that lives in memory and is persisted in append-only logs
+ */
+public class LocalAddressStorageService implements AddressStorageService {
+
+    private static final String CURSOR_ID = "address_index";
+
+    private final Map<String, PooledAddress> addresses = new HashMap<>();
+    private final AppendOnlyLog<PooledAddress> log;
+    private final AppendOnlyLog<Integer> counterLog;
+    private int cursor;
+
+    public LocalAddressStorageService(final Path directory, final Gson gson, final boolean fsync, final Logger logger) {
+        this.log = new AppendOnlyLog<>(directory.resolve("addresses.jsonl"), PooledAddress.class, gson, fsync,
+                this::size, this::snapshot, logger);
+        this.counterLog = new AppendOnlyLog<>(directory.resolve("counters.jsonl"), Integer.class, gson, fsync,
+                () -> 1, () -> Collections.singletonMap(CURSOR_ID, this.getCursor()), logger);
+    }
+
+    /**
+     * Loads the addresses and the cursor from their logs
+     *
+     * @throws IOException If a log can't be read
+     */
+    public void load() throws IOException {
+        this.log.open((key, address) -> {
+            if (address == null) {
+                this.addresses.remove(key);
+            } else {
+                this.addresses.put(key, address);
+            }
+        });
+        this.counterLog.open((key, value) -> {
+            if (CURSOR_ID.equals(key) && value != null) {
+                this.cursor = value;
+            }
+        });
+
+        // Never start below an index that was generated before
+        for (final PooledAddress address : this.addresses.values()) {
+            this.cursor = Math.max(this.cursor, address.getKeyIndex() + 1);
+        }
+    }
+
+    /**
+     * Stores pre-generated addresses
+     *
+     * @param addresses The addresses
+     *
+     * @return A callback
+     */
+    @Override
+    public synchronized CompletableFuture<Void> storeAddresses(final Collection<PooledAddress> addresses) {
+        final List<CompletableFuture<Void>> writeFutures = new ArrayList<>();
+        for (final PooledAddress address : addresses) {
+            this.addresses.put(address.getAddress(), address);
+            writeFutures.add(this.log.put(address.getAddress(), address));
+        }
+        return CompletableFuture.allOf(writeFutures.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Removes a taken address so it won't be handed out again
+     *
+     * @param address The address
+     *
+     * @return A callback
+     */
+    @Override
+    public synchronized CompletableFuture<Void> removeAddress(final String address) {
+        if (this.addresses.remove(address) == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return this.log.delete(address);
+    }
+
+    /**
+     * Retrieves all addresses that were not taken yet
+     *
+     * @return A collection of addresses, ordered by key index
+     */
+    @Override
+    public synchronized CompletableFuture<Collection<PooledAddress>> retrieveAvailable() {
+        final List<PooledAddress> available = new ArrayList<>(this.addresses.values());
+        available.sort(Comparator.comparingInt(PooledAddress::getKeyIndex));
+        return CompletableFuture.completedFuture(available);
+    }
+
+    /**
+     * Atomically reserves a range of key indices
+     *
+     * @param amount The amount of indices to reserve
+     *
+     * @return The first reserved index
+     */
+    @Override
+    public synchronized CompletableFuture<Integer> reserveIndices(final int amount) {
+        final int firstIndex = this.cursor;
+        this.cursor += amount;
+        return this.counterLog.put(CURSOR_ID, this.cursor).thenApply(unused -> firstIndex);
+    }
+
+    /**
+     * Closes the logs
+     */
+    public void close() {
+        this.log.close();
+        this.counterLog.close();
+    }
+
+    /**
+     * Returns the log the addresses are persisted in
+     *
+     * @return The log
+     */
+    public AppendOnlyLog<PooledAddress> getLog() {
+        return this.log;
+    }
+
+    /**
+     * Returns the current cursor
+     *
+     * @return The next unreserved index
+     */
+    private synchronized int getCursor() {
+        return this.cursor;
+    }
+
+    /**
+     * Returns the amount of stored addresses
+     *
+     * @return The amount of addresses
+     */
+    private synchronized int size() {
+        return this.addresses.size();
+    }
+
+    /**
+     * Copies the stored addresses for a compaction of the log
+     *
+     * @return The addresses by address
+     */
+    private synchronized Map<String, PooledAddress> snapshot() {
+        return new HashMap<>(this.addresses);
+    }
+
+}
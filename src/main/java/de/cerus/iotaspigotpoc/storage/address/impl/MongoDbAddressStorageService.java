@@ -0,0 +1,132 @@
+package de.cerus.iotaspigotpoc.storage.address.impl;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import de.cerus.iotaspigotpoc.model.PooledAddress;
+import de.cerus.iotaspigotpoc.storage.address.AddressStorageService;
+import de.cerus.iotaspigotpoc.util.PublisherAdapter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import org.bson.Document;
+
+public class MongoDbAddressStorageService implements AddressStorageService {
+
+    private static final String CURSOR_ID = "address_index";
+
+    private final PublisherAdapter adapter;
+    private final MongoCollection<PooledAddress> collection;
+    private final MongoCollection<Document> counters;
+    private CompletableFuture<Void> cursorFuture;
+
+    public MongoDbAddressStorageService(final MongoDatabase database, final PublisherAdapter adapter) {
+        this.adapter = adapter;
+        this.collection = database.getCollection("addresses", PooledAddress.class);
+        this.counters = database.getCollection("counters");
+    }
+
+    /**
+     * Stores pre-generated addresses
+     *
+     * @param addresses The addresses
+     *
+     * @return A callback
+     */
+    @Override
+    public CompletableFuture<Void> storeAddresses(final Collection<PooledAddress> addresses) {
+        if (addresses.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return this.adapter.completion(this.collection.insertMany(new ArrayList<>(addresses)))
+                .whenComplete(this.adapter.logFailure("Failed to store pooled addresses"));
+    }
+
+    /**
+     * Removes a taken address so it won't be handed out again
+     *
+     * @param address The address
+     *
+     * @return A callback
+     */
+    @Override
+    public CompletableFuture<Void> removeAddress(final String address) {
+        return this.adapter.completion(this.collection.deleteOne(Filters.eq("_id", address)))
+                .whenComplete(this.adapter.logFailure("Failed to remove pooled address"));
+    }
+
+    /**
+     * Retrieves all addresses that were not taken yet
+     *
+     * @return A collection of addresses, ordered by key index
+     */
+    @Override
+    public CompletableFuture<Collection<PooledAddress>> retrieveAvailable() {
+        final CompletableFuture<Collection<PooledAddress>> future = this.adapter.toCollection(this.collection.find()
+                .sort(Sorts.ascending("index"))
+                .batchSize(this.adapter.getBatchSize()), ArrayList::new);
+        return future.whenComplete(this.adapter.logFailure("Failed to retrieve pooled addresses"));
+    }
+
+    /**
+     * Atomically reserves a range of key indices
+     * <p>
+     * The cursor is a single counter document that is advanced with findOneAndUpdate, so reserving
+     * takes constant time no matter how many addresses were generated before.
+     *
+     * @param amount The amount of indices to reserve
+     *
+     * @return The first reserved index
+     */
+    @Override
+    public CompletableFuture<Integer> reserveIndices(final int amount) {
+        return this.initializeCursor().thenCompose(unused -> this.adapter.first(this.counters.findOneAndUpdate(
+                Filters.eq("_id", CURSOR_ID), Updates.inc("value", amount),
+                new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER)
+        ))).thenApply(counter -> ((Number) counter.get("value")).intValue() - amount)
+                .whenComplete(this.adapter.logFailure("Failed to reserve address indices"));
+    }
+
+    /**
+     * Makes sure the cursor never starts below an index that was generated before the cursor existed
+     *
+     * @return A callback
+     */
+    private synchronized CompletableFuture<Void> initializeCursor() {
+        if (this.cursorFuture != null) {
+            return this.cursorFuture;
+        }
+
+        final CompletableFuture<Void> future = this.adapter.first(this.collection.find().sort(Sorts.descending("index")).first())
+                .thenCompose(address -> this.adapter.completion(this.counters.updateOne(Filters.eq("_id", CURSOR_ID),
+                        Updates.max("value", address == null ? 0 : address.getKeyIndex() + 1), new UpdateOptions().upsert(true))));
+        this.cursorFuture = future;
+        future.whenComplete((unused, throwable) -> {
+            if (throwable != null) {
+                this.failCursor(future, throwable);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Forgets a failed cursor initialization so the next reservation tries again
+     *
+     * @param future    The initialization callback
+     * @param throwable The error
+     */
+    private synchronized void failCursor(final CompletableFuture<Void> future, final Throwable throwable) {
+        this.adapter.logFailure("Failed to initialize address cursor").accept(null, throwable);
+        if (this.cursorFuture == future) {
+            this.cursorFuture = null;
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+package de.cerus.iotaspigotpoc.storage.analytics;
+
+import de.cerus.iotaspigotpoc.model.CompletedTransaction;
+import de.cerus.iotaspigotpoc.model.RollupPeriod;
+import de.cerus.iotaspigotpoc.model.SalesRollup;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public interface SalesAnalyticsStorageService {
+
+    /**
+     * Adds completed transactions to the rollups
+     * <p>
+     * Called by the completed transaction storage once the transactions are stored, every transaction has to be
+     * recorded exactly once.
+     *
+     * @param transactions The transactions
+     *
+     * @return A callback
+     */
+    CompletableFuture<Void> recordSales(Collection<CompletedTransaction> transactions);
+
+    /**
+     * Retrieves the all-time rollup of every product
+     *
+     * @return A list of rollups, the one of {@link SalesRollup#ALL_PRODUCTS} included
+     */
+    CompletableFuture<List<SalesRollup>> retrieveTotals();
+
+    /**
+     * Retrieves the rollups of a product within a time span
+     * <p>
+     * Buckets without sales have no rollup.
+     *
+     * @param period    The period, not {@link RollupPeriod#TOTAL}
+     * @param productId The product id or {@link SalesRollup#ALL_PRODUCTS}
+     * @param from      The start of the time span, inclusive
+     * @param to        The end of the time span, exclusive
+     *
+     * @return A list of rollups, oldest first
+     */
+    CompletableFuture<List<SalesRollup>> retrieveBuckets(RollupPeriod period, int productId, long from, long to);
+
+    /**
+     * Deletes the rollups of every product whose bucket started before a point in time
+     *
+     * @param period The period, not {@link RollupPeriod#TOTAL}
+     * @param before Buckets that started before this timestamp are deleted
+     *
+     * @return A callback
+     */
+    CompletableFuture<Void> deleteBuckets(RollupPeriod period, long before);
+
+}
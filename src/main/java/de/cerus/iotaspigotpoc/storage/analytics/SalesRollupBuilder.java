@@ -0,0 +1,81 @@
+package de.cerus.iotaspigotpoc.storage.analytics;
+
+import de.cerus.iotaspigotpoc.model.CompletedTransaction;
+import de.cerus.iotaspigotpoc.model.RollupPeriod;
+import de.cerus.iotaspigotpoc.model.SalesRollup;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adds up the rollup changes of a batch of sales
+ * <p>
+ * Every sale counts towards the total, hourly and daily rollups of its product and of every product. The sales of
+ * a batch mostly share their buckets, so their changes are combined and every rollup is written once per batch.
+ */
+public final class SalesRollupBuilder {
+
+    private final Map<String, SalesRollup> rollups = new LinkedHashMap<>();
+
+    /**
+     * Adds a completed transaction
+     *
+     * @param transaction The transaction
+     *
+     * @return This builder
+     */
+    public SalesRollupBuilder add(final CompletedTransaction transaction) {
+        return this.add(transaction.getProductId(), transaction.getIotaAmount(), transaction.getCompletedTimestamp());
+    }
+
+    /**
+     * Adds a sale
+     *
+     * @param productId  The id of the sold product
+     * @param iotaAmount The amount of IOTA that was paid
+     * @param timestamp  The time of the sale
+     *
+     * @return This builder
+     */
+    public SalesRollupBuilder add(final int productId, final long iotaAmount, final long timestamp) {
+        for (final RollupPeriod period : RollupPeriod.values()) {
+            final long bucket = period.bucketOf(timestamp);
+            this.addTo(period, productId, bucket, iotaAmount);
+            this.addTo(period, SalesRollup.ALL_PRODUCTS, bucket, iotaAmount);
+        }
+        return this;
+    }
+
+    /**
+     * Adds a sale to a single rollup
+     *
+     * @param period     The period
+     * @param productId  The product id or {@link SalesRollup#ALL_PRODUCTS}
+     * @param bucket     The start of the bucket
+     * @param iotaAmount The amount of IOTA that was paid
+     */
+    private void addTo(final RollupPeriod period, final int productId, final long bucket, final long iotaAmount) {
+        this.rollups.merge(SalesRollup.idOf(period, productId, bucket), SalesRollup.empty(period, productId, bucket).plus(1, iotaAmount),
+                (rollup, sale) -> rollup.plus(sale.getSales(), sale.getTotalIota()));
+    }
+
+    /**
+     * Checks whether no sale was added
+     *
+     * @return True if nothing was added
+     */
+    public boolean isEmpty() {
+        return this.rollups.isEmpty();
+    }
+
+    /**
+     * Returns the changes of every rollup the added sales count towards
+     *
+     * @return A list of rollups that only hold the added sales
+     */
+    public List<SalesRollup> build() {
+        return new ArrayList<>(this.rollups.values());
+    }
+
+}
@@ -0,0 +1,59 @@
+package de.cerus.iotaspigotpoc.storage.analytics;
+
+import de.cerus.iotaspigotpoc.model.RollupPeriod;
+import java.util.concurrent.TimeUnit;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Periodically deletes old hourly sales rollups
+ * <p>
+ * Every product gets a new hourly rollup every hour it is sold, the daily and total rollups are kept forever.
+ */
+public class SalesRollupCleaner {
+
+    private static final long INTERVAL_TICKS = 60 * 60 * 20;
+
+    private final JavaPlugin plugin;
+    private final SalesAnalyticsStorageService salesAnalyticsStorageService;
+    private final long retentionMillis;
+    private BukkitTask task;
+
+    public SalesRollupCleaner(final JavaPlugin plugin, final SalesAnalyticsStorageService salesAnalyticsStorageService) {
+        this.plugin = plugin;
+        this.salesAnalyticsStorageService = salesAnalyticsStorageService;
+        this.retentionMillis = TimeUnit.DAYS.toMillis(Math.max(1, plugin.getConfig().getLong("storage.rollups.hour-retention", 30)));
+    }
+
+    /**
+     * Starts cleaning up, the first run happens right away
+     */
+    public void start() {
+        this.task = Bukkit.getScheduler().runTaskTimerAsynchronously(this.plugin, this::cleanUp, 0, INTERVAL_TICKS);
+    }
+
+    /**
+     * Stops cleaning up
+     */
+    public void stop() {
+        if (this.task != null) {
+            this.task.cancel();
+            this.task = null;
+        }
+    }
+
+    /**
+     * Deletes the hourly rollups that are older than the retention time
+     */
+    private void cleanUp() {
+        final long before = RollupPeriod.HOUR.bucketOf(System.currentTimeMillis() - this.retentionMillis);
+        this.salesAnalyticsStorageService.deleteBuckets(RollupPeriod.HOUR, before).whenComplete((unused, throwable) -> {
+            if (throwable != null) {
+                this.plugin.getLogger().warning("Failed to delete old hourly sales rollups");
+                this.plugin.getLogger().warning(throwable.getMessage());
+            }
+        });
+    }
+
+}
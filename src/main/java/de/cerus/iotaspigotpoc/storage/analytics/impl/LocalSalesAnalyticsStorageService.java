@@ -0,0 +1,212 @@
+package de.cerus.iotaspigotpoc.storage.analytics.impl;
+
+import com.google.gson.Gson;
+import de.cerus.iotaspigotpoc.model.CompletedTransaction;
+import de.cerus.iotaspigotpoc.model.RollupPeriod;
+import de.cerus.iotaspigotpoc.model.SalesRollup;
+import de.cerus.iotaspigotpoc.storage.analytics.SalesAnalyticsStorageService;
+import de.cerus.iotaspigotpoc.storage.analytics.SalesRollupBuilder;
+import de.cerus.iotaspigotpoc.storage.log.AppendOnlyLog;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Sales rollup storage that lives in memory and is persisted in an append-only log
+ * <p>
+ * There is one rollup per product and bucket, not per transaction, so reads scan the rollups instead of keeping
+ * an index.
+ */
+public class LocalSalesAnalyticsStorageService implements SalesAnalyticsStorageService {
+
+    private final Map<String, SalesRollup> rollups = new HashMap<>();
+    private final AppendOnlyLog<SalesRollup> log;
+
+    public LocalSalesAnalyticsStorageService(final Path directory, final Gson gson, final boolean fsync, final Logger logger) {
+        this.log = new AppendOnlyLog<>(directory.resolve("sales_rollups.jsonl"), SalesRollup.class, gson, fsync,
+                this::size, this::snapshot, logger);
+    }
+
+    /**
+     * Loads the rollups from the log
+     *
+     * @throws IOException If the log can't be read
+     */
+    public void load() throws IOException {
+        this.log.open((key, rollup) -> {
+            if (rollup == null) {
+                this.rollups.remove(key);
+            } else {
+                this.rollups.put(key, rollup);
+            }
+        });
+    }
+
+    /**
+     * Adds completed transactions to the rollups
+     *
+     * @param transactions The transactions
+     *
+     * @return A callback
+     */
+    @Override
+    public synchronized CompletableFuture<Void> recordSales(final Collection<CompletedTransaction> transactions) {
+        final SalesRollupBuilder builder = new SalesRollupBuilder();
+        transactions.forEach(builder::add);
+
+        final List<CompletableFuture<Void>> writeFutures = new ArrayList<>();
+        for (final SalesRollup change : builder.build()) {
+            final SalesRollup rollup = this.rollups.merge(change.getRollupId(), change,
+                    (current, added) -> current.plus(added.getSales(), added.getTotalIota()));
+            writeFutures.add(this.log.put(rollup.getRollupId(), rollup));
+        }
+        return CompletableFuture.allOf(writeFutures.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Retrieves the all-time rollup of every product
+     *
+     * @return A list of rollups, the one of {@link SalesRollup#ALL_PRODUCTS} included
+     */
+    @Override
+    public synchronized CompletableFuture<List<SalesRollup>> retrieveTotals() {
+        return CompletableFuture.completedFuture(this.rollups.values().stream()
+                .filter(rollup -> rollup.getPeriod() == RollupPeriod.TOTAL)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Retrieves the rollups of a product within a time span
+     *
+     * @param period    The period, not {@link RollupPeriod#TOTAL}
+     * @param productId The product id or {@link SalesRollup#ALL_PRODUCTS}
+     * @param from      The start of the time span, inclusive
+     * @param to        The end of the time span, exclusive
+     *
+     * @return A list of rollups, oldest first
+     */
+    @Override
+    public synchronized CompletableFuture<List<SalesRollup>> retrieveBuckets(final RollupPeriod period, final int productId, final long from, final long to) {
+        return CompletableFuture.completedFuture(this.rollups.values().stream()
+                .filter(rollup -> rollup.getPeriod() == period && rollup.getProductId() == productId)
+                .filter(rollup -> rollup.getBucket() >= from && rollup.getBucket() < to)
+                .sorted(Comparator.comparingLong(SalesRollup::getBucket))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Deletes the rollups of every product whose bucket started before a point in time
+     *
+     * @param period The period, not {@link RollupPeriod#TOTAL}
+     * @param before Buckets that started before this timestamp are deleted
+     *
+     * @return A callback
+     */
+    @Override
+    public synchronized CompletableFuture<Void> deleteBuckets(final RollupPeriod period, final long before) {
+        final List<CompletableFuture<Void>> deleteFutures = new ArrayList<>();
+        this.rollups.values().removeIf(rollup -> {
+            if (rollup.getPeriod() != period || rollup.getBucket() >= before) {
+                return false;
+            }
+            deleteFutures.add(this.log.delete(rollup.getRollupId()));
+            return true;
+        });
+        return CompletableFuture.allOf(deleteFutures.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Checks whether there are no rollups yet
+     *
+     * @return Whether there are no rollups
+     */
+    public synchronized boolean isEmpty() {
+        return this.rollups.isEmpty();
+    }
+
+    /**
+     * Builds the rollups of transactions that were completed before the rollups existed
+     * <p>
+     * Only does something if there are no rollups yet.
+     *
+     * @param transactions Every completed transaction, the archived ones included
+     *
+     * @return A callback
+     */
+    public synchronized CompletableFuture<Void> buildIfEmpty(final Collection<CompletedTransaction> transactions) {
+        if (!this.rollups.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return this.recordSales(transactions);
+    }
+
+    /**
+     * Stores rollups that were exported from another storage
+     * <p>
+     * The rollups replace the existing ones, they already count every transaction of the other storage.
+     *
+     * @param rollups The rollups
+     *
+     * @return A callback
+     */
+    public synchronized CompletableFuture<Void> restore(final Collection<SalesRollup> rollups) {
+        final List<CompletableFuture<Void>> writeFutures = new ArrayList<>();
+        for (final SalesRollup rollup : rollups) {
+            this.rollups.put(rollup.getRollupId(), rollup);
+            writeFutures.add(this.log.put(rollup.getRollupId(), rollup));
+        }
+        return CompletableFuture.allOf(writeFutures.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Retrieves every rollup
+     *
+     * @return A collection of rollups
+     */
+    public synchronized Collection<SalesRollup> retrieveEverything() {
+        return new ArrayList<>(this.rollups.values());
+    }
+
+    /**
+     * Closes the log
+     */
+    public void close() {
+        this.log.close();
+    }
+
+    /**
+     * Returns the log the rollups are persisted in
+     *
+     * @return The log
+     */
+    public AppendOnlyLog<SalesRollup> getLog() {
+        return this.log;
+    }
+
+    /**
+     * Returns the amount of stored rollups
+     *
+     * @return The amount of rollups
+     */
+    private synchronized int size() {
+        return this.rollups.size();
+    }
+
+    /**
+     * Copies the stored rollups for a compaction of the log
+     *
+     * @return The rollups by id
+     */
+    private synchronized Map<String, SalesRollup> snapshot() {
+        return new HashMap<>(this.rollups);
+    }
+
+}
@@ -0,0 +1,111 @@
+package de.cerus.iotaspigotpoc.storage.analytics.impl;
+
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import de.cerus.iotaspigotpoc.model.CompletedTransaction;
+import de.cerus.iotaspigotpoc.model.RollupPeriod;
+import de.cerus.iotaspigotpoc.model.SalesRollup;
+import de.cerus.iotaspigotpoc.storage.analytics.SalesAnalyticsStorageService;
+import de.cerus.iotaspigotpoc.storage.analytics.SalesRollupBuilder;
+import de.cerus.iotaspigotpoc.util.PublisherAdapter;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+public class MongoDbSalesAnalyticsStorageService implements SalesAnalyticsStorageService {
+
+    private final PublisherAdapter adapter;
+    private final MongoCollection<SalesRollup> collection;
+
+    public MongoDbSalesAnalyticsStorageService(final MongoDatabase database, final PublisherAdapter adapter) {
+        this.adapter = adapter;
+        this.collection = database.getCollection("sales_rollups", SalesRollup.class);
+    }
+
+    /**
+     * Adds completed transactions to the rollups
+     * <p>
+     * The changes of the transactions are combined per rollup and applied with $inc upserts, so concurrent updates
+     * from other servers don't get lost.
+     *
+     * @param transactions The transactions
+     *
+     * @return A callback
+     */
+    @Override
+    public CompletableFuture<Void> recordSales(final Collection<CompletedTransaction> transactions) {
+        final SalesRollupBuilder builder = new SalesRollupBuilder();
+        transactions.forEach(builder::add);
+        if (builder.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final List<WriteModel<SalesRollup>> updates = builder.build().stream()
+                .map(rollup -> new UpdateOneModel<SalesRollup>(Filters.eq("_id", rollup.getRollupId()), Updates.combine(
+                        Updates.setOnInsert("period", rollup.getPeriod().name()),
+                        Updates.setOnInsert("product", rollup.getProductId()),
+                        Updates.setOnInsert("bucket", rollup.getBucket()),
+                        Updates.inc("count", rollup.getSales()),
+                        Updates.inc("iota", rollup.getTotalIota())
+                ), new UpdateOptions().upsert(true)))
+                .collect(Collectors.toList());
+        return this.adapter.completion(this.collection.bulkWrite(updates, new BulkWriteOptions().ordered(false)))
+                .whenComplete(this.adapter.logFailure("Failed to update sales rollups"));
+    }
+
+    /**
+     * Retrieves the all-time rollup of every product
+     *
+     * @return A list of rollups, the one of {@link SalesRollup#ALL_PRODUCTS} included
+     */
+    @Override
+    public CompletableFuture<List<SalesRollup>> retrieveTotals() {
+        return this.adapter.toList(this.collection.find(Filters.eq("period", RollupPeriod.TOTAL.name())))
+                .whenComplete(this.adapter.logFailure("Failed to retrieve sales rollups"));
+    }
+
+    /**
+     * Retrieves the rollups of a product within a time span
+     *
+     * @param period    The period, not {@link RollupPeriod#TOTAL}
+     * @param productId The product id or {@link SalesRollup#ALL_PRODUCTS}
+     * @param from      The start of the time span, inclusive
+     * @param to        The end of the time span, exclusive
+     *
+     * @return A list of rollups, oldest first
+     */
+    @Override
+    public CompletableFuture<List<SalesRollup>> retrieveBuckets(final RollupPeriod period, final int productId, final long from, final long to) {
+        return this.adapter.toList(this.collection.find(Filters.and(
+                Filters.eq("period", period.name()),
+                Filters.eq("product", productId),
+                Filters.gte("bucket", from),
+                Filters.lt("bucket", to)
+        )).sort(Sorts.ascending("bucket"))).whenComplete(this.adapter.logFailure("Failed to retrieve sales rollups"));
+    }
+
+    /**
+     * Deletes the rollups of every product whose bucket started before a point in time
+     *
+     * @param period The period, not {@link RollupPeriod#TOTAL}
+     * @param before Buckets that started before this timestamp are deleted
+     *
+     * @return A callback
+     */
+    @Override
+    public CompletableFuture<Void> deleteBuckets(final RollupPeriod period, final long before) {
+        return this.adapter.completion(this.collection.deleteMany(Filters.and(
+                Filters.eq("period", period.name()),
+                Filters.lt("bucket", before)
+        ))).whenComplete(this.adapter.logFailure("Failed to delete sales rollups"));
+    }
+
+}
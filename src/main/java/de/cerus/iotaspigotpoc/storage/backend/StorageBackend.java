@@ -0,0 +1,94 @@
+package de.cerus.iotaspigotpoc.storage.backend;
+
+import de.cerus.iotaspigotpoc.storage.address.AddressStorageService;
+import de.cerus.iotaspigotpoc.storage.analytics.SalesAnalyticsStorageService;
+import de.cerus.iotaspigotpoc.storage.batch.BatchingWriter;
+import de.cerus.iotaspigotpoc.storage.completed.CompletedTransactionStorageService;
+import de.cerus.iotaspigotpoc.storage.delivery.OfflineDeliveryStorageService;
+import de.cerus.iotaspigotpoc.storage.pending.PendingTransactionStorageService;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Provides the storage services of one kind of storage
+ */
+public interface StorageBackend {
+
+    /**
+     * Prepares the storage, e.g. creates indices or loads files
+     *
+     * @return A callback that completes once the services can be used
+     */
+    CompletableFuture<Void> initialize();
+
+    /**
+     * Writes everything that is queued and releases the storage
+     */
+    void close();
+
+    /**
+     * Exports the transaction data of this storage
+     *
+     * @return A callback with the snapshot
+     */
+    CompletableFuture<StorageSnapshot> exportSnapshot();
+
+    /**
+     * Imports transaction data that was exported from another storage
+     *
+     * @param snapshot The snapshot
+     *
+     * @return A callback
+     */
+    CompletableFuture<Void> importSnapshot(StorageSnapshot snapshot);
+
+    /**
+     * Returns the type of this backend
+     *
+     * @return The type
+     */
+    StorageBackendType getType();
+
+    /**
+     * Returns the writers that group the writes of this storage
+     *
+     * @return A collection of batching writers
+     */
+    Collection<BatchingWriter<?>> getWriters();
+
+    /**
+     * Returns the pending transaction storage
+     *
+     * @return The storage service
+     */
+    PendingTransactionStorageService getPendingTransactionStorageService();
+
+    /**
+     * Returns the completed transaction storage
+     *
+     * @return The storage service
+     */
+    CompletedTransactionStorageService getCompletedTransactionStorageService();
+
+    /**
+     * Returns the address storage
+     *
+     * @return The storage service
+     */
+    AddressStorageService getAddressStorageService();
+
+    /**
+     * Returns the storage of deliveries that wait for their player to join
+     *
+     * @return The storage service
+     */
+    OfflineDeliveryStorageService getOfflineDeliveryStorageService();
+
+    /**
+     * Returns the storage of the sales rollups
+     *
+     * @return The storage service
+     */
+    SalesAnalyticsStorageService getSalesAnalyticsStorageService();
+
+}
@@ -0,0 +1,38 @@
+package de.cerus.iotaspigotpoc.storage.backend;
+
+import de.cerus.iotaspigotpoc.storage.backend.impl.LocalStorageBackend;
+import de.cerus.iotaspigotpoc.storage.backend.impl.MongoDbStorageBackend;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * The available storage backends
+ */
+public enum StorageBackendType {
+
+    /**
+     * Everything is stored in MongoDB, multiple servers can share the storage
+     */
+    MONGO,
+    /**
+     * Everything is stored in files in the plugin folder and kept in memory
+     */
+    LOCAL;
+
+    /**
+     * Creates a new backend of this type
+     *
+     * @param plugin The plugin
+     *
+     * @return A new, uninitialized backend
+     */
+    public StorageBackend create(final JavaPlugin plugin) {
+        switch (this) {
+            case LOCAL:
+                return new LocalStorageBackend(plugin);
+            case MONGO:
+            default:
+                return new MongoDbStorageBackend(plugin);
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+package de.cerus.iotaspigotpoc.storage.backend;
+
+import de.cerus.iotaspigotpoc.storage.address.AddressStorageService;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Copies the data of one storage backend into another
+ * <p>
+ * The migration should run while no purchases are made, changes made during the migration may not be copied.
+ * Archived completed transactions stay where they are.
+ */
+public class StorageMigrator {
+
+    private final StorageBackend source;
+    private final StorageBackend target;
+
+    /**
+     * @param source The backend to copy from, has to be initialized
+     * @param target The backend to copy into, will be initialized by the migration
+     */
+    public StorageMigrator(final StorageBackend source, final StorageBackend target) {
+        this.source = source;
+        this.target = target;
+    }
+
+    /**
+     * Copies the transactions, summaries, sales rollups, offline deliveries and pooled addresses
+     * <p>
+     * Data that already exists in the target is kept, so running a migration twice is safe.
+     *
+     * @return A callback with the amount of copied data
+     */
+    public CompletableFuture<Result> migrate() {
+        return this.target.initialize()
+                .thenCompose(unused -> this.source.exportSnapshot())
+                .thenCompose(snapshot -> this.target.importSnapshot(snapshot)
+                        .thenCompose(unused -> this.migrateAddresses())
+                        .thenApply(addresses -> new Result(snapshot.getPendingTransactions().size(),
+                                snapshot.getCompletedTransactions().size(), snapshot.getPlayerSummaries().size(),
+                                snapshot.getSalesRollups().size(), snapshot.getOfflineDeliveries().size(), addresses)));
+    }
+
+    /**
+     * Copies the pooled addresses and moves the address cursor of the target past the cursor of the source
+     *
+     * @return A callback with the amount of copied addresses
+     */
+    private CompletableFuture<Integer> migrateAddresses() {
+        final AddressStorageService sourceAddresses = this.source.getAddressStorageService();
+        final AddressStorageService targetAddresses = this.target.getAddressStorageService();
+
+        // Reserving nothing returns the current cursor
+        return sourceAddresses.reserveIndices(0).thenCombine(targetAddresses.reserveIndices(0), (sourceCursor, targetCursor) ->
+                targetAddresses.reserveIndices(Math.max(0, sourceCursor - targetCursor)))
+                .thenCompose(reserveFuture -> reserveFuture)
+                .thenCompose(unused -> sourceAddresses.retrieveAvailable())
+                .thenCompose(addresses -> targetAddresses.storeAddresses(addresses).thenApply(unused -> addresses.size()));
+    }
+
+    /**
+     * Amounts of data copied by a migration
+     */
+    public static final class Result {
+
+        private final int pendingTransactions;
+        private final int completedTransactions;
+        private final int playerSummaries;
+        private final int salesRollups;
+        private final int offlineDeliveries;
+        private final int addresses;
+
+        private Result(final int pendingTransactions, final int completedTransactions, final int playerSummaries,
+                       final int salesRollups, final int offlineDeliveries, final int addresses) {
+            this.pendingTransactions = pendingTransactions;
+            this.completedTransactions = completedTransactions;
+            this.playerSummaries = playerSummaries;
+            this.salesRollups = salesRollups;
+            this.offlineDeliveries = offlineDeliveries;
+            this.addresses = addresses;
+        }
+
+        public int getPendingTransactions() {
+            return this.pendingTransactions;
+        }
+
+        public int getCompletedTransactions() {
+            return this.completedTransactions;
+        }
+
+        public int getPlayerSummaries() {
+            return this.playerSummaries;
+        }
+
+        public int getSalesRollups() {
+            return this.salesRollups;
+        }
+
+        public int getOfflineDeliveries() {
+            return this.offlineDeliveries;
+        }
+
+        public int getAddresses() {
+            return this.addresses;
+        }
+
+    }
+
+}
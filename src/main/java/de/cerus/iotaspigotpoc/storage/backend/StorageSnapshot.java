@@ -0,0 +1,70 @@
+package de.cerus.iotaspigotpoc.storage.backend;
+
+import de.cerus.iotaspigotpoc.model.CompletedTransaction;
+import de.cerus.iotaspigotpoc.model.Delivery;
+import de.cerus.iotaspigotpoc.model.PendingTransaction;
+import de.cerus.iotaspigotpoc.model.PlayerSummary;
+import de.cerus.iotaspigotpoc.model.SalesRollup;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Transaction data exported from a storage backend
+ * <p>
+ * Archived completed transactions are not part of a snapshot, their totals are carried over by the summaries and
+ * the sales rollups.
+ */
+public class StorageSnapshot {
+
+    private final Collection<PendingTransaction> pendingTransactions;
+    private final Map<UUID, String> claimedHashes;
+    private final Collection<CompletedTransaction> completedTransactions;
+    private final Collection<PlayerSummary> playerSummaries;
+    private final Collection<Delivery> offlineDeliveries;
+    private final Collection<SalesRollup> salesRollups;
+
+    /**
+     * @param pendingTransactions   Every pending transaction, open or closed
+     * @param claimedHashes         The payment hashes claimed by completed pending transactions, by transaction id
+     * @param completedTransactions Every completed transaction that was not archived
+     * @param playerSummaries       Every player summary
+     * @param offlineDeliveries     Every delivery that waits for its player to join
+     * @param salesRollups          Every sales rollup
+     */
+    public StorageSnapshot(final Collection<PendingTransaction> pendingTransactions, final Map<UUID, String> claimedHashes,
+                           final Collection<CompletedTransaction> completedTransactions, final Collection<PlayerSummary> playerSummaries,
+                           final Collection<Delivery> offlineDeliveries, final Collection<SalesRollup> salesRollups) {
+        this.pendingTransactions = pendingTransactions;
+        this.claimedHashes = claimedHashes;
+        this.completedTransactions = completedTransactions;
+        this.playerSummaries = playerSummaries;
+        this.offlineDeliveries = offlineDeliveries;
+        this.salesRollups = salesRollups;
+    }
+
+    public Collection<PendingTransaction> getPendingTransactions() {
+        return this.pendingTransactions;
+    }
+
+    public Map<UUID, String> getClaimedHashes() {
+        return this.claimedHashes;
+    }
+
+    public Collection<CompletedTransaction> getCompletedTransactions() {
+        return this.completedTransactions;
+    }
+
+    public Collection<PlayerSummary> getPlayerSummaries() {
+        return this.playerSummaries;
+    }
+
+    public Collection<Delivery> getOfflineDeliveries() {
+        return this.offlineDeliveries;
+    }
+
+    public Collection<SalesRollup> getSalesRollups() {
+        return this.salesRollups;
+    }
+
+}
@@ -0,0 +1,223 @@
+package de.cerus.iotaspigotpoc.storage.backend.impl;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import de.cerus.iotaspigotpoc.model.CompletedTransaction;
+import de.cerus.iotaspigotpoc.model.PendingTransaction;
+import de.cerus.iotaspigotpoc.storage.address.AddressStorageService;
+import de.cerus.iotaspigotpoc.storage.address.impl.LocalAddressStorageService;
+import de.cerus.iotaspigotpoc.storage.analytics.SalesAnalyticsStorageService;
+import de.cerus.iotaspigotpoc.storage.analytics.impl.LocalSalesAnalyticsStorageService;
+import de.cerus.iotaspigotpoc.storage.backend.StorageBackend;
+import de.cerus.iotaspigotpoc.storage.backend.StorageBackendType;
+import de.cerus.iotaspigotpoc.storage.backend.StorageSnapshot;
+import de.cerus.iotaspigotpoc.storage.batch.BatchingWriter;
+import de.cerus.iotaspigotpoc.storage.completed.CompletedTransactionStorageService;
+import de.cerus.iotaspigotpoc.storage.completed.impl.LocalCompletedTransactionStorageService;
+import de.cerus.iotaspigotpoc.storage.delivery.OfflineDeliveryStorageService;
+import de.cerus.iotaspigotpoc.storage.delivery.impl.LocalOfflineDeliveryStorageService;
+import de.cerus.iotaspigotpoc.storage.pending.PendingTransactionStorageService;
+import de.cerus.iotaspigotpoc.storage.pending.impl.LocalPendingTransactionStorageService;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * Stores everything in append-only logs in the plugin folder and keeps it in memory
+ * <p>
+ * Reads never leave the process, writes are grouped and appended in the background. Only a single server can
+ * use this storage.
+ */
+public class LocalStorageBackend implements StorageBackend {
+
+    private final LocalPendingTransactionStorageService pendingTransactionStorageService;
+    private final LocalCompletedTransactionStorageService completedTransactionStorageService;
+    private final LocalAddressStorageService addressStorageService;
+    private final LocalOfflineDeliveryStorageService offlineDeliveryStorageService;
+    private final LocalSalesAnalyticsStorageService salesAnalyticsStorageService;
+
+    public LocalStorageBackend(final JavaPlugin plugin) {
+        final FileConfiguration config = plugin.getConfig();
+        final Path directory = plugin.getDataFolder().toPath().resolve(config.getString("storage.local.directory", "storage"));
+        final boolean fsync = config.getBoolean("storage.local.fsync", true);
+        final long retentionMillis = Math.max(1, config.getLong("transaction.retention", 30)) * 24 * 60 * 60 * 1000;
+
+        final Gson gson = new GsonBuilder().create();
+        this.pendingTransactionStorageService = new LocalPendingTransactionStorageService(directory, gson, fsync,
+                retentionMillis, plugin.getLogger());
+        this.salesAnalyticsStorageService = new LocalSalesAnalyticsStorageService(directory, gson, fsync, plugin.getLogger());
+        this.completedTransactionStorageService = new LocalCompletedTransactionStorageService(directory, gson, fsync,
+                this.salesAnalyticsStorageService, plugin.getLogger());
+        this.addressStorageService = new LocalAddressStorageService(directory, gson, fsync, plugin.getLogger());
+        this.offlineDeliveryStorageService = new LocalOfflineDeliveryStorageService(directory, gson, fsync, plugin.getLogger());
+    }
+
+    /**
+     * Loads the logs into memory
+     * <p>
+     * The sales rollups are built from the stored and archived transactions if there are none yet, e.g. after an
+     * update.
+     *
+     * @return A callback
+     */
+    @Override
+    public CompletableFuture<Void> initialize() {
+        final List<CompletedTransaction> completedTransactions = new ArrayList<>();
+        try {
+            this.pendingTransactionStorageService.load();
+            this.completedTransactionStorageService.load();
+            this.addressStorageService.load();
+            this.offlineDeliveryStorageService.load();
+            this.salesAnalyticsStorageService.load();
+
+            // The archives are only read if the rollups have to be built
+            if (this.salesAnalyticsStorageService.isEmpty()) {
+                completedTransactions.addAll(this.completedTransactionStorageService.retrieveEverything());
+                completedTransactions.addAll(this.completedTransactionStorageService.retrieveArchived());
+            }
+        } catch (final IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return this.salesAnalyticsStorageService.buildIfEmpty(completedTransactions);
+    }
+
+    /**
+     * Writes everything that is queued and closes the logs
+     */
+    @Override
+    public void close() {
+        this.pendingTransactionStorageService.close();
+        this.completedTransactionStorageService.close();
+        this.addressStorageService.close();
+        this.offlineDeliveryStorageService.close();
+        this.salesAnalyticsStorageService.close();
+    }
+
+    /**
+     * Exports the transaction data of this storage
+     *
+     * @return A callback with the snapshot
+     */
+    @Override
+    public CompletableFuture<StorageSnapshot> exportSnapshot() {
+        final List<PendingTransaction> pendingTransactions = new ArrayList<>();
+        final Map<UUID, String> claimedHashes = new HashMap<>();
+        for (final LocalPendingTransactionStorageService.StoredTransaction storedTransaction : this.pendingTransactionStorageService.retrieveEverything()) {
+            pendingTransactions.add(storedTransaction.getTransaction());
+            if (storedTransaction.getHash() != null) {
+                claimedHashes.put(storedTransaction.getTransaction().getTransactionId(), storedTransaction.getHash());
+            }
+        }
+
+        return CompletableFuture.completedFuture(new StorageSnapshot(pendingTransactions, claimedHashes,
+                this.completedTransactionStorageService.retrieveEverything(), this.completedTransactionStorageService.retrieveSummaries(),
+                this.offlineDeliveryStorageService.retrieveEverything(), this.salesAnalyticsStorageService.retrieveEverything()));
+    }
+
+    /**
+     * Imports transaction data that was exported from another storage
+     *
+     * @param snapshot The snapshot
+     *
+     * @return A callback
+     */
+    @Override
+    public CompletableFuture<Void> importSnapshot(final StorageSnapshot snapshot) {
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (final PendingTransaction transaction : snapshot.getPendingTransactions()) {
+            futures.add(this.pendingTransactionStorageService.restore(transaction,
+                    snapshot.getClaimedHashes().get(transaction.getTransactionId())));
+        }
+        futures.add(this.completedTransactionStorageService.restore(snapshot.getCompletedTransactions(), snapshot.getPlayerSummaries()));
+        snapshot.getOfflineDeliveries().forEach(delivery -> futures.add(this.offlineDeliveryStorageService.storeDelivery(delivery)));
+        futures.add(this.salesAnalyticsStorageService.restore(snapshot.getSalesRollups()));
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Returns the type of this backend
+     *
+     * @return The type
+     */
+    @Override
+    public StorageBackendType getType() {
+        return StorageBackendType.LOCAL;
+    }
+
+    /**
+     * Returns the writers that group the appends of the logs
+     *
+     * @return A collection of batching writers
+     */
+    @Override
+    public Collection<BatchingWriter<?>> getWriters() {
+        return Arrays.asList(
+                this.pendingTransactionStorageService.getLog().getWriter(),
+                this.completedTransactionStorageService.getLog().getWriter(),
+                this.completedTransactionStorageService.getSummaryLog().getWriter(),
+                this.addressStorageService.getLog().getWriter(),
+                this.offlineDeliveryStorageService.getLog().getWriter(),
+                this.salesAnalyticsStorageService.getLog().getWriter()
+        );
+    }
+
+    /**
+     * Returns the pending transaction storage
+     *
+     * @return The storage service
+     */
+    @Override
+    public PendingTransactionStorageService getPendingTransactionStorageService() {
+        return this.pendingTransactionStorageService;
+    }
+
+    /**
+     * Returns the completed transaction storage
+     *
+     * @return The storage service
+     */
+    @Override
+    public CompletedTransactionStorageService getCompletedTransactionStorageService() {
+        return this.completedTransactionStorageService;
+    }
+
+    /**
+     * Returns the address storage
+     *
+     * @return The storage service
+     */
+    @Override
+    public AddressStorageService getAddressStorageService() {
+        return this.addressStorageService;
+    }
+
+    /**
+     * Returns the storage of deliveries that wait for their player to join
+     *
+     * @return The storage service
+     */
+    @Override
+    public OfflineDeliveryStorageService getOfflineDeliveryStorageService() {
+        return this.offlineDeliveryStorageService;
+    }
+
+    /**
+     * Returns the storage of the sales rollups
+     *
+     * @return The storage service
+     */
+    @Override
+    public SalesAnalyticsStorageService getSalesAnalyticsStorageService() {
+        return this.salesAnalyticsStorageService;
+    }
+
+}
@@ -0,0 +1,306 @@
+package de.cerus.iotaspigotpoc.storage.backend.impl;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import de.cerus.iotaspigotpoc.model.CompletedTransaction;
+import de.cerus.iotaspigotpoc.model.Delivery;
+import de.cerus.iotaspigotpoc.model.PendingTransaction;
+import de.cerus.iotaspigotpoc.model.PlayerSummary;
+import de.cerus.iotaspigotpoc.model.SalesRollup;
+import de.cerus.iotaspigotpoc.model.TransactionState;
+import de.cerus.iotaspigotpoc.storage.address.AddressStorageService;
+import de.cerus.iotaspigotpoc.storage.address.impl.MongoDbAddressStorageService;
+import de.cerus.iotaspigotpoc.storage.analytics.SalesAnalyticsStorageService;
+import de.cerus.iotaspigotpoc.storage.analytics.impl.MongoDbSalesAnalyticsStorageService;
+import de.cerus.iotaspigotpoc.storage.backend.StorageBackend;
+import de.cerus.iotaspigotpoc.storage.backend.StorageBackendType;
+import de.cerus.iotaspigotpoc.storage.backend.StorageSnapshot;
+import de.cerus.iotaspigotpoc.storage.batch.BatchingWriter;
+import de.cerus.iotaspigotpoc.storage.completed.CompletedTransactionStorageService;
+import de.cerus.iotaspigotpoc.storage.completed.impl.MongoDbCompletedTransactionStorageService;
+import de.cerus.iotaspigotpoc.storage.delivery.OfflineDeliveryStorageService;
+import de.cerus.iotaspigotpoc.storage.delivery.impl.MongoDbOfflineDeliveryStorageService;
+import de.cerus.iotaspigotpoc.storage.pending.PendingTransactionStorageService;
+import de.cerus.iotaspigotpoc.storage.pending.impl.MongoDbPendingTransactionStorageService;
+import de.cerus.iotaspigotpoc.storage.schema.MongoDbSchemaManager;
+import de.cerus.iotaspigotpoc.util.PublisherAdapter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.bson.UuidRepresentation;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.codecs.pojo.PojoCodecProvider;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * Stores everything in MongoDB
+ */
+public class MongoDbStorageBackend implements StorageBackend {
+
+    private final JavaPlugin plugin;
+    private final MongoClient mongoClient;
+    private final MongoDatabase database;
+    private final PublisherAdapter adapter;
+    private final MongoDbPendingTransactionStorageService pendingTransactionStorageService;
+    private final MongoDbCompletedTransactionStorageService completedTransactionStorageService;
+    private final MongoDbAddressStorageService addressStorageService;
+    private final MongoDbOfflineDeliveryStorageService offlineDeliveryStorageService;
+    private final MongoDbSalesAnalyticsStorageService salesAnalyticsStorageService;
+
+    public MongoDbStorageBackend(final JavaPlugin plugin) {
+        this.plugin = plugin;
+        this.mongoClient = this.createMongoClient();
+        this.database = this.mongoClient.getDatabase("iota-spigot-poc");
+        this.adapter = new PublisherAdapter(plugin.getConfig().getInt("storage.mongo.batch-size", 256),
+                plugin.getConfig().getLong("storage.mongo.timeout", 10000), plugin.getLogger());
+        this.pendingTransactionStorageService = new MongoDbPendingTransactionStorageService(this.database, this.adapter);
+        this.salesAnalyticsStorageService = new MongoDbSalesAnalyticsStorageService(this.database, this.adapter);
+        this.completedTransactionStorageService = new MongoDbCompletedTransactionStorageService(this.database, this.adapter,
+                this.salesAnalyticsStorageService, plugin);
+        this.addressStorageService = new MongoDbAddressStorageService(this.database, this.adapter);
+        this.offlineDeliveryStorageService = new MongoDbOfflineDeliveryStorageService(this.database, this.adapter);
+    }
+
+    /**
+     * Brings the schema up to date
+     *
+     * @return A callback
+     */
+    @Override
+    public CompletableFuture<Void> initialize() {
+        return new MongoDbSchemaManager(this.database, this.adapter, this.plugin).initialize();
+    }
+
+    /**
+     * Writes everything that is queued and closes the client
+     * <p>
+     * The client is closed only after the batches that are being written were acknowledged.
+     */
+    @Override
+    public void close() {
+        if (!this.completedTransactionStorageService.getWriter().close()) {
+            this.plugin.getLogger().warning("Closing the MongoDB client before every completed transaction was written");
+        }
+        this.mongoClient.close();
+    }
+
+    /**
+     * Exports the transaction data of this storage
+     * <p>
+     * The claimed hashes are taken from the completed transactions. Closed pending transactions are deleted long
+     * before their completed transaction is archived, so every claimed hash is found.
+     *
+     * @return A callback with the snapshot
+     */
+    @Override
+    public CompletableFuture<StorageSnapshot> exportSnapshot() {
+        final CompletableFuture<List<PendingTransaction>> pendingFuture =
+                this.adapter.toList(this.database.getCollection("pending", PendingTransaction.class).find());
+        final CompletableFuture<List<CompletedTransaction>> completedFuture =
+                this.adapter.toList(this.database.getCollection("completed", CompletedTransaction.class).find());
+        final CompletableFuture<List<PlayerSummary>> summaryFuture =
+                this.adapter.toList(this.database.getCollection("player_summaries", PlayerSummary.class).find());
+        final CompletableFuture<List<Delivery>> deliveryFuture =
+                this.adapter.toList(this.database.getCollection("offline_deliveries", Delivery.class).find());
+        final CompletableFuture<List<SalesRollup>> rollupFuture =
+                this.adapter.toList(this.database.getCollection("sales_rollups", SalesRollup.class).find());
+
+        return CompletableFuture.allOf(pendingFuture, completedFuture, summaryFuture, deliveryFuture, rollupFuture).thenApply(unused -> {
+            final Map<UUID, String> claimedHashes = new HashMap<>();
+            completedFuture.join().forEach(transaction ->
+                    claimedHashes.put(transaction.getLinkedPendingTransactionId(), transaction.getTransactionHash()));
+            return new StorageSnapshot(pendingFuture.join(), claimedHashes, completedFuture.join(), summaryFuture.join(),
+                    deliveryFuture.join(), rollupFuture.join());
+        });
+    }
+
+    /**
+     * Imports transaction data that was exported from another storage
+     * <p>
+     * Documents that already exist are skipped, so an interrupted import can be run again.
+     *
+     * @param snapshot The snapshot
+     *
+     * @return A callback
+     */
+    @Override
+    public CompletableFuture<Void> importSnapshot(final StorageSnapshot snapshot) {
+        final MongoCollection<PendingTransaction> pendingCollection = this.database.getCollection("pending", PendingTransaction.class);
+
+        // Closed transactions need their close time for the TTL index and their hash for the unique index
+        final List<WriteModel<PendingTransaction>> closeUpdates = new ArrayList<>();
+        for (final PendingTransaction transaction : snapshot.getPendingTransactions()) {
+            if (transaction.getState() == TransactionState.OPEN) {
+                continue;
+            }
+
+            final String hash = snapshot.getClaimedHashes().get(transaction.getTransactionId());
+            closeUpdates.add(new UpdateOneModel<>(Filters.eq("_id", transaction.getTransactionId()), hash == null
+                    ? Updates.set("closed_at", new Date())
+                    : Updates.combine(Updates.set("closed_at", new Date()), Updates.set("hash", hash))));
+        }
+
+        return CompletableFuture.allOf(
+                this.insert(pendingCollection, snapshot.getPendingTransactions())
+                        .thenCompose(unused -> this.bulkWrite(pendingCollection, closeUpdates)),
+                this.insert(this.database.getCollection("completed", CompletedTransaction.class), snapshot.getCompletedTransactions()),
+                this.insert(this.database.getCollection("player_summaries", PlayerSummary.class), snapshot.getPlayerSummaries()),
+                this.insert(this.database.getCollection("offline_deliveries", Delivery.class), snapshot.getOfflineDeliveries()),
+                this.insert(this.database.getCollection("sales_rollups", SalesRollup.class), snapshot.getSalesRollups())
+        );
+    }
+
+    /**
+     * Returns the type of this backend
+     *
+     * @return The type
+     */
+    @Override
+    public StorageBackendType getType() {
+        return StorageBackendType.MONGO;
+    }
+
+    /**
+     * Returns the writers that group the writes of this storage
+     *
+     * @return A collection of batching writers
+     */
+    @Override
+    public Collection<BatchingWriter<?>> getWriters() {
+        return Collections.singletonList(this.completedTransactionStorageService.getWriter());
+    }
+
+    /**
+     * Returns the pending transaction storage
+     *
+     * @return The storage service
+     */
+    @Override
+    public PendingTransactionStorageService getPendingTransactionStorageService() {
+        return this.pendingTransactionStorageService;
+    }
+
+    /**
+     * Returns the completed transaction storage
+     *
+     * @return The storage service
+     */
+    @Override
+    public CompletedTransactionStorageService getCompletedTransactionStorageService() {
+        return this.completedTransactionStorageService;
+    }
+
+    /**
+     * Returns the address storage
+     *
+     * @return The storage service
+     */
+    @Override
+    public AddressStorageService getAddressStorageService() {
+        return this.addressStorageService;
+    }
+
+    /**
+     * Returns the storage of deliveries that wait for their player to join
+     *
+     * @return The storage service
+     */
+    @Override
+    public OfflineDeliveryStorageService getOfflineDeliveryStorageService() {
+        return this.offlineDeliveryStorageService;
+    }
+
+    /**
+     * Returns the storage of the sales rollups
+     *
+     * @return The storage service
+     */
+    @Override
+    public SalesAnalyticsStorageService getSalesAnalyticsStorageService() {
+        return this.salesAnalyticsStorageService;
+    }
+
+    /**
+     * Inserts documents, skipping the ones that already exist
+     *
+     * @param collection The collection
+     * @param documents  The documents
+     * @param <T>        The document type
+     *
+     * @return A callback
+     */
+    private <T> CompletableFuture<Void> insert(final MongoCollection<T> collection, final Collection<T> documents) {
+        if (documents.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return this.adapter.completion(collection.insertMany(new ArrayList<>(documents), new InsertManyOptions().ordered(false)))
+                .handle((unused, throwable) -> {
+                    if (throwable == null || throwable instanceof MongoBulkWriteException && ((MongoBulkWriteException) throwable)
+                            .getWriteErrors().stream().allMatch(writeError -> writeError.getCategory() == ErrorCategory.DUPLICATE_KEY)) {
+                        // Duplicates were already imported by an earlier run
+                        return null;
+                    }
+                    throw new CompletionException(throwable);
+                });
+    }
+
+    /**
+     * Runs a batch of updates
+     *
+     * @param collection The collection
+     * @param updates    The updates
+     * @param <T>        The document type
+     *
+     * @return A callback
+     */
+    private <T> CompletableFuture<Void> bulkWrite(final MongoCollection<T> collection, final List<WriteModel<T>> updates) {
+        if (updates.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return this.adapter.completion(collection.bulkWrite(updates, new BulkWriteOptions().ordered(false)));
+    }
+
+    /**
+     * Create a new mongo client
+     *
+     * @return A mongo client
+     */
+    private MongoClient createMongoClient() {
+        // Initialize the POJO codec registry
+        final CodecRegistry codecRegistry = CodecRegistries.fromRegistries(
+                MongoClientSettings.getDefaultCodecRegistry(),
+                CodecRegistries.fromProviders(PojoCodecProvider.builder().automatic(true).build())
+        );
+
+        // Initialize the MongoDB client
+        final MongoClientSettings settings = MongoClientSettings.builder()
+                .codecRegistry(codecRegistry)
+                .applyConnectionString(new ConnectionString(this.plugin.getConfig().getString("storage.mongo.uri", "")))
+                .uuidRepresentation(UuidRepresentation.STANDARD)
+                .build();
+        return MongoClients.create(settings);
+    }
+
+}
@@ -0,0 +1,241 @@
+package de.cerus.iotaspigotpoc.storage.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Groups single writes into batches
+ * <p>
+ * Writes wait in a bounded queue and are flushed together as soon as a full batch is queued or the linger time
+ * passed since the first queued write. Every caller gets its own callback which completes once its batch was
+ * acknowledged, so one failing element doesn't fail the rest of its batch.
+ *
+ * @param <T> The element type
+ */
+public class BatchingWriter<T> {
+
+    private static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
+    private final String name;
+    private final Function<List<T>, CompletableFuture<List<Throwable>>> batchWriter;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final BlockingQueue<QueuedWrite<T>> queue;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Set<CompletableFuture<List<Throwable>>> inFlightBatches = ConcurrentHashMap.newKeySet();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * @param name         The name of the writer, used for the flush thread and the stats
+     * @param batchWriter  Writes a batch and returns the error of every element (null on success) in the same order
+     * @param batchSize    The max amount of elements in a batch
+     * @param lingerMillis The max time in milliseconds a write waits for its batch to fill
+     * @param capacity     The max amount of queued writes
+     */
+    public BatchingWriter(final String name, final Function<List<T>, CompletableFuture<List<Throwable>>> batchWriter,
+                          final int batchSize, final long lingerMillis, final int capacity) {
+        this.name = name;
+        this.batchWriter = batchWriter;
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerMillis = Math.max(0, lingerMillis);
+        this.queue = new ArrayBlockingQueue<>(Math.max(this.batchSize, capacity));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "iota-spigot-poc-" + name + "-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a write
+     *
+     * @param element The element to write
+     *
+     * @return A callback that completes once the batch of the element was written
+     */
+    public CompletableFuture<Void> write(final T element) {
+        final QueuedWrite<T> queuedWrite = new QueuedWrite<>(element);
+        if (!this.queue.offer(queuedWrite)) {
+            // Don't block the caller, the storage is overloaded anyway
+            return CompletableFuture.failedFuture(new RejectedExecutionException("The " + this.name + " write queue is full"));
+        }
+
+        try {
+            if (this.queue.size() >= this.batchSize) {
+                // Batch is full, flush right away
+                this.scheduler.execute(this::flush);
+            } else if (this.flushScheduled.compareAndSet(false, true)) {
+                // First write of a new batch, flush once the linger time passed
+                this.scheduler.schedule(this::flush, this.lingerMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (final RejectedExecutionException e) {
+            // Writer was closed
+            this.queue.remove(queuedWrite);
+            return CompletableFuture.failedFuture(e);
+        }
+        return queuedWrite.future;
+    }
+
+    /**
+     * Writes everything that is queued in batches
+     */
+    private void flush() {
+        this.flushScheduled.set(false);
+
+        final List<QueuedWrite<T>> batch = new ArrayList<>(this.batchSize);
+        while (this.queue.drainTo(batch, this.batchSize) > 0) {
+            this.writeBatch(new ArrayList<>(batch));
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes a single batch and completes the callbacks of its elements
+     *
+     * @param batch The batch
+     */
+    private void writeBatch(final List<QueuedWrite<T>> batch) {
+        final List<T> elements = new ArrayList<>(batch.size());
+        batch.forEach(queuedWrite -> elements.add(queuedWrite.element));
+
+        this.batches.incrementAndGet();
+        this.writes.addAndGet(batch.size());
+
+        final CompletableFuture<List<Throwable>> future;
+        try {
+            future = this.batchWriter.apply(elements);
+        } catch (final RuntimeException e) {
+            batch.forEach(queuedWrite -> queuedWrite.future.completeExceptionally(e));
+            return;
+        }
+
+        this.inFlightBatches.add(future);
+        future.whenComplete((errors, throwable) -> {
+            this.inFlightBatches.remove(future);
+            for (int i = 0; i < batch.size(); i++) {
+                final Throwable error = throwable != null ? throwable : errors.get(i);
+                if (error == null) {
+                    batch.get(i).future.complete(null);
+                } else {
+                    batch.get(i).future.completeExceptionally(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes everything that is still queued and stops the writer
+     * <p>
+     * Waits until every batch was acknowledged, including the batches that were already being written, so whatever
+     * the batches write to can be closed afterwards.
+     *
+     * @return True if every batch was acknowledged in time
+     */
+    public boolean close() {
+        final long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+        this.scheduler.execute(this::flush);
+        this.scheduler.shutdown();
+        try {
+            if (!this.scheduler.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            CompletableFuture.allOf(this.inFlightBatches.toArray(new CompletableFuture[0]))
+                    .get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (final ExecutionException e) {
+            // Failed batches were reported to their callers
+        } catch (final TimeoutException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the name of the writer
+     *
+     * @return The name
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Returns the amount of writes waiting for their batch
+     *
+     * @return The queue depth
+     */
+    public int getQueueDepth() {
+        return this.queue.size();
+    }
+
+    /**
+     * Returns the max amount of writes that can be queued
+     *
+     * @return The queue capacity
+     */
+    public int getQueueCapacity() {
+        return this.queue.size() + this.queue.remainingCapacity();
+    }
+
+    /**
+     * Returns the amount of batches that are being written right now
+     *
+     * @return The amount of batches in flight
+     */
+    public int getInFlight() {
+        return this.inFlightBatches.size();
+    }
+
+    /**
+     * Returns the amount of batches written since the start
+     *
+     * @return The amount of batches
+     */
+    public long getBatches() {
+        return this.batches.get();
+    }
+
+    /**
+     * Returns the amount of elements written since the start
+     *
+     * @return The amount of elements
+     */
+    public long getWrites() {
+        return this.writes.get();
+    }
+
+    /**
+     * A queued write and the callback of its caller
+     *
+     * @param <T> The element type
+     */
+    private static final class QueuedWrite<T> {
+
+        private final T element;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private QueuedWrite(final T element) {
+            this.element = element;
+        }
+
+    }
+
+}
@@ -0,0 +1,89 @@
+package de.cerus.iotaspigotpoc.storage.cache;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bukkit.Bukkit;
+
+/**
+ * Size bounded cache of player names
+ * <p>
+ * Filled when players log in, so deliveries of recent buyers never have to look their name up. Names are kept
+ * after a player quits, least recently used names are evicted first.
+ */
+public class PlayerNameCache {
+
+    // Lookups can block for seconds, they get their own threads instead of the common pool
+    private static final int LOOKUP_THREADS = 2;
+
+    private final Map<UUID, String> names;
+    private final ExecutorService lookupExecutor;
+
+    public PlayerNameCache(final int maxSize) {
+        this.names = Collections.synchronizedMap(new LinkedHashMap<UUID, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<UUID, String> eldest) {
+                return this.size() > maxSize;
+            }
+        });
+
+        final AtomicInteger threadCounter = new AtomicInteger();
+        final ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(LOOKUP_THREADS, LOOKUP_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "iota-spigot-poc-name-lookup-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        this.lookupExecutor = threadPoolExecutor;
+    }
+
+    /**
+     * Remembers the name of a player
+     *
+     * @param playerUuid The players uuid
+     * @param name       The players name
+     */
+    public void put(final UUID playerUuid, final String name) {
+        this.names.put(playerUuid, name);
+    }
+
+    /**
+     * Retrieves the name of a player
+     * <p>
+     * Names that are not cached are looked up off the main thread, the lookup may hit the disk or Mojang.
+     *
+     * @param playerUuid The players uuid
+     *
+     * @return A callback with the name, null if the player is unknown
+     */
+    public CompletableFuture<String> resolve(final UUID playerUuid) {
+        final String name = this.names.get(playerUuid);
+        if (name != null) {
+            return CompletableFuture.completedFuture(name);
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            final String offlineName = Bukkit.getOfflinePlayer(playerUuid).getName();
+            if (offlineName != null) {
+                this.names.put(playerUuid, offlineName);
+            }
+            return offlineName;
+        }, this.lookupExecutor);
+    }
+
+    /**
+     * Stops the lookup threads, running lookups are interrupted
+     */
+    public void shutdown() {
+        this.lookupExecutor.shutdownNow();
+    }
+
+}
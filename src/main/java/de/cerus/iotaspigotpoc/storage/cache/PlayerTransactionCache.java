@@ -0,0 +1,186 @@
+package de.cerus.iotaspigotpoc.storage.cache;
+
+import de.cerus.iotaspigotpoc.model.CompletedTransaction;
+import de.cerus.iotaspigotpoc.model.PendingTransaction;
+import de.cerus.iotaspigotpoc.model.PlayerSummary;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Size bounded in-memory state of the transactions of online players
+ * <p>
+ * Shared by the caching storage decorators. Entries are evicted when a player quits or when the cache
+ * exceeds its max size, least recently used first.
+ */
+public class PlayerTransactionCache {
+
+    private final Map<UUID, PlayerState> states;
+
+    public PlayerTransactionCache(final int maxSize) {
+        this.states = Collections.synchronizedMap(new LinkedHashMap<UUID, PlayerState>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<UUID, PlayerState> eldest) {
+                return this.size() > maxSize;
+            }
+        });
+    }
+
+    /**
+     * Retrieves the state of a player and creates it if needed
+     *
+     * @param playerUuid The players uuid
+     *
+     * @return The state
+     */
+    public PlayerState getOrCreate(final UUID playerUuid) {
+        return this.states.computeIfAbsent(playerUuid, uuid -> new PlayerState());
+    }
+
+    /**
+     * Runs an action if the player has a cached state
+     *
+     * @param playerUuid The players uuid
+     * @param action     The action
+     */
+    public void ifPresent(final UUID playerUuid, final Consumer<PlayerState> action) {
+        final PlayerState state = this.states.get(playerUuid);
+        if (state != null) {
+            action.accept(state);
+        }
+    }
+
+    /**
+     * Runs an action for the cached state of every player
+     *
+     * @param action The action
+     */
+    public void forEach(final Consumer<PlayerState> action) {
+        final List<PlayerState> cachedStates;
+        synchronized (this.states) {
+            cachedStates = new ArrayList<>(this.states.values());
+        }
+        cachedStates.forEach(action);
+    }
+
+    /**
+     * Removes the state of a player
+     *
+     * @param playerUuid The players uuid
+     */
+    public void invalidate(final UUID playerUuid) {
+        this.states.remove(playerUuid);
+    }
+
+    /**
+     * Cached state of a single player
+     */
+    public static final class PlayerState {
+
+        private final Slot<PendingTransaction> openTransaction = new Slot<>();
+        private final Slot<List<CompletedTransaction>> recentTransactions = new Slot<>();
+        private final Slot<PlayerSummary> summary = new Slot<>();
+
+        public Slot<PendingTransaction> getOpenTransaction() {
+            return this.openTransaction;
+        }
+
+        public Slot<List<CompletedTransaction>> getRecentTransactions() {
+            return this.recentTransactions;
+        }
+
+        public Slot<PlayerSummary> getSummary() {
+            return this.summary;
+        }
+
+    }
+
+    /**
+     * A lazily loaded value of a player
+     * <p>
+     * Cached values are never modified in place, updates replace them.
+     *
+     * @param <V> The value type
+     */
+    public static final class Slot<V> {
+
+        private CompletableFuture<V> future;
+
+        /**
+         * Returns the cached value or loads it if it isn't cached
+         * <p>
+         * Concurrent loads share the same callback, failed loads are not cached.
+         *
+         * @param loader Loads the value from the storage
+         *
+         * @return A callback with the value
+         */
+        public synchronized CompletableFuture<V> load(final Supplier<CompletableFuture<V>> loader) {
+            if (this.future != null) {
+                return this.future;
+            }
+
+            final CompletableFuture<V> loadFuture = loader.get();
+            this.future = loadFuture;
+            loadFuture.whenComplete((value, throwable) -> {
+                if (throwable != null) {
+                    this.clear(loadFuture);
+                }
+            });
+            return loadFuture;
+        }
+
+        /**
+         * Applies a write to the cached value
+         * <p>
+         * If the value is still loading the cached state is dropped instead, because the load might
+         * not include the write.
+         *
+         * @param modifier Computes the new value from the current one
+         */
+        public synchronized void update(final UnaryOperator<V> modifier) {
+            if (this.future == null) {
+                return;
+            }
+            if (!this.future.isDone() || this.future.isCompletedExceptionally()) {
+                this.future = null;
+                return;
+            }
+
+            this.future = CompletableFuture.completedFuture(modifier.apply(this.future.join()));
+        }
+
+        /**
+         * Drops the cached value if it matches a condition, the next load reads it from the storage again
+         *
+         * @param condition The condition
+         */
+        public synchronized void invalidateIf(final Predicate<V> condition) {
+            if (this.future != null && this.future.isDone() && !this.future.isCompletedExceptionally()
+                    && condition.test(this.future.join())) {
+                this.future = null;
+            }
+        }
+
+        /**
+         * Drops a specific cached state
+         *
+         * @param expected The state to drop
+         */
+        private synchronized void clear(final CompletableFuture<V> expected) {
+            if (this.future == expected) {
+                this.future = null;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,91 @@
+package de.cerus.iotaspigotpoc.storage.completed;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Periodically moves old completed transactions into the archive
+ * <p>
+ * This keeps the hot collection proportional to recent sales, the lifetime totals of every player live in their
+ * summary.
+ */
+public class CompletedTransactionArchiver {
+
+    private final AtomicBoolean archiving = new AtomicBoolean(false);
+    private final JavaPlugin plugin;
+    private final CompletedTransactionStorageService completedTransactionStorageService;
+    private final long ageMillis;
+    private final int batchSize;
+    private BukkitTask task;
+
+    public CompletedTransactionArchiver(final JavaPlugin plugin, final CompletedTransactionStorageService completedTransactionStorageService) {
+        this.plugin = plugin;
+        this.completedTransactionStorageService = completedTransactionStorageService;
+
+        final FileConfiguration config = plugin.getConfig();
+        this.ageMillis = Math.max(1, config.getLong("storage.archive.after", 90)) * 24 * 60 * 60 * 1000;
+        this.batchSize = Math.max(1, config.getInt("storage.archive.batch-size", 500));
+    }
+
+    /**
+     * Starts archiving if it is enabled in the config
+     */
+    public void start() {
+        final FileConfiguration config = this.plugin.getConfig();
+        if (!config.getBoolean("storage.archive.enabled", true)) {
+            return;
+        }
+
+        final long intervalTicks = Math.max(1, config.getLong("storage.archive.interval", 60)) * 60 * 20;
+        this.task = Bukkit.getScheduler().runTaskTimerAsynchronously(this.plugin, this::archive, intervalTicks, intervalTicks);
+    }
+
+    /**
+     * Stops archiving
+     */
+    public void stop() {
+        if (this.task != null) {
+            this.task.cancel();
+            this.task = null;
+        }
+    }
+
+    /**
+     * Archives everything that is old enough, batch by batch
+     */
+    private void archive() {
+        if (!this.archiving.compareAndSet(false, true)) {
+            // Previous run is still going
+            return;
+        }
+
+        this.archiveBatch(System.currentTimeMillis() - this.ageMillis).whenComplete((unused, throwable) -> {
+            if (throwable != null) {
+                this.plugin.getLogger().warning("Failed to archive completed transactions");
+                this.plugin.getLogger().warning(throwable.getMessage());
+            }
+            this.archiving.set(false);
+        });
+    }
+
+    /**
+     * Archives a batch and continues with the next one if the batch was full
+     *
+     * @param completedBefore Transactions that were completed before this timestamp are archived
+     *
+     * @return A callback
+     */
+    private CompletableFuture<Void> archiveBatch(final long completedBefore) {
+        return this.completedTransactionStorageService.archiveBefore(completedBefore, this.batchSize).thenCompose(archived -> {
+            if (archived > 0) {
+                this.plugin.getLogger().info("Archived " + archived + " completed transactions");
+            }
+            return archived < this.batchSize ? CompletableFuture.completedFuture(null) : this.archiveBatch(completedBefore);
+        });
+    }
+
+}
@@ -1,9 +1,15 @@
 package de.cerus.iotaspigotpoc.storage.completed;
 
 import de.cerus.iotaspigotpoc.model.CompletedTransaction;
+import de.cerus.iotaspigotpoc.model.PlayerSummary;
+import de.cerus.iotaspigotpoc.model.TransactionRecord;
+import de.cerus.iotaspigotpoc.storage.query.Page;
+import de.cerus.iotaspigotpoc.storage.query.TransactionQuery;
 import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
 
 public interface CompletedTransactionStorageService {
 
@@ -52,8 +58,50 @@ public interface CompletedTransactionStorageService {
      */
     CompletableFuture<Collection<CompletedTransaction>> retrieveAll(UUID playerUuid);
 
+    /**
+     * Retrieves the newest completed transactions of a player
+     *
+     * @param playerUuid The uuid of a player
+     * @param limit      The max amount of transactions
+     *
+     * @return A list of completed transactions, newest first
+     */
+    CompletableFuture<List<CompletedTransaction>> retrieveRecent(UUID playerUuid, int limit);
+
+    /**
+     * Retrieves the purchase summary of a player
+     *
+     * @param playerUuid The uuid of a player
+     *
+     * @return A summary, empty if the player never bought anything
+     */
+    CompletableFuture<PlayerSummary> retrieveSummary(UUID playerUuid);
+
+    /**
+     * Retrieves the summaries of the players that spent the most
+     *
+     * @param limit The max amount of summaries
+     *
+     * @return A list of summaries, highest total first
+     */
+    CompletableFuture<List<PlayerSummary>> retrieveTopBuyers(int limit);
+
+    /**
+     * Moves completed transactions into the archive
+     * <p>
+     * Archived transactions still count towards the summary but are not returned by the other queries anymore.
+     *
+     * @param completedBefore Transactions that were completed before this timestamp are archived
+     * @param limit           The max amount of transactions to archive
+     *
+     * @return A callback with the amount of archived transactions
+     */
+    CompletableFuture<Integer> archiveBefore(long completedBefore, int limit);
+
     /**
      * Retrieves all completed transactions of a specific product
+     * <p>
+     * Every match is loaded at once, large reads should use {@link #retrievePage(TransactionQuery, String, int)}.
      *
      * @param productId The id of a product
      *
@@ -63,6 +111,9 @@ public interface CompletedTransactionStorageService {
 
     /**
      * Retrieves all completed transactions that were handled by a specific address
+     * <p>
+     * Completed transactions don't record their address, so the callback always fails with an
+     * {@link UnsupportedOperationException}.
      *
      * @param address A address
      *
@@ -70,4 +121,30 @@ public interface CompletedTransactionStorageService {
      */
     CompletableFuture<Collection<CompletedTransaction>> retrieveAll(String address);
 
+    /**
+     * Retrieves a page of the completed transactions that match a query
+     * <p>
+     * Pages are ordered by transaction id, pass the token of a page to retrieve the next one. Queries by address
+     * fail with an {@link UnsupportedOperationException}, completed transactions don't record their address.
+     *
+     * @param query       The query
+     * @param resumeToken The token of the previous page or null for the first page
+     * @param pageSize    The max amount of transactions per page
+     *
+     * @return A callback with the page
+     */
+    CompletableFuture<Page<CompletedTransaction>> retrievePage(TransactionQuery query, String resumeToken, int pageSize);
+
+    /**
+     * Streams the records of the completed transactions that match a query
+     * <p>
+     * Only the fields of a record are read, and only as fast as the subscriber requests them. Queries by address
+     * fail with an {@link UnsupportedOperationException}, completed transactions don't record their address.
+     *
+     * @param query The query
+     *
+     * @return A publisher of records
+     */
+    Flow.Publisher<TransactionRecord> streamRecords(TransactionQuery query);
+
 }
@@ -0,0 +1,217 @@
+package de.cerus.iotaspigotpoc.storage.completed.impl;
+
+import de.cerus.iotaspigotpoc.model.CompletedTransaction;
+import de.cerus.iotaspigotpoc.model.PlayerSummary;
+import de.cerus.iotaspigotpoc.model.TransactionRecord;
+import de.cerus.iotaspigotpoc.storage.cache.PlayerTransactionCache;
+import de.cerus.iotaspigotpoc.storage.completed.CompletedTransactionStorageService;
+import de.cerus.iotaspigotpoc.storage.query.Page;
+import de.cerus.iotaspigotpoc.storage.query.TransactionQuery;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Write-through cache in front of another completed transaction storage
+ * <p>
+ * The newest completed transactions and the summary of online players are answered from memory, writes go to
+ * the storage first and are applied to the cache once they succeeded.
+ */
+public class CachingCompletedTransactionStorageService implements CompletedTransactionStorageService {
+
+    /**
+     * The amount of recent transactions that are cached per player
+     */
+    public static final int CACHED_RECENT = 10;
+
+    private final CompletedTransactionStorageService delegate;
+    private final PlayerTransactionCache cache;
+
+    public CachingCompletedTransactionStorageService(final CompletedTransactionStorageService delegate, final PlayerTransactionCache cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    /**
+     * Stores a completed transaction
+     *
+     * @param transaction The transaction
+     *
+     * @return A callback
+     */
+    @Override
+    public CompletableFuture<Void> storeCompletedTransaction(final CompletedTransaction transaction) {
+        return this.delegate.storeCompletedTransaction(transaction).thenRun(() ->
+                this.cache.ifPresent(transaction.getPlayerUuid(), state -> {
+                    state.getRecentTransactions().update(transactions -> {
+                        final List<CompletedTransaction> list = new ArrayList<>(transactions.size() + 1);
+                        list.add(transaction);
+                        list.addAll(transactions.subList(0, Math.min(transactions.size(), CACHED_RECENT - 1)));
+                        return Collections.unmodifiableList(list);
+                    });
+                    state.getSummary().update(summary -> summary.with(transaction));
+                }));
+    }
+
+    /**
+     * Retrieves a transaction by id
+     *
+     * @param transactionId The id of the transaction
+     *
+     * @return A completed transaction or null
+     */
+    @Override
+    public CompletableFuture<CompletedTransaction> retrieveById(final UUID transactionId) {
+        return this.delegate.retrieveById(transactionId);
+    }
+
+    /**
+     * Retrieves a transaction by the id of its linked pending transaction
+     *
+     * @param linkedTransactionId The id of the linked pending transaction
+     *
+     * @return A completed transaction or null
+     */
+    @Override
+    public CompletableFuture<CompletedTransaction> retrieveByLinkedId(final UUID linkedTransactionId) {
+        return this.delegate.retrieveByLinkedId(linkedTransactionId);
+    }
+
+    /**
+     * Retrieves a transaction by a transaction hash
+     *
+     * @param transactionHash The transaction hash
+     *
+     * @return A completed transaction or null
+     */
+    @Override
+    public CompletableFuture<CompletedTransaction> retrieveByHash(final String transactionHash) {
+        return this.delegate.retrieveByHash(transactionHash);
+    }
+
+    /**
+     * Retrieves all completed transactions of a player
+     *
+     * @param playerUuid The uuid of a player
+     *
+     * @return A collection of completed transactions
+     */
+    @Override
+    public CompletableFuture<Collection<CompletedTransaction>> retrieveAll(final UUID playerUuid) {
+        return this.delegate.retrieveAll(playerUuid);
+    }
+
+    /**
+     * Retrieves the newest completed transactions of a player
+     *
+     * @param playerUuid The uuid of a player
+     * @param limit      The max amount of transactions
+     *
+     * @return A list of completed transactions, newest first
+     */
+    @Override
+    public CompletableFuture<List<CompletedTransaction>> retrieveRecent(final UUID playerUuid, final int limit) {
+        if (limit > CACHED_RECENT) {
+            return this.delegate.retrieveRecent(playerUuid, limit);
+        }
+
+        return this.cache.getOrCreate(playerUuid).getRecentTransactions()
+                .load(() -> this.delegate.retrieveRecent(playerUuid, CACHED_RECENT).thenApply(Collections::unmodifiableList))
+                .thenApply(transactions -> transactions.subList(0, Math.min(transactions.size(), limit)));
+    }
+
+    /**
+     * Retrieves the purchase summary of a player
+     *
+     * @param playerUuid The uuid of a player
+     *
+     * @return A summary, empty if the player never bought anything
+     */
+    @Override
+    public CompletableFuture<PlayerSummary> retrieveSummary(final UUID playerUuid) {
+        return this.cache.getOrCreate(playerUuid).getSummary().load(() -> this.delegate.retrieveSummary(playerUuid));
+    }
+
+    /**
+     * Retrieves the summaries of the players that spent the most
+     *
+     * @param limit The max amount of summaries
+     *
+     * @return A list of summaries, highest total first
+     */
+    @Override
+    public CompletableFuture<List<PlayerSummary>> retrieveTopBuyers(final int limit) {
+        return this.delegate.retrieveTopBuyers(limit);
+    }
+
+    /**
+     * Moves completed transactions into the archive
+     * <p>
+     * Archived transactions still count towards the summary but are not returned by the other queries anymore.
+     *
+     * @param completedBefore Transactions that were completed before this timestamp are archived
+     * @param limit           The max amount of transactions to archive
+     *
+     * @return A callback with the amount of archived transactions
+     */
+    @Override
+    public CompletableFuture<Integer> archiveBefore(final long completedBefore, final int limit) {
+        // Archiving doesn't change the history of a player, the cached state stays valid
+        return this.delegate.archiveBefore(completedBefore, limit);
+    }
+
+    /**
+     * Retrieves all completed transactions of a specific product
+     *
+     * @param productId The id of a product
+     *
+     * @return A collection of completed transactions
+     */
+    @Override
+    public CompletableFuture<Collection<CompletedTransaction>> retrieveAll(final int productId) {
+        return this.delegate.retrieveAll(productId);
+    }
+
+    /**
+     * Retrieves all completed transactions that were handled by a specific address
+     *
+     * @param address A address
+     *
+     * @return A collection of completed transactions
+     */
+    @Override
+    public CompletableFuture<Collection<CompletedTransaction>> retrieveAll(final String address) {
+        return this.delegate.retrieveAll(address);
+    }
+
+    /**
+     * Retrieves a page of the completed transactions that match a query
+     *
+     * @param query       The query
+     * @param resumeToken The token of the previous page or null for the first page
+     * @param pageSize    The max amount of transactions per page
+     *
+     * @return A callback with the page
+     */
+    @Override
+    public CompletableFuture<Page<CompletedTransaction>> retrievePage(final TransactionQuery query, final String resumeToken, final int pageSize) {
+        return this.delegate.retrievePage(query, resumeToken, pageSize);
+    }
+
+    /**
+     * Streams the records of the completed transactions that match a query
+     *
+     * @param query The query
+     *
+     * @return A publisher of records
+     */
+    @Override
+    public Flow.Publisher<TransactionRecord> streamRecords(final TransactionQuery query) {
+        return this.delegate.streamRecords(query);
+    }
+
+}
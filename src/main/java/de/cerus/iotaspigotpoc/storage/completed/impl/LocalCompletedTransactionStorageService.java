@@ -0,0 +1,553 @@
+package de.cerus.iotaspigotpoc.storage.completed.impl;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import de.cerus.iotaspigotpoc.model.CompletedTransaction;
+import de.cerus.iotaspigotpoc.model.PlayerSummary;
+import de.cerus.iotaspigotpoc.model.TransactionRecord;
+import de.cerus.iotaspigotpoc.storage.analytics.SalesAnalyticsStorageService;
+import de.cerus.iotaspigotpoc.storage.completed.CompletedTransactionStorageService;
+import de.cerus.iotaspigotpoc.storage.log.AppendOnlyLog;
+import de.cerus.iotaspigotpoc.storage.query.Page;
+import de.cerus.iotaspigotpoc.storage.query.PagedPublisher;
+import de.cerus.iotaspigotpoc.storage.query.TransactionQuery;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Completed transaction storage that lives in memory and is persisted in append-only logs
+ * <p>
+ * Transactions are indexed by id, linked transaction and hash, and every player has a list of their
+ * transactions sorted newest first. The id index is sorted, so a paged read resumes right after its token.
+ * Summaries are kept in a second log. Archived transactions are appended to monthly files
+ * (completed_archive_YYYY_MM.jsonl) which are only read again to build the sales rollups.
+ */
+public class LocalCompletedTransactionStorageService implements CompletedTransactionStorageService {
+
+    private static final DateTimeFormatter ARCHIVE_FORMAT = DateTimeFormatter.ofPattern("yyyy_MM").withZone(ZoneOffset.UTC);
+    private static final int RECORD_PAGE_SIZE = 256;
+    private static final Comparator<CompletedTransaction> NEWEST_FIRST =
+            Comparator.comparingLong(CompletedTransaction::getCompletedTimestamp).reversed();
+
+    private final NavigableMap<UUID, CompletedTransaction> transactions = new TreeMap<>();
+    private final Map<UUID, UUID> byLinkedId = new HashMap<>();
+    private final Map<String, UUID> byHash = new HashMap<>();
+    private final Map<UUID, List<CompletedTransaction>> byPlayer = new HashMap<>();
+    private final Map<UUID, PlayerSummary> summaries = new HashMap<>();
+    private final Path directory;
+    private final Gson gson;
+    private final AppendOnlyLog<CompletedTransaction> log;
+    private final AppendOnlyLog<PlayerSummary> summaryLog;
+    private final SalesAnalyticsStorageService salesAnalyticsStorageService;
+
+    public LocalCompletedTransactionStorageService(final Path directory, final Gson gson, final boolean fsync,
+                                                   final SalesAnalyticsStorageService salesAnalyticsStorageService, final Logger logger) {
+        this.directory = directory;
+        this.gson = gson;
+        this.salesAnalyticsStorageService = salesAnalyticsStorageService;
+        this.log = new AppendOnlyLog<>(directory.resolve("completed.jsonl"), CompletedTransaction.class, gson, fsync,
+                this::size, this::snapshot, logger);
+        this.summaryLog = new AppendOnlyLog<>(directory.resolve("player_summaries.jsonl"), PlayerSummary.class, gson, fsync,
+                this::summaryCount, this::summarySnapshot, logger);
+    }
+
+    /**
+     * Loads the transactions and summaries from their logs
+     *
+     * @throws IOException If a log can't be read
+     */
+    public void load() throws IOException {
+        this.log.open((key, transaction) -> {
+            this.unindex(UUID.fromString(key));
+            if (transaction != null) {
+                this.index(transaction);
+            }
+        });
+        this.summaryLog.open((key, summary) -> {
+            if (summary == null) {
+                this.summaries.remove(UUID.fromString(key));
+            } else {
+                this.summaries.put(summary.getPlayerUuid(), summary);
+            }
+        });
+    }
+
+    /**
+     * Stores a completed transaction
+     * <p>
+     * Fails if the hash or the linked transaction was already completed, like the unique indices of the
+     * MongoDB storage.
+     *
+     * @param transaction The transaction
+     *
+     * @return A callback
+     */
+    @Override
+    public synchronized CompletableFuture<Void> storeCompletedTransaction(final CompletedTransaction transaction) {
+        if (this.byHash.containsKey(transaction.getTransactionHash())
+                || this.byLinkedId.containsKey(transaction.getLinkedPendingTransactionId())) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Transaction " + transaction.getTransactionId() + " was already completed"));
+        }
+
+        this.index(transaction);
+        final PlayerSummary summary = this.summaries.getOrDefault(transaction.getPlayerUuid(),
+                PlayerSummary.empty(transaction.getPlayerUuid())).with(transaction);
+        this.summaries.put(summary.getPlayerUuid(), summary);
+
+        return CompletableFuture.allOf(
+                this.log.put(transaction.getTransactionId().toString(), transaction),
+                this.summaryLog.put(summary.getPlayerUuid().toString(), summary),
+                this.salesAnalyticsStorageService.recordSales(Collections.singletonList(transaction))
+        );
+    }
+
+    /**
+     * Retrieves a transaction by id
+     *
+     * @param transactionId The id of the transaction
+     *
+     * @return A completed transaction or null
+     */
+    @Override
+    public synchronized CompletableFuture<CompletedTransaction> retrieveById(final UUID transactionId) {
+        return CompletableFuture.completedFuture(this.transactions.get(transactionId));
+    }
+
+    /**
+     * Retrieves a transaction by the id of its linked pending transaction
+     *
+     * @param linkedTransactionId The id of the linked pending transaction
+     *
+     * @return A completed transaction or null
+     */
+    @Override
+    public synchronized CompletableFuture<CompletedTransaction> retrieveByLinkedId(final UUID linkedTransactionId) {
+        final UUID transactionId = this.byLinkedId.get(linkedTransactionId);
+        return CompletableFuture.completedFuture(transactionId == null ? null : this.transactions.get(transactionId));
+    }
+
+    /**
+     * Retrieves a transaction by a transaction hash
+     *
+     * @param transactionHash The transaction hash
+     *
+     * @return A completed transaction or null
+     */
+    @Override
+    public synchronized CompletableFuture<CompletedTransaction> retrieveByHash(final String transactionHash) {
+        final UUID transactionId = this.byHash.get(transactionHash);
+        return CompletableFuture.completedFuture(transactionId == null ? null : this.transactions.get(transactionId));
+    }
+
+    /**
+     * Retrieves all completed transactions of a player
+     *
+     * @param playerUuid The uuid of a player
+     *
+     * @return A collection of completed transactions
+     */
+    @Override
+    public synchronized CompletableFuture<Collection<CompletedTransaction>> retrieveAll(final UUID playerUuid) {
+        return CompletableFuture.completedFuture(new ArrayList<>(this.byPlayer.getOrDefault(playerUuid, Collections.emptyList())));
+    }
+
+    /**
+     * Retrieves the newest completed transactions of a player
+     *
+     * @param playerUuid The uuid of a player
+     * @param limit      The max amount of transactions
+     *
+     * @return A list of completed transactions, newest first
+     */
+    @Override
+    public synchronized CompletableFuture<List<CompletedTransaction>> retrieveRecent(final UUID playerUuid, final int limit) {
+        final List<CompletedTransaction> playerTransactions = this.byPlayer.getOrDefault(playerUuid, Collections.emptyList());
+        return CompletableFuture.completedFuture(new ArrayList<>(playerTransactions.subList(0, Math.min(limit, playerTransactions.size()))));
+    }
+
+    /**
+     * Retrieves the purchase summary of a player
+     *
+     * @param playerUuid The uuid of a player
+     *
+     * @return A summary, empty if the player never bought anything
+     */
+    @Override
+    public synchronized CompletableFuture<PlayerSummary> retrieveSummary(final UUID playerUuid) {
+        return CompletableFuture.completedFuture(this.summaries.getOrDefault(playerUuid, PlayerSummary.empty(playerUuid)));
+    }
+
+    /**
+     * Retrieves the summaries of the players that spent the most
+     *
+     * @param limit The max amount of summaries
+     *
+     * @return A list of summaries, highest total first
+     */
+    @Override
+    public synchronized CompletableFuture<List<PlayerSummary>> retrieveTopBuyers(final int limit) {
+        return CompletableFuture.completedFuture(this.summaries.values().stream()
+                .sorted(Comparator.comparingLong(PlayerSummary::getTotalIota).reversed())
+                .limit(limit)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Moves completed transactions into monthly archive files
+     * <p>
+     * The archive files are written and forced to the disk before the transactions are removed from the log. An
+     * interrupted run can leave copies behind, so an archive file may contain a transaction twice.
+     *
+     * @param completedBefore Transactions that were completed before this timestamp are archived
+     * @param limit           The max amount of transactions to archive
+     *
+     * @return A callback with the amount of archived transactions
+     */
+    @Override
+    public CompletableFuture<Integer> archiveBefore(final long completedBefore, final int limit) {
+        final List<CompletedTransaction> archivedTransactions;
+        synchronized (this) {
+            archivedTransactions = this.transactions.values().stream()
+                    .filter(transaction -> transaction.getCompletedTimestamp() < completedBefore)
+                    .sorted(Comparator.comparingLong(CompletedTransaction::getCompletedTimestamp))
+                    .limit(limit)
+                    .collect(Collectors.toList());
+        }
+        if (archivedTransactions.isEmpty()) {
+            return CompletableFuture.completedFuture(0);
+        }
+
+        // Group the transactions by month
+        final Map<String, StringBuilder> linesByArchive = new HashMap<>();
+        for (final CompletedTransaction transaction : archivedTransactions) {
+            linesByArchive.computeIfAbsent("completed_archive_" + ARCHIVE_FORMAT.format(Instant.ofEpochMilli(transaction.getCompletedTimestamp())) + ".jsonl",
+                    name -> new StringBuilder()).append(this.gson.toJson(transaction)).append('\n');
+        }
+
+        try {
+            final Path archiveDirectory = this.directory.resolve("archive");
+            Files.createDirectories(archiveDirectory);
+            for (final Map.Entry<String, StringBuilder> entry : linesByArchive.entrySet()) {
+                final Path archiveFile = archiveDirectory.resolve(entry.getKey());
+                Files.write(archiveFile, entry.getValue().toString().getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+            }
+        } catch (final IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        final List<CompletableFuture<Void>> deleteFutures = new ArrayList<>();
+        synchronized (this) {
+            for (final CompletedTransaction transaction : archivedTransactions) {
+                this.unindex(transaction.getTransactionId());
+                deleteFutures.add(this.log.delete(transaction.getTransactionId().toString()));
+            }
+        }
+        return CompletableFuture.allOf(deleteFutures.toArray(new CompletableFuture[0])).thenApply(unused -> archivedTransactions.size());
+    }
+
+    /**
+     * Retrieves all completed transactions of a specific product
+     *
+     * @param productId The id of a product
+     *
+     * @return A collection of completed transactions
+     */
+    @Override
+    public CompletableFuture<Collection<CompletedTransaction>> retrieveAll(final int productId) {
+        return this.retrieveBulk(transaction -> transaction.getProductId() == productId);
+    }
+
+    /**
+     * Retrieves all completed transactions that were handled by a specific address
+     *
+     * @param address A address
+     *
+     * @return A collection of completed transactions
+     */
+    @Override
+    public CompletableFuture<Collection<CompletedTransaction>> retrieveAll(final String address) {
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("Completed transactions don't record their address"));
+    }
+
+    /**
+     * Stores transactions and summaries that were exported from another storage
+     *
+     * @param transactions The transactions
+     * @param summaries    The summaries, they are not derived from the transactions because archived
+     *                     transactions are not exported
+     *
+     * @return A callback
+     */
+    public synchronized CompletableFuture<Void> restore(final Collection<CompletedTransaction> transactions, final Collection<PlayerSummary> summaries) {
+        final List<CompletableFuture<Void>> writeFutures = new ArrayList<>();
+        for (final CompletedTransaction transaction : transactions) {
+            this.unindex(transaction.getTransactionId());
+            this.index(transaction);
+            writeFutures.add(this.log.put(transaction.getTransactionId().toString(), transaction));
+        }
+        for (final PlayerSummary summary : summaries) {
+            this.summaries.put(summary.getPlayerUuid(), summary);
+            writeFutures.add(this.summaryLog.put(summary.getPlayerUuid().toString(), summary));
+        }
+        return CompletableFuture.allOf(writeFutures.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Retrieves every stored transaction
+     *
+     * @return A collection of completed transactions
+     */
+    public synchronized Collection<CompletedTransaction> retrieveEverything() {
+        return new ArrayList<>(this.transactions.values());
+    }
+
+    /**
+     * Reads the transactions of the archive files
+     * <p>
+     * A transaction that is in more than one file or is still stored, e.g. after an interrupted archive run, is
+     * only returned once.
+     *
+     * @return A collection of archived transactions that are not stored anymore
+     *
+     * @throws IOException If an archive file can't be read
+     */
+    public Collection<CompletedTransaction> retrieveArchived() throws IOException {
+        final Path archiveDirectory = this.directory.resolve("archive");
+        if (!Files.isDirectory(archiveDirectory)) {
+            return Collections.emptyList();
+        }
+
+        final Map<UUID, CompletedTransaction> archivedTransactions = new HashMap<>();
+        try (final DirectoryStream<Path> archiveFiles = Files.newDirectoryStream(archiveDirectory, "completed_archive_*.jsonl")) {
+            for (final Path archiveFile : archiveFiles) {
+                try (final BufferedReader reader = Files.newBufferedReader(archiveFile, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        final CompletedTransaction transaction;
+                        try {
+                            transaction = this.gson.fromJson(line, CompletedTransaction.class);
+                        } catch (final JsonParseException e) {
+                            // A crash while archiving can leave a torn line
+                            continue;
+                        }
+                        if (transaction != null) {
+                            archivedTransactions.putIfAbsent(transaction.getTransactionId(), transaction);
+                        }
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            archivedTransactions.keySet().removeAll(this.transactions.keySet());
+        }
+        return archivedTransactions.values();
+    }
+
+    /**
+     * Retrieves every summary
+     *
+     * @return A collection of summaries
+     */
+    public synchronized Collection<PlayerSummary> retrieveSummaries() {
+        return new ArrayList<>(this.summaries.values());
+    }
+
+    /**
+     * Closes the logs
+     */
+    public void close() {
+        this.log.close();
+        this.summaryLog.close();
+    }
+
+    /**
+     * Returns the log the transactions are persisted in
+     *
+     * @return The log
+     */
+    public AppendOnlyLog<CompletedTransaction> getLog() {
+        return this.log;
+    }
+
+    /**
+     * Returns the log the summaries are persisted in
+     *
+     * @return The log
+     */
+    public AppendOnlyLog<PlayerSummary> getSummaryLog() {
+        return this.summaryLog;
+    }
+
+    /**
+     * Retrieves a collection of transactions
+     * <p>
+     * These queries are not used while players are online, so they scan instead of keeping an index.
+     *
+     * @param filter The filter
+     *
+     * @return A collection of transactions
+     */
+    private synchronized CompletableFuture<Collection<CompletedTransaction>> retrieveBulk(final Predicate<CompletedTransaction> filter) {
+        return CompletableFuture.completedFuture(this.transactions.values().stream()
+                .filter(filter)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Adds a transaction to the indices
+     *
+     * @param transaction The transaction
+     */
+    private void index(final CompletedTransaction transaction) {
+        this.transactions.put(transaction.getTransactionId(), transaction);
+        this.byLinkedId.put(transaction.getLinkedPendingTransactionId(), transaction.getTransactionId());
+        this.byHash.put(transaction.getTransactionHash(), transaction.getTransactionId());
+
+        // Keep the list of the player sorted, new transactions almost always go to the front
+        final List<CompletedTransaction> playerTransactions = this.byPlayer.computeIfAbsent(transaction.getPlayerUuid(), uuid -> new ArrayList<>());
+        final int searchIndex = Collections.binarySearch(playerTransactions, transaction, NEWEST_FIRST);
+        playerTransactions.add(searchIndex < 0 ? -searchIndex - 1 : searchIndex, transaction);
+    }
+
+    /**
+     * Removes a transaction from the indices
+     *
+     * @param transactionId The id of the transaction
+     */
+    private void unindex(final UUID transactionId) {
+        final CompletedTransaction transaction = this.transactions.remove(transactionId);
+        if (transaction == null) {
+            return;
+        }
+
+        this.byLinkedId.remove(transaction.getLinkedPendingTransactionId(), transactionId);
+        this.byHash.remove(transaction.getTransactionHash(), transactionId);
+        final List<CompletedTransaction> playerTransactions = this.byPlayer.get(transaction.getPlayerUuid());
+        playerTransactions.remove(transaction);
+        if (playerTransactions.isEmpty()) {
+            this.byPlayer.remove(transaction.getPlayerUuid());
+        }
+    }
+
+    /**
+     * Returns the amount of stored transactions
+     *
+     * @return The amount of transactions
+     */
+    private synchronized int size() {
+        return this.transactions.size();
+    }
+
+    /**
+     * Copies the stored transactions for a compaction of the log
+     *
+     * @return The transactions by id
+     */
+    private synchronized Map<String, CompletedTransaction> snapshot() {
+        final Map<String, CompletedTransaction> snapshot = new HashMap<>();
+        this.transactions.forEach((transactionId, transaction) -> snapshot.put(transactionId.toString(), transaction));
+        return snapshot;
+    }
+
+    /**
+     * Returns the amount of stored summaries
+     *
+     * @return The amount of summaries
+     */
+    private synchronized int summaryCount() {
+        return this.summaries.size();
+    }
+
+    /**
+     * Copies the stored summaries for a compaction of the log
+     *
+     * @return The summaries by player
+     */
+    private synchronized Map<String, PlayerSummary> summarySnapshot() {
+        final Map<String, PlayerSummary> snapshot = new HashMap<>();
+        this.summaries.forEach((playerUuid, summary) -> snapshot.put(playerUuid.toString(), summary));
+        return snapshot;
+    }
+
+    /**
+     * Retrieves a page of the completed transactions that match a query
+     * <p>
+     * The scan starts right after the id in the token and stops once the page is full, so reading every page
+     * scans the transactions only once in total. One transaction more than fits on the page is read to find out
+     * whether there is a next page.
+     *
+     * @param query       The query
+     * @param resumeToken The token of the previous page or null for the first page
+     * @param pageSize    The max amount of transactions per page
+     *
+     * @return A callback with the page
+     */
+    @Override
+    public synchronized CompletableFuture<Page<CompletedTransaction>> retrievePage(final TransactionQuery query, final String resumeToken, final int pageSize) {
+        if (query.getProductId() == null) {
+            return CompletableFuture.failedFuture(new UnsupportedOperationException("Completed transactions don't record their address"));
+        }
+
+        final NavigableMap<UUID, CompletedTransaction> remaining;
+        try {
+            remaining = resumeToken == null ? this.transactions : this.transactions.tailMap(UUID.fromString(resumeToken), false);
+        } catch (final IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        final int productId = query.getProductId();
+        final int size = Math.max(1, pageSize);
+        final List<CompletedTransaction> transactions = new ArrayList<>(size + 1);
+        for (final CompletedTransaction transaction : remaining.values()) {
+            if (transaction.getProductId() != productId) {
+                continue;
+            }
+
+            transactions.add(transaction);
+            if (transactions.size() > size) {
+                break;
+            }
+        }
+        return CompletableFuture.completedFuture(Page.of(transactions, size, transaction -> transaction.getTransactionId().toString()));
+    }
+
+    /**
+     * Streams the records of the completed transactions that match a query
+     * <p>
+     * The records are read page by page, so the storage is only locked for a page at a time.
+     *
+     * @param query The query
+     *
+     * @return A publisher of records
+     */
+    @Override
+    public Flow.Publisher<TransactionRecord> streamRecords(final TransactionQuery query) {
+        return new PagedPublisher<>(resumeToken -> this.retrievePage(query, resumeToken, RECORD_PAGE_SIZE)
+                .thenApply(page -> page.map(TransactionRecord::of)));
+    }
+
+}
@@ -1,27 +1,74 @@
 package de.cerus.iotaspigotpoc.storage.completed.impl;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.reactivestreams.client.MongoCollection;
 import com.mongodb.reactivestreams.client.MongoDatabase;
 import de.cerus.iotaspigotpoc.model.CompletedTransaction;
+import de.cerus.iotaspigotpoc.model.PlayerSummary;
+import de.cerus.iotaspigotpoc.model.TransactionRecord;
+import de.cerus.iotaspigotpoc.storage.analytics.SalesAnalyticsStorageService;
+import de.cerus.iotaspigotpoc.storage.batch.BatchingWriter;
 import de.cerus.iotaspigotpoc.storage.completed.CompletedTransactionStorageService;
-import de.cerus.iotaspigotpoc.util.CallbackSubscriber;
+import de.cerus.iotaspigotpoc.storage.query.Page;
+import de.cerus.iotaspigotpoc.storage.query.PagedPublisher;
+import de.cerus.iotaspigotpoc.storage.query.TransactionQuery;
+import de.cerus.iotaspigotpoc.util.PublisherAdapter;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.stream.Collectors;
 import org.bson.conversions.Bson;
+import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.reactivestreams.FlowAdapters;
 
 public class MongoDbCompletedTransactionStorageService implements CompletedTransactionStorageService {
 
-    private final JavaPlugin plugin;
+    private static final DateTimeFormatter ARCHIVE_FORMAT = DateTimeFormatter.ofPattern("yyyy_MM").withZone(ZoneOffset.UTC);
+
+    private final PublisherAdapter adapter;
+    private final MongoDatabase database;
     private final MongoCollection<CompletedTransaction> collection;
+    private final MongoCollection<PlayerSummary> summaries;
+    private final SalesAnalyticsStorageService salesAnalyticsStorageService;
+    private final BatchingWriter<CompletedTransaction> writer;
 
-    public MongoDbCompletedTransactionStorageService(final MongoDatabase database, final JavaPlugin plugin) {
-        this.plugin = plugin;
+    public MongoDbCompletedTransactionStorageService(final MongoDatabase database, final PublisherAdapter adapter,
+                                                     final SalesAnalyticsStorageService salesAnalyticsStorageService, final JavaPlugin plugin) {
+        this.adapter = adapter;
+        this.database = database;
+        this.salesAnalyticsStorageService = salesAnalyticsStorageService;
         this.collection = database.getCollection("completed", CompletedTransaction.class);
+        this.summaries = database.getCollection("player_summaries", PlayerSummary.class);
+
+        final FileConfiguration config = plugin.getConfig();
+        this.writer = new BatchingWriter<>("completed", this::insertBatch,
+                config.getInt("storage.batching.max-batch-size", 64),
+                config.getLong("storage.batching.linger-millis", 5),
+                config.getInt("storage.batching.max-queue-size", 1024));
     }
 
     /**
@@ -33,18 +80,99 @@ public class MongoDbCompletedTransactionStorageService implements CompletedTrans
      */
     @Override
     public CompletableFuture<Void> storeCompletedTransaction(final CompletedTransaction transaction) {
-        final CompletableFuture<Void> future = new CompletableFuture<>();
+        // Group commit, the transaction is inserted together with other completions of the same moment
+        return this.writer.write(transaction).whenComplete(this.adapter.logFailure("Failed to store completed transaction"));
+    }
 
-        final CallbackSubscriber<Object> subscriber = new CallbackSubscriber<>();
-        subscriber.doOnError(throwable -> {
-            this.plugin.getLogger().severe("Failed to store completed transaction");
-            this.plugin.getLogger().severe(throwable.getMessage());
-        });
-        subscriber.doOnComplete(() -> future.complete(null));
+    /**
+     * Inserts a batch of completed transactions
+     * <p>
+     * The insert is unordered so a failing transaction doesn't stop the rest of the batch.
+     *
+     * @param transactions The transactions
+     *
+     * @return A callback with the error of every transaction, null if it was inserted
+     */
+    private CompletableFuture<List<Throwable>> insertBatch(final List<CompletedTransaction> transactions) {
+        return this.adapter.completion(this.collection.insertMany(transactions, new InsertManyOptions().ordered(false)))
+                .handle((unused, throwable) -> {
+                    if (throwable == null) {
+                        return Collections.<Throwable>nCopies(transactions.size(), null);
+                    }
+                    if (!(throwable instanceof MongoBulkWriteException)) {
+                        // Nothing was written
+                        throw new CompletionException(throwable);
+                    }
 
-        this.collection.insertOne(transaction).subscribe(subscriber);
+                    // Only the reported transactions failed
+                    final List<Throwable> errors = new ArrayList<>(Collections.nCopies(transactions.size(), null));
+                    for (final BulkWriteError writeError : ((MongoBulkWriteException) throwable).getWriteErrors()) {
+                        errors.set(writeError.getIndex(), new IllegalStateException(writeError.getMessage()));
+                    }
+                    return errors;
+                }).thenCompose(errors -> this.updateSummaries(transactions, errors)
+                        .thenCompose(unused -> this.updateRollups(transactions, errors))
+                        .thenApply(unused -> errors));
+    }
 
-        return future;
+    /**
+     * Adds the inserted transactions of a batch to the summaries of their players
+     * <p>
+     * The summaries are updated with $inc, so concurrent updates from other servers don't get lost.
+     *
+     * @param transactions The transactions of the batch
+     * @param errors       The insert error of every transaction
+     *
+     * @return A callback that never fails, the transactions are stored anyway
+     */
+    private CompletableFuture<Void> updateSummaries(final List<CompletedTransaction> transactions, final List<Throwable> errors) {
+        final List<WriteModel<PlayerSummary>> updates = new ArrayList<>();
+        for (int i = 0; i < transactions.size(); i++) {
+            if (errors.get(i) != null) {
+                continue;
+            }
+
+            final CompletedTransaction transaction = transactions.get(i);
+            updates.add(new UpdateOneModel<>(Filters.eq("_id", transaction.getPlayerUuid()), Updates.combine(
+                    Updates.inc("count", 1),
+                    Updates.inc("total_iota", transaction.getIotaAmount()),
+                    Updates.max("last_purchase", transaction.getCompletedTimestamp())
+            ), new UpdateOptions().upsert(true)));
+        }
+        if (updates.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return this.adapter.completion(this.summaries.bulkWrite(updates, new BulkWriteOptions().ordered(false)))
+                .whenComplete(this.adapter.logFailure("Failed to update player summaries"))
+                .exceptionally(throwable -> null);
+    }
+
+    /**
+     * Adds the inserted transactions of a batch to the sales rollups
+     *
+     * @param transactions The transactions of the batch
+     * @param errors       The insert error of every transaction
+     *
+     * @return A callback that never fails, the transactions are stored anyway
+     */
+    private CompletableFuture<Void> updateRollups(final List<CompletedTransaction> transactions, final List<Throwable> errors) {
+        final List<CompletedTransaction> inserted = new ArrayList<>(transactions.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            if (errors.get(i) == null) {
+                inserted.add(transactions.get(i));
+            }
+        }
+        return this.salesAnalyticsStorageService.recordSales(inserted).exceptionally(throwable -> null);
+    }
+
+    /**
+     * Returns the writer that groups the inserts
+     *
+     * @return The batching writer
+     */
+    public BatchingWriter<CompletedTransaction> getWriter() {
+        return this.writer;
     }
 
     /**
@@ -95,6 +223,124 @@ public class MongoDbCompletedTransactionStorageService implements CompletedTrans
         return this.retrieveBulk(Filters.eq("player", playerUuid));
     }
 
+    /**
+     * Retrieves the newest completed transactions of a player
+     *
+     * @param playerUuid The uuid of a player
+     * @param limit      The max amount of transactions
+     *
+     * @return A list of completed transactions, newest first
+     */
+    @Override
+    public CompletableFuture<List<CompletedTransaction>> retrieveRecent(final UUID playerUuid, final int limit) {
+        return this.adapter.toList(this.collection.find(Filters.eq("player", playerUuid))
+                .sort(Sorts.descending("timestamp_completed"))
+                .limit(limit)
+        ).whenComplete(this.adapter.logFailure("Failed to retrieve completed transactions"));
+    }
+
+    /**
+     * Retrieves the purchase summary of a player
+     *
+     * @param playerUuid The uuid of a player
+     *
+     * @return A summary, empty if the player never bought anything
+     */
+    @Override
+    public CompletableFuture<PlayerSummary> retrieveSummary(final UUID playerUuid) {
+        return this.adapter.first(this.summaries.find(Filters.eq("_id", playerUuid)).first())
+                .thenApply(summary -> summary == null ? PlayerSummary.empty(playerUuid) : summary)
+                .whenComplete(this.adapter.logFailure("Failed to retrieve player summary"));
+    }
+
+    /**
+     * Retrieves the summaries of the players that spent the most
+     *
+     * @param limit The max amount of summaries
+     *
+     * @return A list of summaries, highest total first
+     */
+    @Override
+    public CompletableFuture<List<PlayerSummary>> retrieveTopBuyers(final int limit) {
+        return this.adapter.toList(this.summaries.find()
+                .sort(Sorts.descending("total_iota"))
+                .limit(limit)
+        ).whenComplete(this.adapter.logFailure("Failed to retrieve player summaries"));
+    }
+
+    /**
+     * Moves completed transactions into monthly archive collections
+     * <p>
+     * Transactions are copied into the archive collection of the month they were completed in
+     * (completed_archive_YYYY_MM) and removed afterwards. Copies left behind by an interrupted run are
+     * detected by their id, so running this again is safe.
+     *
+     * @param completedBefore Transactions that were completed before this timestamp are archived
+     * @param limit           The max amount of transactions to archive
+     *
+     * @return A callback with the amount of archived transactions
+     */
+    @Override
+    public CompletableFuture<Integer> archiveBefore(final long completedBefore, final int limit) {
+        return this.adapter.toList(this.collection.find(Filters.lt("timestamp_completed", completedBefore))
+                .sort(Sorts.ascending("timestamp_completed"))
+                .limit(limit)
+        ).thenCompose(transactions -> {
+            if (transactions.isEmpty()) {
+                return CompletableFuture.completedFuture(0);
+            }
+
+            // Group the transactions by month
+            final Map<String, List<CompletedTransaction>> transactionsByArchive = new HashMap<>();
+            for (final CompletedTransaction transaction : transactions) {
+                transactionsByArchive.computeIfAbsent("completed_archive_" + ARCHIVE_FORMAT.format(Instant.ofEpochMilli(transaction.getCompletedTimestamp())),
+                        name -> new ArrayList<>()).add(transaction);
+            }
+
+            final List<CompletableFuture<Void>> copyFutures = new ArrayList<>();
+            transactionsByArchive.forEach((name, archiveTransactions) -> copyFutures.add(this.copyToArchive(name, archiveTransactions)));
+
+            final List<UUID> ids = transactions.stream()
+                    .map(CompletedTransaction::getTransactionId)
+                    .collect(Collectors.toList());
+            return CompletableFuture.allOf(copyFutures.toArray(new CompletableFuture[0]))
+                    .thenCompose(unused -> this.delete(Filters.in("_id", ids)))
+                    .thenApply(unused -> ids.size());
+        }).whenComplete(this.adapter.logFailure("Failed to archive completed transactions"));
+    }
+
+    /**
+     * Copies transactions into an archive collection
+     *
+     * @param name         The name of the archive collection
+     * @param transactions The transactions
+     *
+     * @return A callback
+     */
+    private CompletableFuture<Void> copyToArchive(final String name, final List<CompletedTransaction> transactions) {
+        return this.adapter.completion(this.database.getCollection(name, CompletedTransaction.class)
+                .insertMany(transactions, new InsertManyOptions().ordered(false))
+        ).handle((unused, throwable) -> {
+            if (throwable == null || throwable instanceof MongoBulkWriteException && ((MongoBulkWriteException) throwable).getWriteErrors()
+                    .stream().allMatch(writeError -> writeError.getCategory() == ErrorCategory.DUPLICATE_KEY)) {
+                // Duplicates were already copied by an earlier run
+                return null;
+            }
+            throw new CompletionException(throwable);
+        });
+    }
+
+    /**
+     * Deletes transactions
+     *
+     * @param filters Filters to search by
+     *
+     * @return A callback
+     */
+    private CompletableFuture<Void> delete(final Bson filters) {
+        return this.adapter.completion(this.collection.deleteMany(filters));
+    }
+
     /**
      * Retrieves all completed transactions of a specific product
      *
@@ -116,7 +362,8 @@ public class MongoDbCompletedTransactionStorageService implements CompletedTrans
      */
     @Override
     public CompletableFuture<Collection<CompletedTransaction>> retrieveAll(final String address) {
-        return this.retrieveBulk(Filters.eq("address", address));
+        // There is no address field to filter on
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("Completed transactions don't record their address"));
     }
 
     /**
@@ -127,9 +374,8 @@ public class MongoDbCompletedTransactionStorageService implements CompletedTrans
      * @return A single transaction or null
      */
     private CompletableFuture<CompletedTransaction> retrieveSingle(final Bson filters) {
-        // A little hacky
-        return this.retrieveBulk(filters).thenApply(completedTransactions ->
-                completedTransactions.isEmpty() ? null : completedTransactions.iterator().next());
+        return this.adapter.first(this.collection.find(filters).first())
+                .whenComplete(this.adapter.logFailure("Failed to retrieve completed transaction"));
     }
 
     /**
@@ -140,20 +386,79 @@ public class MongoDbCompletedTransactionStorageService implements CompletedTrans
      * @return A collection of transactions
      */
     private CompletableFuture<Collection<CompletedTransaction>> retrieveBulk(final Bson filters) {
-        final CompletableFuture<Collection<CompletedTransaction>> future = new CompletableFuture<>();
-
-        final List<CompletedTransaction> transactions = new ArrayList<>();
-        final CallbackSubscriber<CompletedTransaction> subscriber = new CallbackSubscriber<>();
-        subscriber.doOnNext(transactions::add);
-        subscriber.doOnComplete(() -> future.complete(transactions));
-        subscriber.doOnError(throwable -> {
-            this.plugin.getLogger().severe("Failed to retrieve completed transaction");
-            this.plugin.getLogger().severe(throwable.getMessage());
-        });
+        final CompletableFuture<Collection<CompletedTransaction>> future =
+                this.adapter.toCollection(this.collection.find(filters).batchSize(this.adapter.getBatchSize()), ArrayList::new);
+        return future.whenComplete(this.adapter.logFailure("Failed to retrieve completed transactions"));
+    }
+
+    /**
+     * Retrieves a page of the completed transactions that match a query
+     * <p>
+     * The page starts right after the id in the token instead of skipping the previous pages, so every page is a
+     * single range scan of the index on the queried field and the id, no matter how deep it is. One transaction
+     * more than fits on the page is read to find out whether there is a next page.
+     *
+     * @param query       The query
+     * @param resumeToken The token of the previous page or null for the first page
+     * @param pageSize    The max amount of transactions per page
+     *
+     * @return A callback with the page
+     */
+    @Override
+    public CompletableFuture<Page<CompletedTransaction>> retrievePage(final TransactionQuery query, final String resumeToken, final int pageSize) {
+        final Bson filters;
+        try {
+            filters = resumeToken == null ? this.toFilters(query)
+                    : Filters.and(this.toFilters(query), Filters.gt("_id", UUID.fromString(resumeToken)));
+        } catch (final IllegalArgumentException | UnsupportedOperationException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        final int size = Math.max(1, pageSize);
+        return this.adapter.toList(this.collection.find(filters)
+                .sort(Sorts.ascending("_id"))
+                .limit(size + 1)
+        ).thenApply(transactions -> Page.of(transactions, size, transaction -> transaction.getTransactionId().toString()))
+                .whenComplete(this.adapter.logFailure("Failed to retrieve completed transactions"));
+    }
 
-        this.collection.find(filters).subscribe(subscriber);
+    /**
+     * Streams the records of the completed transactions that match a query
+     * <p>
+     * The projection runs on the server, so only the fields of a record are sent and decoded. The cursor reads the
+     * next batch once the subscriber requested it.
+     *
+     * @param query The query
+     *
+     * @return A publisher of records
+     */
+    @Override
+    public Flow.Publisher<TransactionRecord> streamRecords(final TransactionQuery query) {
+        if (query.getAddress() != null) {
+            return new PagedPublisher<>(resumeToken -> CompletableFuture.failedFuture(new UnsupportedOperationException("Completed transactions don't record their address")));
+        }
+
+        return FlowAdapters.toFlowPublisher(this.collection.aggregate(Arrays.asList(
+                Aggregates.match(this.toFilters(query)),
+                Aggregates.project(Projections.fields(Projections.include("player", "product", "iota"),
+                        Projections.computed("timestamp", "$timestamp_completed")))
+        ), TransactionRecord.class).batchSize(this.adapter.getBatchSize()));
+    }
 
-        return future;
+    /**
+     * Creates the filters of a query
+     *
+     * @param query The query
+     *
+     * @return Filters to search by
+     *
+     * @throws UnsupportedOperationException If the query is by address
+     */
+    private Bson toFilters(final TransactionQuery query) {
+        if (query.getProductId() == null) {
+            throw new UnsupportedOperationException("Completed transactions don't record their address");
+        }
+        return Filters.eq("product", query.getProductId());
     }
 
 }
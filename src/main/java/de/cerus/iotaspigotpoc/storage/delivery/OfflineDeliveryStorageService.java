@@ -0,0 +1,40 @@
+package de.cerus.iotaspigotpoc.storage.delivery;
+
+import de.cerus.iotaspigotpoc.model.Delivery;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+public interface OfflineDeliveryStorageService {
+
+    /**
+     * Stores a delivery that waits for its player to join
+     * <p>
+     * Storing a delivery that is already stored is a no-op.
+     *
+     * @param delivery The delivery
+     *
+     * @return A callback
+     */
+    CompletableFuture<Void> storeDelivery(Delivery delivery);
+
+    /**
+     * Retrieves the waiting deliveries of a player
+     *
+     * @param playerUuid The players uuid
+     *
+     * @return A list of deliveries, oldest first
+     */
+    CompletableFuture<List<Delivery>> retrieveAll(UUID playerUuid);
+
+    /**
+     * Removes deliveries that are handed over to the delivery journal
+     *
+     * @param deliveryIds The ids of the deliveries
+     *
+     * @return A callback
+     */
+    CompletableFuture<Void> removeDeliveries(Collection<UUID> deliveryIds);
+
+}
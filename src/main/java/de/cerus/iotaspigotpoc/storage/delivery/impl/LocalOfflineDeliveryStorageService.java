@@ -0,0 +1,170 @@
+package de.cerus.iotaspigotpoc.storage.delivery.impl;
+
+import com.google.gson.Gson;
+import de.cerus.iotaspigotpoc.model.Delivery;
+import de.cerus.iotaspigotpoc.storage.delivery.OfflineDeliveryStorageService;
+import de.cerus.iotaspigotpoc.storage.log.AppendOnlyLog;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+/**
+ * Offline delivery storage that lives in memory and is persisted in an append-only log
+ */
+public class LocalOfflineDeliveryStorageService implements OfflineDeliveryStorageService {
+
+    private final Map<UUID, Delivery> deliveries = new HashMap<>();
+    private final Map<UUID, List<Delivery>> byPlayer = new HashMap<>();
+    private final AppendOnlyLog<Delivery> log;
+
+    public LocalOfflineDeliveryStorageService(final Path directory, final Gson gson, final boolean fsync, final Logger logger) {
+        this.log = new AppendOnlyLog<>(directory.resolve("offline_deliveries.jsonl"), Delivery.class, gson, fsync,
+                this::size, this::snapshot, logger);
+    }
+
+    /**
+     * Loads the deliveries from the log
+     *
+     * @throws IOException If the log can't be read
+     */
+    public void load() throws IOException {
+        this.log.open((key, delivery) -> {
+            this.unindex(UUID.fromString(key));
+            if (delivery != null) {
+                this.index(delivery);
+            }
+        });
+    }
+
+    /**
+     * Stores a delivery that waits for its player to join
+     *
+     * @param delivery The delivery
+     *
+     * @return A callback
+     */
+    @Override
+    public synchronized CompletableFuture<Void> storeDelivery(final Delivery delivery) {
+        if (this.deliveries.containsKey(delivery.getDeliveryId())) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        this.index(delivery);
+        return this.log.put(delivery.getDeliveryId().toString(), delivery);
+    }
+
+    /**
+     * Retrieves the waiting deliveries of a player
+     *
+     * @param playerUuid The players uuid
+     *
+     * @return A list of deliveries, oldest first
+     */
+    @Override
+    public synchronized CompletableFuture<List<Delivery>> retrieveAll(final UUID playerUuid) {
+        return CompletableFuture.completedFuture(new ArrayList<>(this.byPlayer.getOrDefault(playerUuid, Collections.emptyList())));
+    }
+
+    /**
+     * Removes deliveries that are handed over to the delivery journal
+     *
+     * @param deliveryIds The ids of the deliveries
+     *
+     * @return A callback
+     */
+    @Override
+    public synchronized CompletableFuture<Void> removeDeliveries(final Collection<UUID> deliveryIds) {
+        final List<CompletableFuture<Void>> deleteFutures = new ArrayList<>();
+        for (final UUID deliveryId : deliveryIds) {
+            if (this.unindex(deliveryId)) {
+                deleteFutures.add(this.log.delete(deliveryId.toString()));
+            }
+        }
+        return CompletableFuture.allOf(deleteFutures.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Retrieves every waiting delivery
+     *
+     * @return A collection of deliveries
+     */
+    public synchronized Collection<Delivery> retrieveEverything() {
+        return new ArrayList<>(this.deliveries.values());
+    }
+
+    /**
+     * Closes the log
+     */
+    public void close() {
+        this.log.close();
+    }
+
+    /**
+     * Returns the log the deliveries are persisted in
+     *
+     * @return The log
+     */
+    public AppendOnlyLog<Delivery> getLog() {
+        return this.log;
+    }
+
+    /**
+     * Adds a delivery to the indices
+     *
+     * @param delivery The delivery
+     */
+    private void index(final Delivery delivery) {
+        this.deliveries.put(delivery.getDeliveryId(), delivery);
+        this.byPlayer.computeIfAbsent(delivery.getPlayerUuid(), uuid -> new ArrayList<>()).add(delivery);
+    }
+
+    /**
+     * Removes a delivery from the indices
+     *
+     * @param deliveryId The id of the delivery
+     *
+     * @return True if the delivery was stored
+     */
+    private boolean unindex(final UUID deliveryId) {
+        final Delivery delivery = this.deliveries.remove(deliveryId);
+        if (delivery == null) {
+            return false;
+        }
+
+        final List<Delivery> playerDeliveries = this.byPlayer.get(delivery.getPlayerUuid());
+        playerDeliveries.remove(delivery);
+        if (playerDeliveries.isEmpty()) {
+            this.byPlayer.remove(delivery.getPlayerUuid());
+        }
+        return true;
+    }
+
+    /**
+     * Returns the amount of stored deliveries
+     *
+     * @return The amount of deliveries
+     */
+    private synchronized int size() {
+        return this.deliveries.size();
+    }
+
+    /**
+     * Copies the stored deliveries for a compaction of the log
+     *
+     * @return The deliveries by id
+     */
+    private synchronized Map<String, Delivery> snapshot() {
+        final Map<String, Delivery> snapshot = new HashMap<>();
+        this.deliveries.forEach((deliveryId, delivery) -> snapshot.put(deliveryId.toString(), delivery));
+        return snapshot;
+    }
+
+}
@@ -0,0 +1,79 @@
+package de.cerus.iotaspigotpoc.storage.delivery.impl;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import de.cerus.iotaspigotpoc.model.Delivery;
+import de.cerus.iotaspigotpoc.storage.delivery.OfflineDeliveryStorageService;
+import de.cerus.iotaspigotpoc.util.PublisherAdapter;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+public class MongoDbOfflineDeliveryStorageService implements OfflineDeliveryStorageService {
+
+    private final PublisherAdapter adapter;
+    private final MongoCollection<Delivery> collection;
+
+    public MongoDbOfflineDeliveryStorageService(final MongoDatabase database, final PublisherAdapter adapter) {
+        this.adapter = adapter;
+        this.collection = database.getCollection("offline_deliveries", Delivery.class);
+    }
+
+    /**
+     * Stores a delivery that waits for its player to join
+     *
+     * @param delivery The delivery
+     *
+     * @return A callback
+     */
+    @Override
+    public CompletableFuture<Void> storeDelivery(final Delivery delivery) {
+        return this.adapter.completion(this.collection.insertOne(delivery)).handle((unused, throwable) -> {
+            if (throwable == null || throwable instanceof MongoWriteException
+                    && ((MongoWriteException) throwable).getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                // A duplicate was already stored, e.g. by a replay of the delivery journal
+                return (Void) null;
+            }
+            throw new CompletionException(throwable);
+        }).whenComplete(this.adapter.logFailure("Failed to store offline delivery"));
+    }
+
+    /**
+     * Retrieves the waiting deliveries of a player
+     * <p>
+     * Backed by the "player_timestamp" index, a single indexed read without an in-memory sort.
+     *
+     * @param playerUuid The players uuid
+     *
+     * @return A list of deliveries, oldest first
+     */
+    @Override
+    public CompletableFuture<List<Delivery>> retrieveAll(final UUID playerUuid) {
+        return this.adapter.toList(this.collection.find(Filters.eq("player", playerUuid)).sort(Sorts.ascending("timestamp")))
+                .whenComplete(this.adapter.logFailure("Failed to retrieve offline deliveries"));
+    }
+
+    /**
+     * Removes deliveries that are handed over to the delivery journal
+     *
+     * @param deliveryIds The ids of the deliveries
+     *
+     * @return A callback
+     */
+    @Override
+    public CompletableFuture<Void> removeDeliveries(final Collection<UUID> deliveryIds) {
+        if (deliveryIds.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return this.adapter.completion(this.collection.deleteMany(Filters.in("_id", deliveryIds)))
+                .whenComplete(this.adapter.logFailure("Failed to remove offline deliveries"));
+    }
+
+}
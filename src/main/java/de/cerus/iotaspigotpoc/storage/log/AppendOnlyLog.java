@@ -0,0 +1,310 @@
+package de.cerus.iotaspigotpoc.storage.log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import de.cerus.iotaspigotpoc.storage.batch.BatchingWriter;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * File backed key value log
+ * <p>
+ * Every change is appended as a single JSON line, a put carries the new value and a delete only the key. Replaying
+ * the file from the start restores the latest value of every key. Appends are grouped by a {@link BatchingWriter}
+ * so a burst of changes costs a single write (and fsync). Once the file holds a lot more lines than live keys it is
+ * rewritten with one line per live key.
+ *
+ * @param <T> The value type
+ */
+public class AppendOnlyLog<T> {
+
+    private static final int MIN_COMPACTION_RECORDS = 1000;
+
+    private final Path file;
+    private final Class<T> type;
+    private final Gson gson;
+    private final boolean fsync;
+    private final IntSupplier size;
+    private final Supplier<Map<String, T>> snapshot;
+    private final Logger logger;
+    private final BatchingWriter<String> writer;
+    private FileChannel channel;
+    private int records;
+
+    /**
+     * @param file     The log file
+     * @param type     The value type
+     * @param gson     The gson instance used to (de)serialize values
+     * @param fsync    Whether every batch is forced to the disk
+     * @param size     Supplies the amount of live keys, has to be thread safe
+     * @param snapshot Supplies a copy of the live values when the log is compacted, has to be thread safe
+     * @param logger   The logger
+     */
+    public AppendOnlyLog(final Path file, final Class<T> type, final Gson gson, final boolean fsync,
+                         final IntSupplier size, final Supplier<Map<String, T>> snapshot, final Logger logger) {
+        this.file = file;
+        this.type = type;
+        this.gson = gson;
+        this.fsync = fsync;
+        this.size = size;
+        this.snapshot = snapshot;
+        this.logger = logger;
+
+        final String name = file.getFileName().toString().replace(".jsonl", "");
+        this.writer = new BatchingWriter<>(name, this::append, 256, 2, 65536);
+    }
+
+    /**
+     * Replays the log and opens it for appending
+     * <p>
+     * A torn last line of a crash is cut off first, otherwise the next append would be glued onto it.
+     *
+     * @param consumer Receives every change in order, the value is null for deletes
+     *
+     * @throws IOException If the file can't be read or opened
+     */
+    public void open(final BiConsumer<String, T> consumer) throws IOException {
+        Files.createDirectories(this.file.getParent());
+        if (Files.exists(this.file)) {
+            this.truncateTornTail();
+            try (final BufferedReader reader = Files.newBufferedReader(this.file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+
+                    final JsonObject record;
+                    try {
+                        record = new JsonParser().parse(line).getAsJsonObject();
+                    } catch (final JsonParseException | IllegalStateException e) {
+                        // Damaged line, the torn tail of a crash was already cut off
+                        this.logger.warning("Skipping corrupt record in " + this.file.getFileName());
+                        continue;
+                    }
+
+                    consumer.accept(record.get("k").getAsString(),
+                            record.has("v") ? this.gson.fromJson(record.get("v"), this.type) : null);
+                    this.records++;
+                }
+            }
+        }
+
+        this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Cuts off everything after the last complete line
+     * <p>
+     * Every batch ends with a line break, so a last line without one was never acknowledged.
+     *
+     * @throws IOException If the file can't be read or truncated
+     */
+    private void truncateTornTail() throws IOException {
+        try (final FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final long size = channel.size();
+            final long completeSize = this.findEndOfLastLine(channel, size);
+            if (completeSize < size) {
+                this.logger.warning("Cutting off torn tail of " + this.file.getFileName());
+                channel.truncate(completeSize);
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * Finds the end of the last line break of a file, reading it backwards in chunks
+     *
+     * @param channel The channel of the file
+     * @param size    The size of the file
+     *
+     * @return The position right after the last line break or 0 if there is none
+     *
+     * @throws IOException If the file can't be read
+     */
+    private long findEndOfLastLine(final FileChannel channel, final long size) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long end = size;
+        while (end > 0) {
+            final long start = Math.max(0, end - buffer.capacity());
+            buffer.clear().limit((int) (end - start));
+            while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) >= 0) {
+                // Fill the chunk
+            }
+
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return start + i + 1;
+                }
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    /**
+     * Appends a new value of a key
+     *
+     * @param key   The key
+     * @param value The value
+     *
+     * @return A callback that completes once the change is written
+     */
+    public CompletableFuture<Void> put(final String key, final T value) {
+        final JsonObject record = new JsonObject();
+        record.addProperty("k", key);
+        record.add("v", this.gson.toJsonTree(value, this.type));
+        return this.writer.write(record.toString());
+    }
+
+    /**
+     * Appends the deletion of a key
+     *
+     * @param key The key
+     *
+     * @return A callback that completes once the change is written
+     */
+    public CompletableFuture<Void> delete(final String key) {
+        final JsonObject record = new JsonObject();
+        record.addProperty("k", key);
+        return this.writer.write(record.toString());
+    }
+
+    /**
+     * Writes everything that is queued and closes the file
+     */
+    public void close() {
+        this.writer.close();
+        try {
+            if (this.channel != null) {
+                this.channel.close();
+            }
+        } catch (final IOException e) {
+            this.logger.warning("Failed to close " + this.file.getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the writer that groups the appends
+     *
+     * @return The batching writer
+     */
+    public BatchingWriter<String> getWriter() {
+        return this.writer;
+    }
+
+    /**
+     * Appends a batch of records
+     * <p>
+     * Only ever called from the writer thread, so appends and compactions never overlap.
+     *
+     * @param lines The records
+     *
+     * @return A callback with no errors, or a failed callback if nothing was written
+     */
+    private CompletableFuture<List<Throwable>> append(final List<String> lines) {
+        try {
+            final StringBuilder builder = new StringBuilder();
+            lines.forEach(line -> builder.append(line).append('\n'));
+            this.writeFully(this.channel, builder.toString());
+            if (this.fsync) {
+                this.channel.force(false);
+            }
+
+            this.records += lines.size();
+        } catch (final IOException | UncheckedIOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        try {
+            this.compactIfNeeded();
+        } catch (final IOException e) {
+            // The records are written anyway, try again with the next batch
+            this.logger.warning("Failed to compact " + this.file.getFileName() + ": " + e.getMessage());
+        }
+        return CompletableFuture.completedFuture(Collections.nCopies(lines.size(), null));
+    }
+
+    /**
+     * Rewrites the log once it holds a lot more records than live keys
+     * <p>
+     * Changes that were made after the snapshot was taken are still queued and will be appended to the new
+     * file, replaying them twice is harmless.
+     *
+     * @throws IOException If the new file can't be written
+     */
+    private void compactIfNeeded() throws IOException {
+        if (this.records < MIN_COMPACTION_RECORDS || this.records < this.size.getAsInt() * 2) {
+            return;
+        }
+
+        final Map<String, T> liveValues = this.snapshot.get();
+        final Path tempFile = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        try (final FileChannel tempChannel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final StringBuilder builder = new StringBuilder();
+            liveValues.forEach((key, value) -> {
+                final JsonObject record = new JsonObject();
+                record.addProperty("k", key);
+                record.add("v", this.gson.toJsonTree(value, this.type));
+                builder.append(record).append('\n');
+            });
+            this.writeFully(tempChannel, builder.toString());
+            tempChannel.force(true);
+        }
+
+        // Swap the files first, the old channel stays usable if that fails
+        Files.move(tempFile, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.syncDirectory();
+        final FileChannel oldChannel = this.channel;
+        this.channel = FileChannel.open(this.file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        oldChannel.close();
+        this.records = liveValues.size();
+    }
+
+    /**
+     * Forces the directory of the log to the disk, so a rename survives a crash
+     */
+    private void syncDirectory() {
+        try (final FileChannel directory = FileChannel.open(this.file.getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (final IOException e) {
+            // Directories can't be opened on every platform, e.g. Windows
+            this.logger.fine("Failed to sync the directory of " + this.file.getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a string to a channel
+     *
+     * @param channel The channel
+     * @param content The string
+     *
+     * @throws IOException If the write fails
+     */
+    private void writeFully(final FileChannel channel, final String content) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,21 @@
+package de.cerus.iotaspigotpoc.storage.pending;
+
+/**
+ * Outcome of an attempt to claim the completion of a pending transaction
+ */
+public enum CompletionClaim {
+
+    /**
+     * The transaction was open and is now completed with the claimed hash
+     */
+    CLAIMED,
+    /**
+     * The transaction was not open anymore
+     */
+    NOT_OPEN,
+    /**
+     * The hash was already claimed by another transaction
+     */
+    HASH_TAKEN
+
+}
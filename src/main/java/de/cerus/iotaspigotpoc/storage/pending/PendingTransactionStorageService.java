@@ -1,9 +1,15 @@
 package de.cerus.iotaspigotpoc.storage.pending;
 
+import de.cerus.iotaspigotpoc.model.CompletedTransaction;
 import de.cerus.iotaspigotpoc.model.PendingTransaction;
+import de.cerus.iotaspigotpoc.model.TransactionRecord;
+import de.cerus.iotaspigotpoc.model.TransactionState;
+import de.cerus.iotaspigotpoc.storage.query.Page;
+import de.cerus.iotaspigotpoc.storage.query.TransactionQuery;
 import java.util.Collection;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
 
 public interface PendingTransactionStorageService {
 
@@ -25,6 +31,63 @@ public interface PendingTransactionStorageService {
      */
     CompletableFuture<Void> cancelPendingTransaction(PendingTransaction transaction);
 
+    /**
+     * Atomically moves a transaction from one state to another
+     * <p>
+     * The transition only happens if the transaction is still in the expected state.
+     *
+     * @param transaction The transaction
+     * @param from        The expected current state
+     * @param to          The new state
+     *
+     * @return A callback with whether the transition happened
+     */
+    CompletableFuture<Boolean> transitionState(PendingTransaction transaction, TransactionState from, TransactionState to);
+
+    /**
+     * Atomically completes an open transaction and claims the payment hash for it
+     * <p>
+     * A hash can only be claimed once, so every payment completes at most one transaction. The id of the completed
+     * transaction is stored with the claim.
+     *
+     * @param transaction The transaction
+     * @param completion  The completed transaction that claims the payment
+     *
+     * @return A callback with the outcome
+     */
+    CompletableFuture<CompletionClaim> claimCompletion(PendingTransaction transaction, CompletedTransaction completion);
+
+    /**
+     * Checks whether a transaction was completed by a specific completed transaction
+     * <p>
+     * Tells whether a claim went through when its outcome got lost, e.g. because the server crashed.
+     *
+     * @param transactionId The id of the transaction
+     * @param completionId  The id of the completed transaction
+     *
+     * @return A callback with whether the claim of the completed transaction went through
+     */
+    CompletableFuture<Boolean> isCompletedBy(UUID transactionId, UUID completionId);
+
+    /**
+     * Expires open transactions that were started before a point in time
+     *
+     * @param startedBefore Transactions that were started before this timestamp expire
+     * @param limit         The max amount of transactions to expire
+     *
+     * @return A callback with the transactions that were expired by this call
+     */
+    CompletableFuture<Collection<PendingTransaction>> expireOpen(long startedBefore, int limit);
+
+    /**
+     * Retrieves the open transaction of a player
+     *
+     * @param playerUuid The players uuid
+     *
+     * @return The open transaction or null
+     */
+    CompletableFuture<PendingTransaction> findOpen(UUID playerUuid);
+
     /**
      * Retrieves a transaction by its id
      *
@@ -34,6 +97,13 @@ public interface PendingTransactionStorageService {
      */
     CompletableFuture<PendingTransaction> retrieveById(UUID transactionId);
 
+    /**
+     * Retrieves all open transactions
+     *
+     * @return A collection of open transactions
+     */
+    CompletableFuture<Collection<PendingTransaction>> retrieveAllOpen();
+
     /**
      * Retrieves all pending transactions by a player
      *
@@ -45,6 +115,8 @@ public interface PendingTransactionStorageService {
 
     /**
      * Retrieves all pending transactions of a specific product
+     * <p>
+     * Every match is loaded at once, large reads should use {@link #retrievePage(TransactionQuery, String, int)}.
      *
      * @param productId The product id
      *
@@ -54,6 +126,8 @@ public interface PendingTransactionStorageService {
 
     /**
      * Retrieves all pending transactions that were / will be handled by a specific address
+     * <p>
+     * Every match is loaded at once, large reads should use {@link #retrievePage(TransactionQuery, String, int)}.
      *
      * @param address A address
      *
@@ -61,4 +135,28 @@ public interface PendingTransactionStorageService {
      */
     CompletableFuture<Collection<PendingTransaction>> retrieveAll(String address);
 
+    /**
+     * Retrieves a page of the pending transactions that match a query
+     * <p>
+     * Pages are ordered by transaction id, pass the token of a page to retrieve the next one.
+     *
+     * @param query       The query
+     * @param resumeToken The token of the previous page or null for the first page
+     * @param pageSize    The max amount of transactions per page
+     *
+     * @return A callback with the page
+     */
+    CompletableFuture<Page<PendingTransaction>> retrievePage(TransactionQuery query, String resumeToken, int pageSize);
+
+    /**
+     * Streams the records of the pending transactions that match a query
+     * <p>
+     * Only the fields of a record are read, and only as fast as the subscriber requests them.
+     *
+     * @param query The query
+     *
+     * @return A publisher of records
+     */
+    Flow.Publisher<TransactionRecord> streamRecords(TransactionQuery query);
+
 }
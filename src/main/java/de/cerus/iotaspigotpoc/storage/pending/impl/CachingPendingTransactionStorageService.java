@@ -0,0 +1,268 @@
+package de.cerus.iotaspigotpoc.storage.pending.impl;
+
+import de.cerus.iotaspigotpoc.model.CompletedTransaction;
+import de.cerus.iotaspigotpoc.model.PendingTransaction;
+import de.cerus.iotaspigotpoc.model.TransactionRecord;
+import de.cerus.iotaspigotpoc.model.TransactionState;
+import de.cerus.iotaspigotpoc.storage.cache.PlayerTransactionCache;
+import de.cerus.iotaspigotpoc.storage.pending.CompletionClaim;
+import de.cerus.iotaspigotpoc.storage.pending.PendingTransactionStorageService;
+import de.cerus.iotaspigotpoc.storage.query.Page;
+import de.cerus.iotaspigotpoc.storage.query.TransactionQuery;
+import java.util.Collection;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Write-through cache in front of another pending transaction storage
+ * <p>
+ * The open transactions of online players are answered from memory, writes go to the storage first and
+ * are applied to the cache once they succeeded. Transactions that other servers close don't pass this cache, reads
+ * of the storage that show a cached transaction is no longer open drop it from the cache.
+ */
+public class CachingPendingTransactionStorageService implements PendingTransactionStorageService {
+
+    private final PendingTransactionStorageService delegate;
+    private final PlayerTransactionCache cache;
+
+    public CachingPendingTransactionStorageService(final PendingTransactionStorageService delegate, final PlayerTransactionCache cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    /**
+     * Stores a pending transaction
+     *
+     * @param transaction A transaction
+     *
+     * @return A callback
+     */
+    @Override
+    public CompletableFuture<Void> storePendingTransaction(final PendingTransaction transaction) {
+        return this.delegate.storePendingTransaction(transaction).thenRun(() -> {
+            if (transaction.getState() == TransactionState.OPEN) {
+                this.cache.ifPresent(transaction.getPlayerUuid(), state ->
+                        state.getOpenTransaction().update(openTransaction -> transaction));
+            }
+        });
+    }
+
+    /**
+     * Cancels a pending transaction
+     *
+     * @param transaction The transaction to be cancelled
+     *
+     * @return A callback
+     */
+    @Override
+    public CompletableFuture<Void> cancelPendingTransaction(final PendingTransaction transaction) {
+        return this.delegate.cancelPendingTransaction(transaction).thenRun(() -> this.closeCached(transaction));
+    }
+
+    /**
+     * Atomically moves a transaction from one state to another
+     * <p>
+     * The transition only happens if the transaction is still in the expected state.
+     *
+     * @param transaction The transaction
+     * @param from        The expected current state
+     * @param to          The new state
+     *
+     * @return A callback with whether the transition happened
+     */
+    @Override
+    public CompletableFuture<Boolean> transitionState(final PendingTransaction transaction, final TransactionState from, final TransactionState to) {
+        return this.delegate.transitionState(transaction, from, to).thenApply(transitioned -> {
+            if (transitioned && to != TransactionState.OPEN) {
+                this.closeCached(transaction);
+            }
+            return transitioned;
+        });
+    }
+
+    /**
+     * Atomically completes an open transaction and claims the payment hash for it
+     * <p>
+     * A hash can only be claimed once, so every payment completes at most one transaction.
+     *
+     * @param transaction The transaction
+     * @param completion  The completed transaction that claims the payment
+     *
+     * @return A callback with the outcome
+     */
+    @Override
+    public CompletableFuture<CompletionClaim> claimCompletion(final PendingTransaction transaction, final CompletedTransaction completion) {
+        return this.delegate.claimCompletion(transaction, completion).thenApply(claim -> {
+            if (claim != CompletionClaim.HASH_TAKEN) {
+                // Either we closed it or someone else did
+                this.closeCached(transaction);
+            }
+            return claim;
+        });
+    }
+
+    /**
+     * Checks whether a transaction was completed by a specific completed transaction
+     *
+     * @param transactionId The id of the transaction
+     * @param completionId  The id of the completed transaction
+     *
+     * @return A callback with whether the claim of the completed transaction went through
+     */
+    @Override
+    public CompletableFuture<Boolean> isCompletedBy(final UUID transactionId, final UUID completionId) {
+        return this.delegate.isCompletedBy(transactionId, completionId);
+    }
+
+    /**
+     * Expires open transactions that were started before a point in time
+     *
+     * @param startedBefore Transactions that were started before this timestamp expire
+     * @param limit         The max amount of transactions to expire
+     *
+     * @return A callback with the transactions that were expired by this call
+     */
+    @Override
+    public CompletableFuture<Collection<PendingTransaction>> expireOpen(final long startedBefore, final int limit) {
+        return this.delegate.expireOpen(startedBefore, limit).thenApply(expiredTransactions -> {
+            expiredTransactions.forEach(this::closeCached);
+            return expiredTransactions;
+        });
+    }
+
+    /**
+     * Retrieves the open transaction of a player
+     *
+     * @param playerUuid The players uuid
+     *
+     * @return The open transaction or null
+     */
+    @Override
+    public CompletableFuture<PendingTransaction> findOpen(final UUID playerUuid) {
+        return this.cache.getOrCreate(playerUuid).getOpenTransaction().load(() -> this.delegate.findOpen(playerUuid));
+    }
+
+    /**
+     * Removes a transaction that is no longer open from the cache
+     *
+     * @param transaction The transaction
+     */
+    private void closeCached(final PendingTransaction transaction) {
+        this.cache.ifPresent(transaction.getPlayerUuid(), state -> state.getOpenTransaction().update(openTransaction ->
+                openTransaction != null && openTransaction.getTransactionId().equals(transaction.getTransactionId())
+                        ? null : openTransaction));
+    }
+
+    /**
+     * Retrieves a transaction by its id
+     *
+     * @param transactionId The id
+     *
+     * @return A pending transaction or null
+     */
+    @Override
+    public CompletableFuture<PendingTransaction> retrieveById(final UUID transactionId) {
+        return this.delegate.retrieveById(transactionId).thenApply(transaction -> {
+            if (transaction == null || transaction.getState() != TransactionState.OPEN) {
+                this.invalidateOpen(openTransaction -> openTransaction.getTransactionId().equals(transactionId));
+            }
+            return transaction;
+        });
+    }
+
+    /**
+     * Retrieves all open transactions
+     * <p>
+     * Cached open transactions that are missing from the result were closed, e.g. by another server, and are
+     * dropped from the cache.
+     *
+     * @return A collection of open transactions
+     */
+    @Override
+    public CompletableFuture<Collection<PendingTransaction>> retrieveAllOpen() {
+        return this.delegate.retrieveAllOpen().thenApply(openTransactions -> {
+            final Set<UUID> openIds = openTransactions.stream()
+                    .map(PendingTransaction::getTransactionId)
+                    .collect(Collectors.toSet());
+            this.invalidateOpen(openTransaction -> !openIds.contains(openTransaction.getTransactionId()));
+            return openTransactions;
+        });
+    }
+
+    /**
+     * Drops cached open transactions, they are loaded from the storage again on the next read
+     *
+     * @param stale Whether a cached open transaction is stale
+     */
+    private void invalidateOpen(final Predicate<PendingTransaction> stale) {
+        this.cache.forEach(state -> state.getOpenTransaction().invalidateIf(openTransaction ->
+                openTransaction != null && stale.test(openTransaction)));
+    }
+
+    /**
+     * Retrieves all pending transactions by a player
+     *
+     * @param playerUuid The players uuid
+     *
+     * @return A collection of pending transactions
+     */
+    @Override
+    public CompletableFuture<Collection<PendingTransaction>> retrieveAll(final UUID playerUuid) {
+        return this.delegate.retrieveAll(playerUuid);
+    }
+
+    /**
+     * Retrieves all pending transactions of a specific product
+     *
+     * @param productId The product id
+     *
+     * @return A collection of pending transactions
+     */
+    @Override
+    public CompletableFuture<Collection<PendingTransaction>> retrieveAll(final int productId) {
+        return this.delegate.retrieveAll(productId);
+    }
+
+    /**
+     * Retrieves all pending transactions that were / will be handled by a specific address
+     *
+     * @param address A address
+     *
+     * @return A collection of pending transactions
+     */
+    @Override
+    public CompletableFuture<Collection<PendingTransaction>> retrieveAll(final String address) {
+        return this.delegate.retrieveAll(address);
+    }
+
+    /**
+     * Retrieves a page of the pending transactions that match a query
+     *
+     * @param query       The query
+     * @param resumeToken The token of the previous page or null for the first page
+     * @param pageSize    The max amount of transactions per page
+     *
+     * @return A callback with the page
+     */
+    @Override
+    public CompletableFuture<Page<PendingTransaction>> retrievePage(final TransactionQuery query, final String resumeToken, final int pageSize) {
+        return this.delegate.retrievePage(query, resumeToken, pageSize);
+    }
+
+    /**
+     * Streams the records of the pending transactions that match a query
+     *
+     * @param query The query
+     *
+     * @return A publisher of records
+     */
+    @Override
+    public Flow.Publisher<TransactionRecord> streamRecords(final TransactionQuery query) {
+        return this.delegate.streamRecords(query);
+    }
+
+}
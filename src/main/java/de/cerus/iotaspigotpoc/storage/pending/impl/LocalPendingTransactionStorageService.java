@@ -0,0 +1,533 @@
+package de.cerus.iotaspigotpoc.storage.pending.impl;
+
+import com.google.gson.Gson;
+import de.cerus.iotaspigotpoc.model.CompletedTransaction;
+import de.cerus.iotaspigotpoc.model.PendingTransaction;
+import de.cerus.iotaspigotpoc.model.TransactionRecord;
+import de.cerus.iotaspigotpoc.model.TransactionState;
+import de.cerus.iotaspigotpoc.storage.log.AppendOnlyLog;
+import de.cerus.iotaspigotpoc.storage.pending.CompletionClaim;
+import de.cerus.iotaspigotpoc.storage.pending.PendingTransactionStorageService;
+import de.cerus.iotaspigotpoc.storage.query.Page;
+import de.cerus.iotaspigotpoc.storage.query.PagedPublisher;
+import de.cerus.iotaspigotpoc.storage.query.TransactionQuery;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Pending transaction storage that lives in memory and is persisted in an append-only log
+ * <p>
+ * Open transactions are indexed by player and claimed hashes by hash, so every lookup the plugin does while
+ * players are online is answered from memory. Transactions are sorted by id, so a paged read resumes right after
+ * its token. Closed transactions are dropped once the retention time passed, like the TTL index of the MongoDB
+ * storage does.
+ */
+public class LocalPendingTransactionStorageService implements PendingTransactionStorageService {
+
+    private static final int RECORD_PAGE_SIZE = 256;
+
+    private final NavigableMap<UUID, StoredTransaction> transactions = new TreeMap<>();
+    private final Map<UUID, UUID> openByPlayer = new HashMap<>();
+    private final Map<String, UUID> claimedHashes = new HashMap<>();
+    private final AppendOnlyLog<StoredTransaction> log;
+    private final long retentionMillis;
+
+    public LocalPendingTransactionStorageService(final Path directory, final Gson gson, final boolean fsync,
+                                                 final long retentionMillis, final Logger logger) {
+        this.retentionMillis = retentionMillis;
+        this.log = new AppendOnlyLog<>(directory.resolve("pending.jsonl"), StoredTransaction.class, gson, fsync,
+                this::size, this::snapshot, logger);
+    }
+
+    /**
+     * Loads the transactions from the log
+     *
+     * @throws IOException If the log can't be read
+     */
+    public void load() throws IOException {
+        this.log.open((key, storedTransaction) -> {
+            final UUID transactionId = UUID.fromString(key);
+            this.unindex(transactionId);
+            if (storedTransaction != null) {
+                this.index(storedTransaction);
+            }
+        });
+    }
+
+    /**
+     * Stores a pending transaction
+     *
+     * @param transaction A transaction
+     *
+     * @return A callback
+     */
+    @Override
+    public synchronized CompletableFuture<Void> storePendingTransaction(final PendingTransaction transaction) {
+        return this.write(new StoredTransaction(transaction, null, 0, null));
+    }
+
+    /**
+     * Cancels a pending transaction
+     *
+     * @param transaction The transaction to be cancelled
+     *
+     * @return A callback
+     */
+    @Override
+    public CompletableFuture<Void> cancelPendingTransaction(final PendingTransaction transaction) {
+        return this.transitionState(transaction, TransactionState.OPEN, TransactionState.CANCELLED).thenApply(transitioned -> null);
+    }
+
+    /**
+     * Atomically moves a transaction from one state to another
+     * <p>
+     * The transition only happens if the transaction is still in the expected state.
+     *
+     * @param transaction The transaction
+     * @param from        The expected current state
+     * @param to          The new state
+     *
+     * @return A callback with whether the transition happened
+     */
+    @Override
+    public synchronized CompletableFuture<Boolean> transitionState(final PendingTransaction transaction, final TransactionState from, final TransactionState to) {
+        final StoredTransaction storedTransaction = this.transactions.get(transaction.getTransactionId());
+        if (storedTransaction == null || storedTransaction.transaction.getState() != from) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        return this.write(new StoredTransaction(storedTransaction.transaction.withState(to), storedTransaction.hash,
+                to == TransactionState.OPEN ? 0 : System.currentTimeMillis(), storedTransaction.completionId)).thenApply(unused -> true);
+    }
+
+    /**
+     * Atomically completes an open transaction and claims the payment hash for it
+     * <p>
+     * A hash can only be claimed once, so every payment completes at most one transaction.
+     *
+     * @param transaction The transaction
+     * @param completion  The completed transaction that claims the payment
+     *
+     * @return A callback with the outcome
+     */
+    @Override
+    public synchronized CompletableFuture<CompletionClaim> claimCompletion(final PendingTransaction transaction, final CompletedTransaction completion) {
+        final StoredTransaction storedTransaction = this.transactions.get(transaction.getTransactionId());
+        if (storedTransaction == null || storedTransaction.transaction.getState() != TransactionState.OPEN) {
+            return CompletableFuture.completedFuture(CompletionClaim.NOT_OPEN);
+        }
+        if (this.claimedHashes.containsKey(completion.getTransactionHash())) {
+            return CompletableFuture.completedFuture(CompletionClaim.HASH_TAKEN);
+        }
+
+        return this.write(new StoredTransaction(storedTransaction.transaction.withState(TransactionState.COMPLETED),
+                completion.getTransactionHash(), System.currentTimeMillis(), completion.getTransactionId()))
+                .thenApply(unused -> CompletionClaim.CLAIMED);
+    }
+
+    /**
+     * Checks whether a transaction was completed by a specific completed transaction
+     *
+     * @param transactionId The id of the transaction
+     * @param completionId  The id of the completed transaction
+     *
+     * @return A callback with whether the claim of the completed transaction went through
+     */
+    @Override
+    public synchronized CompletableFuture<Boolean> isCompletedBy(final UUID transactionId, final UUID completionId) {
+        final StoredTransaction storedTransaction = this.transactions.get(transactionId);
+        return CompletableFuture.completedFuture(storedTransaction != null && Objects.equals(storedTransaction.completionId, completionId));
+    }
+
+    /**
+     * Expires open transactions that were started before a point in time
+     * <p>
+     * Closed transactions that are past the retention time are dropped on the way.
+     *
+     * @param startedBefore Transactions that were started before this timestamp expire
+     * @param limit         The max amount of transactions to expire
+     *
+     * @return A callback with the transactions that were expired by this call
+     */
+    @Override
+    public synchronized CompletableFuture<Collection<PendingTransaction>> expireOpen(final long startedBefore, final int limit) {
+        this.dropClosedBefore(System.currentTimeMillis() - this.retentionMillis);
+
+        final List<PendingTransaction> expiredTransactions = new ArrayList<>();
+        final List<CompletableFuture<Void>> writeFutures = new ArrayList<>();
+        for (final UUID transactionId : new ArrayList<>(this.openByPlayer.values())) {
+            if (expiredTransactions.size() >= limit) {
+                break;
+            }
+
+            final StoredTransaction storedTransaction = this.transactions.get(transactionId);
+            if (storedTransaction.transaction.getTimestamp() >= startedBefore) {
+                continue;
+            }
+
+            final PendingTransaction expiredTransaction = storedTransaction.transaction.withState(TransactionState.EXPIRED);
+            writeFutures.add(this.write(new StoredTransaction(expiredTransaction, storedTransaction.hash, System.currentTimeMillis(), null)));
+            expiredTransactions.add(expiredTransaction);
+        }
+        return CompletableFuture.allOf(writeFutures.toArray(new CompletableFuture[0])).thenApply(unused -> expiredTransactions);
+    }
+
+    /**
+     * Drops closed transactions
+     *
+     * @param closedBefore Transactions that were closed before this timestamp are dropped
+     */
+    private void dropClosedBefore(final long closedBefore) {
+        final Iterator<StoredTransaction> iterator = this.transactions.values().iterator();
+        while (iterator.hasNext()) {
+            final StoredTransaction storedTransaction = iterator.next();
+            if (storedTransaction.closedAt == 0 || storedTransaction.closedAt >= closedBefore) {
+                continue;
+            }
+
+            iterator.remove();
+            if (storedTransaction.hash != null) {
+                this.claimedHashes.remove(storedTransaction.hash);
+            }
+            this.log.delete(storedTransaction.transaction.getTransactionId().toString());
+        }
+    }
+
+    /**
+     * Retrieves the open transaction of a player
+     *
+     * @param playerUuid The players uuid
+     *
+     * @return The open transaction or null
+     */
+    @Override
+    public synchronized CompletableFuture<PendingTransaction> findOpen(final UUID playerUuid) {
+        final UUID transactionId = this.openByPlayer.get(playerUuid);
+        return CompletableFuture.completedFuture(transactionId == null ? null : this.transactions.get(transactionId).transaction);
+    }
+
+    /**
+     * Retrieves a transaction by its id
+     *
+     * @param transactionId The id
+     *
+     * @return A pending transaction or null
+     */
+    @Override
+    public synchronized CompletableFuture<PendingTransaction> retrieveById(final UUID transactionId) {
+        final StoredTransaction storedTransaction = this.transactions.get(transactionId);
+        return CompletableFuture.completedFuture(storedTransaction == null ? null : storedTransaction.transaction);
+    }
+
+    /**
+     * Retrieves all open transactions
+     *
+     * @return A collection of open transactions
+     */
+    @Override
+    public synchronized CompletableFuture<Collection<PendingTransaction>> retrieveAllOpen() {
+        return CompletableFuture.completedFuture(this.openByPlayer.values().stream()
+                .map(transactionId -> this.transactions.get(transactionId).transaction)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Retrieves all pending transactions by a player
+     *
+     * @param playerUuid The players uuid
+     *
+     * @return A collection of pending transactions
+     */
+    @Override
+    public CompletableFuture<Collection<PendingTransaction>> retrieveAll(final UUID playerUuid) {
+        return this.retrieveBulk(transaction -> transaction.getPlayerUuid().equals(playerUuid));
+    }
+
+    /**
+     * Retrieves all pending transactions of a specific product
+     *
+     * @param productId The product id
+     *
+     * @return A collection of pending transactions
+     */
+    @Override
+    public CompletableFuture<Collection<PendingTransaction>> retrieveAll(final int productId) {
+        return this.retrieveBulk(transaction -> transaction.getProductId() == productId);
+    }
+
+    /**
+     * Retrieves all pending transactions that were / will be handled by a specific address
+     *
+     * @param address A address
+     *
+     * @return A collection of pending transactions
+     */
+    @Override
+    public CompletableFuture<Collection<PendingTransaction>> retrieveAll(final String address) {
+        return this.retrieveBulk(transaction -> transaction.getAssignedAddress().equals(address));
+    }
+
+    /**
+     * Stores a transaction that was exported from another storage
+     *
+     * @param transaction The transaction
+     * @param hash        The payment hash claimed by the transaction or null
+     *
+     * @return A callback
+     */
+    public synchronized CompletableFuture<Void> restore(final PendingTransaction transaction, final String hash) {
+        // The retention restarts, the original close time is not exported
+        return this.write(new StoredTransaction(transaction, hash,
+                transaction.getState() == TransactionState.OPEN ? 0 : System.currentTimeMillis(), null));
+    }
+
+    /**
+     * Retrieves every stored transaction together with its claimed payment hash
+     *
+     * @return A collection of stored transactions
+     */
+    public synchronized Collection<StoredTransaction> retrieveEverything() {
+        return new ArrayList<>(this.transactions.values());
+    }
+
+    /**
+     * Closes the log
+     */
+    public void close() {
+        this.log.close();
+    }
+
+    /**
+     * Returns the log the transactions are persisted in
+     *
+     * @return The log
+     */
+    public AppendOnlyLog<StoredTransaction> getLog() {
+        return this.log;
+    }
+
+    /**
+     * Retrieves a collection of transactions
+     * <p>
+     * These queries are not used while players are online, so they scan instead of keeping an index.
+     *
+     * @param filter The filter
+     *
+     * @return A collection of transactions
+     */
+    private synchronized CompletableFuture<Collection<PendingTransaction>> retrieveBulk(final Predicate<PendingTransaction> filter) {
+        return CompletableFuture.completedFuture(this.transactions.values().stream()
+                .map(storedTransaction -> storedTransaction.transaction)
+                .filter(filter)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Applies a change to the memory and appends it to the log
+     * <p>
+     * The change is applied right away so concurrent changes see it, e.g. a second claim of the same hash. If the
+     * append fails the previous state is restored, a change that only exists in memory would be lost on restart.
+     *
+     * @param storedTransaction The new state of the transaction
+     *
+     * @return A callback that completes once the change is written
+     */
+    private synchronized CompletableFuture<Void> write(final StoredTransaction storedTransaction) {
+        final UUID transactionId = storedTransaction.transaction.getTransactionId();
+        final StoredTransaction previousTransaction = this.transactions.get(transactionId);
+        this.unindex(transactionId);
+        this.index(storedTransaction);
+        return this.log.put(transactionId.toString(), storedTransaction).whenComplete((unused, throwable) -> {
+            if (throwable != null) {
+                this.rollback(storedTransaction, previousTransaction);
+            }
+        });
+    }
+
+    /**
+     * Restores the state of a transaction whose change could not be written
+     * <p>
+     * Nothing is restored if a later change replaced the failed one.
+     *
+     * @param failedTransaction   The state that could not be written
+     * @param previousTransaction The state before the change, null if the transaction was new
+     */
+    private synchronized void rollback(final StoredTransaction failedTransaction, final StoredTransaction previousTransaction) {
+        final UUID transactionId = failedTransaction.transaction.getTransactionId();
+        if (this.transactions.get(transactionId) != failedTransaction) {
+            return;
+        }
+
+        this.unindex(transactionId);
+        if (previousTransaction != null) {
+            this.index(previousTransaction);
+        }
+    }
+
+    /**
+     * Adds a transaction to the indices
+     *
+     * @param storedTransaction The transaction
+     */
+    private void index(final StoredTransaction storedTransaction) {
+        final PendingTransaction transaction = storedTransaction.transaction;
+        this.transactions.put(transaction.getTransactionId(), storedTransaction);
+        if (transaction.getState() == TransactionState.OPEN) {
+            this.openByPlayer.put(transaction.getPlayerUuid(), transaction.getTransactionId());
+        }
+        if (storedTransaction.hash != null) {
+            this.claimedHashes.put(storedTransaction.hash, transaction.getTransactionId());
+        }
+    }
+
+    /**
+     * Removes a transaction from the indices
+     *
+     * @param transactionId The id of the transaction
+     */
+    private void unindex(final UUID transactionId) {
+        final StoredTransaction storedTransaction = this.transactions.remove(transactionId);
+        if (storedTransaction == null) {
+            return;
+        }
+
+        this.openByPlayer.remove(storedTransaction.transaction.getPlayerUuid(), transactionId);
+        if (storedTransaction.hash != null) {
+            this.claimedHashes.remove(storedTransaction.hash, transactionId);
+        }
+    }
+
+    /**
+     * Returns the amount of stored transactions
+     *
+     * @return The amount of transactions
+     */
+    private synchronized int size() {
+        return this.transactions.size();
+    }
+
+    /**
+     * Copies the stored transactions for a compaction of the log
+     *
+     * @return The transactions by id
+     */
+    private synchronized Map<String, StoredTransaction> snapshot() {
+        final Map<String, StoredTransaction> snapshot = new HashMap<>();
+        this.transactions.forEach((transactionId, storedTransaction) -> snapshot.put(transactionId.toString(), storedTransaction));
+        return snapshot;
+    }
+
+    /**
+     * A transaction as it is persisted
+     */
+    public static final class StoredTransaction {
+
+        private final PendingTransaction transaction;
+        private final String hash;
+        private final long closedAt;
+        private final UUID completionId;
+
+        public StoredTransaction(final PendingTransaction transaction, final String hash, final long closedAt, final UUID completionId) {
+            this.transaction = transaction;
+            this.hash = hash;
+            this.closedAt = closedAt;
+            this.completionId = completionId;
+        }
+
+        public PendingTransaction getTransaction() {
+            return this.transaction;
+        }
+
+        public String getHash() {
+            return this.hash;
+        }
+
+        public long getClosedAt() {
+            return this.closedAt;
+        }
+
+    }
+
+    /**
+     * Retrieves a page of the pending transactions that match a query
+     * <p>
+     * The scan starts right after the id in the token and stops once the page is full, so reading every page
+     * scans the transactions only once in total. One transaction more than fits on the page is read to find out
+     * whether there is a next page.
+     *
+     * @param query       The query
+     * @param resumeToken The token of the previous page or null for the first page
+     * @param pageSize    The max amount of transactions per page
+     *
+     * @return A callback with the page
+     */
+    @Override
+    public synchronized CompletableFuture<Page<PendingTransaction>> retrievePage(final TransactionQuery query, final String resumeToken, final int pageSize) {
+        final NavigableMap<UUID, StoredTransaction> remaining;
+        try {
+            remaining = resumeToken == null ? this.transactions : this.transactions.tailMap(UUID.fromString(resumeToken), false);
+        } catch (final IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        final Predicate<PendingTransaction> filter = this.toFilter(query);
+        final int size = Math.max(1, pageSize);
+        final List<PendingTransaction> transactions = new ArrayList<>(size + 1);
+        for (final StoredTransaction storedTransaction : remaining.values()) {
+            final PendingTransaction transaction = storedTransaction.transaction;
+            if (!filter.test(transaction)) {
+                continue;
+            }
+
+            transactions.add(transaction);
+            if (transactions.size() > size) {
+                break;
+            }
+        }
+        return CompletableFuture.completedFuture(Page.of(transactions, size, transaction -> transaction.getTransactionId().toString()));
+    }
+
+    /**
+     * Streams the records of the pending transactions that match a query
+     * <p>
+     * The records are read page by page, so the storage is only locked for a page at a time.
+     *
+     * @param query The query
+     *
+     * @return A publisher of records
+     */
+    @Override
+    public Flow.Publisher<TransactionRecord> streamRecords(final TransactionQuery query) {
+        return new PagedPublisher<>(resumeToken -> this.retrievePage(query, resumeToken, RECORD_PAGE_SIZE)
+                .thenApply(page -> page.map(TransactionRecord::of)));
+    }
+
+    /**
+     * Creates the filter of a query
+     *
+     * @param query The query
+     *
+     * @return The filter
+     */
+    private Predicate<PendingTransaction> toFilter(final TransactionQuery query) {
+        return query.getProductId() != null
+                ? transaction -> transaction.getProductId() == query.getProductId()
+                : transaction -> transaction.getAssignedAddress().equals(query.getAddress());
+    }
+
+}
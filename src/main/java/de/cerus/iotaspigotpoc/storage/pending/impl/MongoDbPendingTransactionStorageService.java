@@ -1,27 +1,45 @@
 package de.cerus.iotaspigotpoc.storage.pending.impl;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.model.Aggregates;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.UpdateResult;
 import com.mongodb.reactivestreams.client.MongoCollection;
 import com.mongodb.reactivestreams.client.MongoDatabase;
+import de.cerus.iotaspigotpoc.model.CompletedTransaction;
 import de.cerus.iotaspigotpoc.model.PendingTransaction;
+import de.cerus.iotaspigotpoc.model.TransactionRecord;
+import de.cerus.iotaspigotpoc.model.TransactionState;
+import de.cerus.iotaspigotpoc.storage.pending.CompletionClaim;
 import de.cerus.iotaspigotpoc.storage.pending.PendingTransactionStorageService;
-import de.cerus.iotaspigotpoc.util.CallbackSubscriber;
+import de.cerus.iotaspigotpoc.storage.query.Page;
+import de.cerus.iotaspigotpoc.storage.query.TransactionQuery;
+import de.cerus.iotaspigotpoc.util.PublisherAdapter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.stream.Collectors;
 import org.bson.conversions.Bson;
-import org.bukkit.plugin.java.JavaPlugin;
+import org.reactivestreams.FlowAdapters;
 
 public class MongoDbPendingTransactionStorageService implements PendingTransactionStorageService {
 
-    private final JavaPlugin plugin;
+    private final PublisherAdapter adapter;
     private final MongoCollection<PendingTransaction> collection;
 
-    public MongoDbPendingTransactionStorageService(final MongoDatabase database, final JavaPlugin plugin) {
-        this.plugin = plugin;
+    public MongoDbPendingTransactionStorageService(final MongoDatabase database, final PublisherAdapter adapter) {
+        this.adapter = adapter;
         this.collection = database.getCollection("pending", PendingTransaction.class);
     }
 
@@ -34,18 +52,8 @@ public class MongoDbPendingTransactionStorageService implements PendingTransacti
      */
     @Override
     public CompletableFuture<Void> storePendingTransaction(final PendingTransaction transaction) {
-        final CompletableFuture<Void> future = new CompletableFuture<>();
-
-        final CallbackSubscriber<Object> subscriber = new CallbackSubscriber<>();
-        subscriber.doOnError(throwable -> {
-            this.plugin.getLogger().severe("Failed to store pending transaction");
-            this.plugin.getLogger().severe(throwable.getMessage());
-        });
-        subscriber.doOnComplete(() -> future.complete(null));
-
-        this.collection.insertOne(transaction).subscribe(subscriber);
-
-        return future;
+        return this.adapter.completion(this.collection.insertOne(transaction))
+                .whenComplete(this.adapter.logFailure("Failed to store pending transaction"));
     }
 
     /**
@@ -57,18 +65,120 @@ public class MongoDbPendingTransactionStorageService implements PendingTransacti
      */
     @Override
     public CompletableFuture<Void> cancelPendingTransaction(final PendingTransaction transaction) {
-        final CompletableFuture<Void> future = new CompletableFuture<>();
+        return this.transitionState(transaction, TransactionState.OPEN, TransactionState.CANCELLED).thenApply(transitioned -> null);
+    }
 
-        final CallbackSubscriber<Object> subscriber = new CallbackSubscriber<>();
-        subscriber.doOnError(throwable -> {
-            this.plugin.getLogger().severe("Failed to delete pending transaction");
-            this.plugin.getLogger().severe(throwable.getMessage());
-        });
-        subscriber.doOnComplete(() -> future.complete(null));
+    /**
+     * Atomically moves a transaction from one state to another
+     * <p>
+     * The transition only happens if the transaction is still in the expected state.
+     *
+     * @param transaction The transaction
+     * @param from        The expected current state
+     * @param to          The new state
+     *
+     * @return A callback with whether the transition happened
+     */
+    @Override
+    public CompletableFuture<Boolean> transitionState(final PendingTransaction transaction, final TransactionState from, final TransactionState to) {
+        return this.adapter.first(this.collection.updateOne(
+                Filters.and(Filters.eq("_id", transaction.getTransactionId()), Filters.eq("state", from.name())),
+                to == TransactionState.OPEN
+                        ? Updates.combine(Updates.set("state", to.name()), Updates.unset("closed_at"))
+                        : Updates.combine(Updates.set("state", to.name()), Updates.set("closed_at", new Date()))
+        )).thenApply(this::isModified).whenComplete(this.adapter.logFailure("Failed to update pending transaction"));
+    }
 
-        this.collection.deleteOne(Filters.eq("_id", transaction.getTransactionId())).subscribe(subscriber);
+    /**
+     * Atomically completes an open transaction and claims the payment hash for it
+     * <p>
+     * The state check and the hash claim happen in a single conditional update. The hash is backed by a
+     * unique index, so a hash that was claimed before fails with a duplicate key error.
+     *
+     * @param transaction The transaction
+     * @param completion  The completed transaction that claims the payment
+     *
+     * @return A callback with the outcome
+     */
+    @Override
+    public CompletableFuture<CompletionClaim> claimCompletion(final PendingTransaction transaction, final CompletedTransaction completion) {
+        return this.adapter.first(this.collection.updateOne(
+                Filters.and(Filters.eq("_id", transaction.getTransactionId()), Filters.eq("state", TransactionState.OPEN.name())),
+                Updates.combine(Updates.set("state", TransactionState.COMPLETED.name()), Updates.set("hash", completion.getTransactionHash()),
+                        Updates.set("completion", completion.getTransactionId()), Updates.set("closed_at", new Date()))
+        )).handle((result, throwable) -> {
+            if (throwable == null) {
+                return this.isModified(result) ? CompletionClaim.CLAIMED : CompletionClaim.NOT_OPEN;
+            }
+            if (throwable instanceof MongoWriteException
+                    && ((MongoWriteException) throwable).getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                return CompletionClaim.HASH_TAKEN;
+            }
+            throw new CompletionException(throwable);
+        }).whenComplete(this.adapter.logFailure("Failed to complete pending transaction"));
+    }
 
-        return future;
+    /**
+     * Checks whether a transaction was completed by a specific completed transaction
+     *
+     * @param transactionId The id of the transaction
+     * @param completionId  The id of the completed transaction
+     *
+     * @return A callback with whether the claim of the completed transaction went through
+     */
+    @Override
+    public CompletableFuture<Boolean> isCompletedBy(final UUID transactionId, final UUID completionId) {
+        return this.adapter.first(this.collection.countDocuments(Filters.and(Filters.eq("_id", transactionId),
+                Filters.eq("completion", completionId)))).thenApply(count -> count != null && count > 0)
+                .whenComplete(this.adapter.logFailure("Failed to check pending transaction"));
+    }
+
+    /**
+     * Expires open transactions that were started before a point in time
+     * <p>
+     * The transactions are marked with a random sweep id in the same update that expires them, so only the
+     * transactions that were expired by this call are returned, even if other servers sweep at the same time.
+     *
+     * @param startedBefore Transactions that were started before this timestamp expire
+     * @param limit         The max amount of transactions to expire
+     *
+     * @return A callback with the transactions that were expired by this call
+     */
+    @Override
+    public CompletableFuture<Collection<PendingTransaction>> expireOpen(final long startedBefore, final int limit) {
+        return this.adapter.toList(this.collection
+                .find(Filters.and(Filters.eq("state", TransactionState.OPEN.name()), Filters.lt("timestamp", startedBefore)))
+                .limit(limit)
+        ).thenCompose(candidates -> {
+            if (candidates.isEmpty()) {
+                return CompletableFuture.completedFuture(Collections.<PendingTransaction>emptyList());
+            }
+
+            final UUID sweepId = UUID.randomUUID();
+            final List<UUID> ids = candidates.stream().map(PendingTransaction::getTransactionId).collect(Collectors.toList());
+
+            // Transactions that were completed in the meantime don't match anymore
+            return this.adapter.completion(this.collection.updateMany(
+                    Filters.and(Filters.in("_id", ids), Filters.eq("state", TransactionState.OPEN.name())),
+                    Updates.combine(Updates.set("state", TransactionState.EXPIRED.name()), Updates.set("closed_at", new Date()),
+                            Updates.set("sweep", sweepId))
+            )).thenCompose(unused -> this.retrieveBulk(Filters.eq("sweep", sweepId)));
+        }).whenComplete(this.adapter.logFailure("Failed to expire pending transactions"));
+    }
+
+    /**
+     * Retrieves the open transaction of a player
+     *
+     * @param playerUuid The players uuid
+     *
+     * @return The open transaction or null
+     */
+    @Override
+    public CompletableFuture<PendingTransaction> findOpen(final UUID playerUuid) {
+        return this.adapter.first(this.collection
+                .find(Filters.and(Filters.eq("player", playerUuid), Filters.eq("state", TransactionState.OPEN.name())))
+                .first()
+        ).whenComplete(this.adapter.logFailure("Failed to retrieve open transaction"));
     }
 
     /**
@@ -80,20 +190,18 @@ public class MongoDbPendingTransactionStorageService implements PendingTransacti
      */
     @Override
     public CompletableFuture<PendingTransaction> retrieveById(final UUID transactionId) {
-        final CompletableFuture<PendingTransaction> future = new CompletableFuture<>();
-
-        final AtomicReference<PendingTransaction> transactionRef = new AtomicReference<>(null);
-        final CallbackSubscriber<PendingTransaction> subscriber = new CallbackSubscriber<>();
-        subscriber.doOnNext(transactionRef::set);
-        subscriber.doOnComplete(() -> future.complete(transactionRef.get()));
-        subscriber.doOnError(throwable -> {
-            this.plugin.getLogger().severe("Failed to retrieve pending transaction");
-            this.plugin.getLogger().severe(throwable.getMessage());
-        });
-
-        this.collection.find(Filters.eq("_id", transactionId)).subscribe(subscriber);
+        return this.adapter.first(this.collection.find(Filters.eq("_id", transactionId)).first())
+                .whenComplete(this.adapter.logFailure("Failed to retrieve pending transaction"));
+    }
 
-        return future;
+    /**
+     * Retrieves all open transactions
+     *
+     * @return A collection of open transactions
+     */
+    @Override
+    public CompletableFuture<Collection<PendingTransaction>> retrieveAllOpen() {
+        return this.retrieveBulk(Filters.eq("state", TransactionState.OPEN.name()));
     }
 
     /**
@@ -140,20 +248,82 @@ public class MongoDbPendingTransactionStorageService implements PendingTransacti
      * @return A collection of transactions
      */
     private CompletableFuture<Collection<PendingTransaction>> retrieveBulk(final Bson filters) {
-        final CompletableFuture<Collection<PendingTransaction>> future = new CompletableFuture<>();
+        final CompletableFuture<Collection<PendingTransaction>> future =
+                this.adapter.toCollection(this.collection.find(filters).batchSize(this.adapter.getBatchSize()), ArrayList::new);
+        return future.whenComplete(this.adapter.logFailure("Failed to retrieve pending transactions"));
+    }
+
+    /**
+     * Checks whether an update changed a document
+     *
+     * @param result The result of the update or null
+     *
+     * @return True if a document was changed
+     */
+    private boolean isModified(final UpdateResult result) {
+        return result != null && result.getModifiedCount() == 1;
+    }
 
-        final List<PendingTransaction> transactions = new ArrayList<>();
-        final CallbackSubscriber<PendingTransaction> subscriber = new CallbackSubscriber<>();
-        subscriber.doOnNext(transactions::add);
-        subscriber.doOnComplete(() -> future.complete(transactions));
-        subscriber.doOnError(throwable -> {
-            this.plugin.getLogger().severe("Failed to retrieve pending transaction");
-            this.plugin.getLogger().severe(throwable.getMessage());
-        });
+    /**
+     * Retrieves a page of the pending transactions that match a query
+     * <p>
+     * The page starts right after the id in the token instead of skipping the previous pages, so every page is a
+     * single range scan of the index on the queried field and the id, no matter how deep it is. One transaction
+     * more than fits on the page is read to find out whether there is a next page.
+     *
+     * @param query       The query
+     * @param resumeToken The token of the previous page or null for the first page
+     * @param pageSize    The max amount of transactions per page
+     *
+     * @return A callback with the page
+     */
+    @Override
+    public CompletableFuture<Page<PendingTransaction>> retrievePage(final TransactionQuery query, final String resumeToken, final int pageSize) {
+        final Bson filters;
+        try {
+            filters = resumeToken == null ? this.toFilters(query)
+                    : Filters.and(this.toFilters(query), Filters.gt("_id", UUID.fromString(resumeToken)));
+        } catch (final IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
 
-        this.collection.find(filters).subscribe(subscriber);
+        final int size = Math.max(1, pageSize);
+        return this.adapter.toList(this.collection.find(filters)
+                .sort(Sorts.ascending("_id"))
+                .limit(size + 1)
+        ).thenApply(transactions -> Page.of(transactions, size, transaction -> transaction.getTransactionId().toString()))
+                .whenComplete(this.adapter.logFailure("Failed to retrieve pending transactions"));
+    }
 
-        return future;
+    /**
+     * Streams the records of the pending transactions that match a query
+     * <p>
+     * The projection runs on the server, so only the fields of a record are sent and decoded. The cursor reads the
+     * next batch once the subscriber requested it.
+     *
+     * @param query The query
+     *
+     * @return A publisher of records
+     */
+    @Override
+    public Flow.Publisher<TransactionRecord> streamRecords(final TransactionQuery query) {
+        return FlowAdapters.toFlowPublisher(this.collection.aggregate(Arrays.asList(
+                Aggregates.match(this.toFilters(query)),
+                Aggregates.project(Projections.include("player", "product", "iota", "timestamp"))
+        ), TransactionRecord.class).batchSize(this.adapter.getBatchSize()));
+    }
+
+    /**
+     * Creates the filters of a query
+     *
+     * @param query The query
+     *
+     * @return Filters to search by
+     */
+    private Bson toFilters(final TransactionQuery query) {
+        return query.getProductId() != null
+                ? Filters.eq("product", query.getProductId())
+                : Filters.eq("address", query.getAddress());
     }
 
 }
@@ -0,0 +1,92 @@
+package de.cerus.iotaspigotpoc.storage.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A page of a paged read and the token to resume after it
+ * <p>
+ * Pages are ordered by transaction id and the token is the id of the last item. The next page starts right
+ * after it, so transactions that are added or removed between two pages never shift the following pages.
+ *
+ * @param <T> The item type
+ */
+public final class Page<T> {
+
+    private final List<T> items;
+    private final String nextToken;
+
+    /**
+     * @param items     The items
+     * @param nextToken The token of the next page or null if this is the last page
+     */
+    public Page(final List<T> items, final String nextToken) {
+        this.items = Collections.unmodifiableList(items);
+        this.nextToken = nextToken;
+    }
+
+    /**
+     * Creates a page from a read that asked for one item more than fits on the page
+     * <p>
+     * The extra item only tells that there is a next page, it is dropped and read again as part of the next page.
+     *
+     * @param items    The items that were read, up to one more than the page size
+     * @param pageSize The max amount of items on the page
+     * @param tokenOf  Creates the token that resumes after an item
+     * @param <T>      The item type
+     *
+     * @return A page
+     */
+    public static <T> Page<T> of(final List<T> items, final int pageSize, final Function<? super T, String> tokenOf) {
+        if (items.size() <= pageSize) {
+            return new Page<>(items, null);
+        }
+
+        final List<T> pageItems = new ArrayList<>(items.subList(0, pageSize));
+        return new Page<>(pageItems, tokenOf.apply(pageItems.get(pageSize - 1)));
+    }
+
+    /**
+     * Converts the items of this page
+     *
+     * @param mapper The conversion
+     * @param <R>    The new item type
+     *
+     * @return A page with the converted items and the same token
+     */
+    public <R> Page<R> map(final Function<? super T, ? extends R> mapper) {
+        final List<R> mapped = new ArrayList<>(this.items.size());
+        this.items.forEach(item -> mapped.add(mapper.apply(item)));
+        return new Page<>(mapped, this.nextToken);
+    }
+
+    /**
+     * Returns the items of this page
+     *
+     * @return An unmodifiable list of items
+     */
+    public List<T> getItems() {
+        return this.items;
+    }
+
+    /**
+     * Returns the token to pass to the next read
+     *
+     * @return The token or null if this is the last page
+     */
+    public String getNextToken() {
+        return this.nextToken;
+    }
+
+    /**
+     * Checks whether there are no pages after this one
+     *
+     * @return True if this is the last page
+     */
+    public boolean isLast() {
+        return this.nextToken == null;
+    }
+
+}
@@ -0,0 +1,149 @@
+package de.cerus.iotaspigotpoc.storage.query;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Publishes the items of a paged read, loading the next page only once the subscriber wants more items
+ * <p>
+ * At most one page is held at a time, so a subscriber that keeps up streams any amount of items in constant
+ * memory. Every subscriber reads the pages on its own, starting with the first one.
+ *
+ * @param <T> The item type
+ */
+public class PagedPublisher<T> implements Flow.Publisher<T> {
+
+    private final Function<String, CompletableFuture<Page<T>>> pageLoader;
+
+    /**
+     * @param pageLoader Loads the page after a resume token, null for the first page
+     */
+    public PagedPublisher(final Function<String, CompletableFuture<Page<T>>> pageLoader) {
+        this.pageLoader = pageLoader;
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super T> subscriber) {
+        final PageSubscription<T> subscription = new PageSubscription<>(subscriber, this.pageLoader);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Emits the items of the current page and loads the next one on demand
+     * <p>
+     * Everything that touches the subscriber runs in {@link #drain()}, which only ever runs on one thread at a time.
+     *
+     * @param <T> The item type
+     */
+    private static final class PageSubscription<T> implements Flow.Subscription {
+
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicLong requested = new AtomicLong();
+        private final Flow.Subscriber<? super T> subscriber;
+        private final Function<String, CompletableFuture<Page<T>>> pageLoader;
+        private volatile boolean cancelled;
+        private volatile Page<T> loadedPage;
+        private volatile Throwable error;
+
+        // Only touched by drain()
+        private Iterator<T> items;
+        private String nextToken;
+        private boolean lastPage;
+        private boolean loading;
+        private boolean done;
+
+        private PageSubscription(final Flow.Subscriber<? super T> subscriber, final Function<String, CompletableFuture<Page<T>>> pageLoader) {
+            this.subscriber = subscriber;
+            this.pageLoader = pageLoader;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                this.error = new IllegalArgumentException("Requested " + n + " items, requests have to be positive");
+            } else {
+                this.requested.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            }
+            this.drain();
+        }
+
+        @Override
+        public void cancel() {
+            this.cancelled = true;
+        }
+
+        /**
+         * Emits as many items as requested and loads the next page if the current one is used up
+         */
+        private void drain() {
+            if (this.wip.getAndIncrement() != 0) {
+                // Another thread is draining and runs again for us
+                return;
+            }
+
+            int missed = 1;
+            do {
+                if (this.cancelled || this.done) {
+                    return;
+                }
+                if (this.error != null) {
+                    this.done = true;
+                    this.subscriber.onError(this.error);
+                    return;
+                }
+
+                final Page<T> page = this.loadedPage;
+                if (page != null) {
+                    this.loadedPage = null;
+                    this.loading = false;
+                    this.items = page.getItems().iterator();
+                    this.nextToken = page.getNextToken();
+                    this.lastPage = page.isLast();
+                }
+
+                while (this.items != null && this.items.hasNext() && this.requested.get() > 0) {
+                    if (this.cancelled) {
+                        return;
+                    }
+                    this.subscriber.onNext(this.items.next());
+                    this.requested.decrementAndGet();
+                }
+
+                if (this.items == null || !this.items.hasNext()) {
+                    if (this.lastPage) {
+                        this.done = true;
+                        this.subscriber.onComplete();
+                        return;
+                    }
+                    if (!this.loading && this.requested.get() > 0) {
+                        this.loading = true;
+                        final CompletableFuture<Page<T>> pageFuture;
+                        try {
+                            pageFuture = this.pageLoader.apply(this.nextToken);
+                        } catch (final RuntimeException e) {
+                            this.done = true;
+                            this.subscriber.onError(e);
+                            return;
+                        }
+                        pageFuture.whenComplete((loaded, throwable) -> {
+                            if (throwable != null) {
+                                this.error = throwable;
+                            } else {
+                                this.loadedPage = loaded;
+                            }
+                            this.drain();
+                        });
+                    }
+                }
+
+                missed = this.wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+    }
+
+}
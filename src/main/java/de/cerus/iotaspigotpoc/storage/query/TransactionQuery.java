@@ -0,0 +1,61 @@
+package de.cerus.iotaspigotpoc.storage.query;
+
+/**
+ * Selects the transactions of a streamed or paged read
+ */
+public final class TransactionQuery {
+
+    private final Integer productId;
+    private final String address;
+
+    private TransactionQuery(final Integer productId, final String address) {
+        this.productId = productId;
+        this.address = address;
+    }
+
+    /**
+     * Selects the transactions of a product
+     *
+     * @param productId The product id
+     *
+     * @return A query
+     */
+    public static TransactionQuery byProduct(final int productId) {
+        return new TransactionQuery(productId, null);
+    }
+
+    /**
+     * Selects the transactions that were / will be handled by an address
+     *
+     * @param address A address
+     *
+     * @return A query
+     */
+    public static TransactionQuery byAddress(final String address) {
+        return new TransactionQuery(null, address);
+    }
+
+    /**
+     * Returns the selected product
+     *
+     * @return The product id or null if the query doesn't select by product
+     */
+    public Integer getProductId() {
+        return this.productId;
+    }
+
+    /**
+     * Returns the selected address
+     *
+     * @return The address or null if the query doesn't select by address
+     */
+    public String getAddress() {
+        return this.address;
+    }
+
+    @Override
+    public String toString() {
+        return this.productId != null ? "product #" + this.productId : "address " + this.address;
+    }
+
+}
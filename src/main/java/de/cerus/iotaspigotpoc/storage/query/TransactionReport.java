@@ -0,0 +1,112 @@
+package de.cerus.iotaspigotpoc.storage.query;
+
+import de.cerus.iotaspigotpoc.model.TransactionRecord;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Sums up a stream of transaction records
+ * <p>
+ * Records are requested in batches and only the totals are kept, so a report over any amount of transactions
+ * runs in constant memory.
+ */
+public final class TransactionReport {
+
+    private long transactions;
+    private long totalIota;
+    private long firstTimestamp;
+    private long lastTimestamp;
+
+    private TransactionReport() {
+    }
+
+    /**
+     * Reads every record of a stream and sums them up
+     *
+     * @param publisher The records
+     * @param batchSize The amount of records requested at once
+     *
+     * @return A callback with the report
+     */
+    public static CompletableFuture<TransactionReport> of(final Flow.Publisher<TransactionRecord> publisher, final int batchSize) {
+        final ReportSubscriber subscriber = new ReportSubscriber(Math.max(1, batchSize));
+        publisher.subscribe(subscriber);
+        return subscriber.future;
+    }
+
+    /**
+     * Adds a record to the totals
+     *
+     * @param record The record
+     */
+    private void add(final TransactionRecord record) {
+        if (this.transactions == 0 || record.getTimestamp() < this.firstTimestamp) {
+            this.firstTimestamp = record.getTimestamp();
+        }
+        if (this.transactions == 0 || record.getTimestamp() > this.lastTimestamp) {
+            this.lastTimestamp = record.getTimestamp();
+        }
+        this.transactions++;
+        this.totalIota += record.getIotaAmount();
+    }
+
+    public long getTransactions() {
+        return this.transactions;
+    }
+
+    public long getTotalIota() {
+        return this.totalIota;
+    }
+
+    public long getFirstTimestamp() {
+        return this.firstTimestamp;
+    }
+
+    public long getLastTimestamp() {
+        return this.lastTimestamp;
+    }
+
+    /**
+     * Requests the next batch once the current one is consumed
+     */
+    private static final class ReportSubscriber implements Flow.Subscriber<TransactionRecord> {
+
+        private final CompletableFuture<TransactionReport> future = new CompletableFuture<>();
+        private final TransactionReport report = new TransactionReport();
+        private final int batchSize;
+        private Flow.Subscription subscription;
+        private long outstanding;
+
+        private ReportSubscriber(final int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public void onSubscribe(final Flow.Subscription subscription) {
+            this.subscription = subscription;
+            this.outstanding = this.batchSize;
+            subscription.request(this.batchSize);
+        }
+
+        @Override
+        public void onNext(final TransactionRecord record) {
+            this.report.add(record);
+            if (--this.outstanding == 0) {
+                this.outstanding = this.batchSize;
+                this.subscription.request(this.batchSize);
+            }
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+            this.future.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            this.future.complete(this.report);
+        }
+
+    }
+
+}
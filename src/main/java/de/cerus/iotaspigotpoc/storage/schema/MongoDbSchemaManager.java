@@ -0,0 +1,638 @@
+package de.cerus.iotaspigotpoc.storage.schema;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import de.cerus.iotaspigotpoc.model.RollupPeriod;
+import de.cerus.iotaspigotpoc.model.TransactionState;
+import de.cerus.iotaspigotpoc.storage.analytics.SalesRollupBuilder;
+import de.cerus.iotaspigotpoc.util.PublisherAdapter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * Keeps the MongoDB schema up to date
+ * <p>
+ * On startup the declared indices are created (creating an existing index is a no-op), pending migrations are
+ * run in order, the unique indices are created and the queries of the storage services are explained to make sure
+ * none of them scans a whole collection. The unique indices come after the migrations, which remove the duplicates
+ * that would make creating them fail. The schema version is stored in the "schema" collection.
+ */
+public class MongoDbSchemaManager {
+
+    private static final String VERSION_ID = "version";
+    private static final UUID SAMPLE_UUID = new UUID(0, 0);
+
+    private final JavaPlugin plugin;
+    private final PublisherAdapter adapter;
+    private final MongoDatabase database;
+    private final MongoCollection<Document> schemaCollection;
+    private final List<CollectionSchema> schemas;
+    private final List<Function<MongoDatabase, CompletableFuture<Void>>> migrations;
+
+    public MongoDbSchemaManager(final MongoDatabase database, final PublisherAdapter adapter, final JavaPlugin plugin) {
+        this.plugin = plugin;
+        this.adapter = adapter;
+        this.database = database;
+        this.schemaCollection = database.getCollection("schema");
+        this.schemas = this.declareSchemas();
+        this.migrations = Arrays.asList(
+                this::migrateLegacyTransactionStates,
+                this::removeTakenAddresses,
+                this::buildPlayerSummaries,
+                this::dropReplacedIndices,
+                this::buildSalesRollups,
+                this::dropStaleIndices,
+                this::moveDuplicateCompletions
+        );
+    }
+
+    /**
+     * Declares the indices of every collection and the queries that have to be backed by them
+     *
+     * @return The collection schemas
+     */
+    private List<CollectionSchema> declareSchemas() {
+        // Closed transactions are deleted by MongoDB once the retention time passed. A deleted transaction can't be
+        // paid again: a payment only matches the transaction whose id is in its message, and that id is gone.
+        final long retentionSeconds = Math.max(1, this.plugin.getConfig().getLong("transaction.retention", 30)) * 24 * 60 * 60;
+
+        return Arrays.asList(
+                new CollectionSchema("pending")
+                        .index(Indexes.ascending("player", "state"), new IndexOptions().name("player_state"))
+                        .index(Indexes.ascending("state", "timestamp"), new IndexOptions().name("state_timestamp"))
+                        .index(Indexes.ascending("sweep"), new IndexOptions().name("sweep").sparse(true))
+                        .index(Indexes.ascending("closed_at"), new IndexOptions().name("closed_at")
+                                .expireAfter(retentionSeconds, TimeUnit.SECONDS))
+                        .index(Indexes.ascending("product", "_id"), new IndexOptions().name("product_id"))
+                        .index(Indexes.ascending("address", "_id"), new IndexOptions().name("address_id"))
+                        .index(Indexes.ascending("hash"), new IndexOptions().name("hash").unique(true)
+                                .partialFilterExpression(Filters.exists("hash")))
+                        .query(new Document("_id", SAMPLE_UUID))
+                        .query(new Document("player", SAMPLE_UUID).append("state", TransactionState.OPEN.name()))
+                        .query(new Document("player", SAMPLE_UUID))
+                        .query(new Document("state", TransactionState.OPEN.name()))
+                        .query(new Document("state", TransactionState.OPEN.name()).append("timestamp", new Document("$lt", 0L)))
+                        .query(new Document("sweep", SAMPLE_UUID))
+                        .query(new Document("product", 0))
+                        .sortedQuery(new Document("product", 0).append("_id", new Document("$gt", SAMPLE_UUID)), new Document("_id", 1))
+                        .query(new Document("address", ""))
+                        .sortedQuery(new Document("address", "").append("_id", new Document("$gt", SAMPLE_UUID)), new Document("_id", 1)),
+                new CollectionSchema("completed")
+                        .index(Indexes.ascending("hash"), new IndexOptions().name("hash").unique(true))
+                        .index(Indexes.ascending("linked_transaction"), new IndexOptions().name("linked_transaction").unique(true))
+                        .index(Indexes.compoundIndex(Indexes.ascending("player"), Indexes.descending("timestamp_completed")),
+                                new IndexOptions().name("player_recent"))
+                        .index(Indexes.ascending("product", "_id"), new IndexOptions().name("product_id"))
+                        .index(Indexes.ascending("timestamp_completed"), new IndexOptions().name("timestamp_completed"))
+                        .query(new Document("_id", SAMPLE_UUID))
+                        .query(new Document("hash", ""))
+                        .query(new Document("linked_transaction", SAMPLE_UUID))
+                        .query(new Document("player", SAMPLE_UUID))
+                        .sortedQuery(new Document("player", SAMPLE_UUID), new Document("timestamp_completed", -1))
+                        .query(new Document("product", 0))
+                        .sortedQuery(new Document("product", 0).append("_id", new Document("$gt", SAMPLE_UUID)), new Document("_id", 1))
+                        .sortedQuery(new Document("timestamp_completed", new Document("$lt", 0L)), new Document("timestamp_completed", 1)),
+                new CollectionSchema("player_summaries")
+                        .index(Indexes.descending("total_iota"), new IndexOptions().name("total_iota"))
+                        .query(new Document("_id", SAMPLE_UUID))
+                        .sortedQuery(new Document(), new Document("total_iota", -1)),
+                new CollectionSchema("sales_rollups")
+                        .index(Indexes.ascending("period", "product", "bucket"), new IndexOptions().name("period_product_bucket"))
+                        .query(new Document("_id", ""))
+                        .query(new Document("period", RollupPeriod.TOTAL.name()))
+                        .query(new Document("period", RollupPeriod.HOUR.name()).append("bucket", new Document("$lt", 0L)))
+                        .sortedQuery(new Document("period", RollupPeriod.HOUR.name()).append("product", 0)
+                                .append("bucket", new Document("$gte", 0L).append("$lt", 0L)), new Document("bucket", 1)),
+                new CollectionSchema("addresses")
+                        .index(Indexes.ascending("index"), new IndexOptions().name("index"))
+                        .query(new Document("_id", ""))
+                        .sortedQuery(new Document(), new Document("index", 1)),
+                new CollectionSchema("offline_deliveries")
+                        .index(Indexes.ascending("player", "timestamp"), new IndexOptions().name("player_timestamp"))
+                        .query(new Document("_id", SAMPLE_UUID))
+                        .sortedQuery(new Document("player", SAMPLE_UUID), new Document("timestamp", 1))
+        );
+    }
+
+    /**
+     * Creates the indices, runs pending migrations and checks the query plans
+     * <p>
+     * Every step logs its own errors, a failing step doesn't stop the following steps.
+     *
+     * @return A callback that completes once everything ran
+     */
+    public CompletableFuture<Void> initialize() {
+        return this.createIndices(false)
+                .handle((unused, throwable) -> null)
+                .thenCompose(unused -> this.migrate())
+                .handle((unused, throwable) -> null)
+                .thenCompose(unused -> this.createIndices(true))
+                .handle((unused, throwable) -> null)
+                .thenCompose(unused -> this.explainQueries());
+    }
+
+    /**
+     * Creates either the unique or the other declared indices and verifies they exist
+     * <p>
+     * Both kinds are created separately, so duplicates that block a unique index don't block the other indices.
+     * The expiry of existing TTL indices is updated first, creating them with another expiry would fail.
+     *
+     * @param unique Whether to create the unique indices
+     *
+     * @return A callback
+     */
+    private CompletableFuture<Void> createIndices(final boolean unique) {
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (final CollectionSchema schema : this.schemas) {
+            final List<IndexModel> indices = schema.getIndices().stream()
+                    .filter(index -> index.getOptions().isUnique() == unique)
+                    .collect(Collectors.toList());
+            if (indices.isEmpty()) {
+                continue;
+            }
+
+            final MongoCollection<Document> collection = this.database.getCollection(schema.getName());
+            futures.add(this.adapter.toList(collection.listIndexes())
+                    .thenCompose(indexDocuments -> this.updateExpiries(schema, indices, indexDocuments))
+                    .thenCompose(unused -> this.adapter.toList(collection.createIndexes(indices)))
+                    .thenCompose(unused -> this.adapter.toList(collection.listIndexes()))
+                    .thenAccept(indexDocuments -> {
+                        final Set<String> existing = indexDocuments.stream()
+                                .map(document -> document.getString("name"))
+                                .collect(Collectors.toSet());
+                        for (final IndexModel index : indices) {
+                            if (!existing.contains(index.getOptions().getName())) {
+                                this.plugin.getLogger().warning("Index '" + index.getOptions().getName()
+                                        + "' is missing on collection '" + schema.getName() + "'");
+                            }
+                        }
+                    })
+                    .whenComplete((unused, throwable) -> {
+                        if (throwable != null) {
+                            this.plugin.getLogger().severe("Failed to create indices on collection '" + schema.getName() + "'");
+                            this.plugin.getLogger().severe(throwable.getMessage());
+                        }
+                    }));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Changes the expiry of existing TTL indices that differs from the declared one
+     *
+     * @param schema         The schema of the collection
+     * @param indices        The declared indices to update
+     * @param indexDocuments The existing indices of the collection
+     *
+     * @return A callback
+     */
+    private CompletableFuture<Void> updateExpiries(final CollectionSchema schema, final List<IndexModel> indices, final List<Document> indexDocuments) {
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (final IndexModel index : indices) {
+            final Long expireAfterSeconds = index.getOptions().getExpireAfter(TimeUnit.SECONDS);
+            if (expireAfterSeconds == null) {
+                continue;
+            }
+
+            indexDocuments.stream()
+                    .filter(document -> index.getOptions().getName().equals(document.getString("name")))
+                    .filter(document -> document.get("expireAfterSeconds") instanceof Number
+                            && ((Number) document.get("expireAfterSeconds")).longValue() != expireAfterSeconds)
+                    .findFirst()
+                    .ifPresent(document -> {
+                        this.plugin.getLogger().info("Changing the expiry of index '" + index.getOptions().getName()
+                                + "' on collection '" + schema.getName() + "' to " + expireAfterSeconds + " seconds");
+                        futures.add(this.adapter.completion(this.database.runCommand(new Document("collMod", schema.getName())
+                                .append("index", new Document("name", index.getOptions().getName())
+                                        .append("expireAfterSeconds", expireAfterSeconds)))));
+                    });
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Runs every migration that is newer than the stored schema version
+     *
+     * @return A callback
+     */
+    private CompletableFuture<Void> migrate() {
+        return this.adapter.toList(this.schemaCollection.find(Filters.eq("_id", VERSION_ID)).first()).thenCompose(documents -> {
+            final int version = documents.isEmpty() ? 0 : documents.get(0).getInteger("value", 0);
+
+            CompletableFuture<Void> future = CompletableFuture.completedFuture(null);
+            for (int i = version; i < this.migrations.size(); i++) {
+                final int targetVersion = i + 1;
+                final Function<MongoDatabase, CompletableFuture<Void>> migration = this.migrations.get(i);
+                future = future.thenCompose(unused -> {
+                    this.plugin.getLogger().info("Migrating storage schema to version " + targetVersion);
+                    return migration.apply(this.database);
+                }).thenCompose(unused -> this.adapter.toList(this.schemaCollection.updateOne(Filters.eq("_id", VERSION_ID),
+                        Updates.set("value", targetVersion), new UpdateOptions().upsert(true)))).thenApply(unused -> null);
+            }
+            return future;
+        }).whenComplete((unused, throwable) -> {
+            if (throwable != null) {
+                this.plugin.getLogger().severe("Failed to migrate storage schema");
+                this.plugin.getLogger().severe(throwable.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Explains every declared query and warns about queries that scan the whole collection
+     *
+     * @return A callback
+     */
+    private CompletableFuture<Void> explainQueries() {
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (final CollectionSchema schema : this.schemas) {
+            for (final Query query : schema.getQueries()) {
+                final Document find = new Document("find", schema.getName()).append("filter", query.getFilter());
+                if (query.getSort() != null) {
+                    find.append("sort", query.getSort());
+                }
+
+                futures.add(this.adapter.toList(this.database.runCommand(new Document("explain", find).append("verbosity", "queryPlanner")))
+                        .thenAccept(results -> {
+                            if (!results.isEmpty() && this.containsStage(results.get(0).get("queryPlanner"), "COLLSCAN")) {
+                                this.plugin.getLogger().warning("Query " + query.getFilter().toJson() + " on collection '"
+                                        + schema.getName() + "' scans the whole collection, is an index missing?");
+                            }
+                        })
+                        .exceptionally(throwable -> {
+                            this.plugin.getLogger().warning("Failed to explain query on collection '" + schema.getName() + "'");
+                            this.plugin.getLogger().warning(throwable.getMessage());
+                            return null;
+                        }));
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Searches a query plan for a specific stage
+     *
+     * @param value A part of the query plan
+     * @param stage The stage
+     *
+     * @return Whether the plan contains the stage
+     */
+    private boolean containsStage(final Object value, final String stage) {
+        if (value instanceof Document) {
+            final Document document = (Document) value;
+            if (stage.equals(document.get("stage"))) {
+                return true;
+            }
+            return document.values().stream().anyMatch(child -> this.containsStage(child, stage));
+        }
+        if (value instanceof Collection) {
+            return ((Collection<?>) value).stream().anyMatch(child -> this.containsStage(child, stage));
+        }
+        return false;
+    }
+
+    /**
+     * Migration 1: Gives pending transactions that were stored before states existed a state
+     * <p>
+     * Before states existed a transaction was open as long as no completed transaction was linked to it.
+     *
+     * @param database The database
+     *
+     * @return A callback
+     */
+    private CompletableFuture<Void> migrateLegacyTransactionStates(final MongoDatabase database) {
+        final MongoCollection<Document> pending = database.getCollection("pending");
+        final MongoCollection<Document> completed = database.getCollection("completed");
+
+        return this.adapter.toList(pending.find(Filters.exists("state", false)).projection(Projections.include("_id"))).thenCompose(documents -> {
+            if (documents.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            final List<UUID> legacyIds = documents.stream()
+                    .map(document -> document.get("_id", UUID.class))
+                    .collect(Collectors.toList());
+            return this.adapter.toList(completed.find(Filters.in("linked_transaction", legacyIds))
+                    .projection(Projections.include("linked_transaction"))).thenCompose(completedDocuments -> {
+                final List<UUID> completedIds = completedDocuments.stream()
+                        .map(document -> document.get("linked_transaction", UUID.class))
+                        .collect(Collectors.toList());
+                return this.adapter.toList(pending.updateMany(Filters.and(Filters.in("_id", completedIds), Filters.exists("state", false)),
+                        Updates.set("state", TransactionState.COMPLETED.name())));
+            }).thenCompose(unused -> this.adapter.toList(pending.updateMany(Filters.exists("state", false),
+                    Updates.set("state", TransactionState.OPEN.name())))).thenApply(unused -> null);
+        });
+    }
+
+    /**
+     * Migration 2: Removes addresses that older pools kept around after they were taken
+     *
+     * @param database The database
+     *
+     * @return A callback
+     */
+    private CompletableFuture<Void> removeTakenAddresses(final MongoDatabase database) {
+        return this.adapter.toList(database.getCollection("addresses").deleteMany(Filters.eq("taken", true))).thenApply(unused -> null);
+    }
+
+    /**
+     * Migration 3: Builds the player summaries from the existing completed transactions
+     *
+     * @param database The database
+     *
+     * @return A callback
+     */
+    private CompletableFuture<Void> buildPlayerSummaries(final MongoDatabase database) {
+        return this.adapter.toList(database.getCollection("completed").aggregate(Collections.singletonList(Aggregates.group("$player",
+                Accumulators.sum("count", 1),
+                Accumulators.sum("total_iota", "$iota"),
+                Accumulators.max("last_purchase", "$timestamp_completed")
+        )))).thenCompose(summaries -> {
+            if (summaries.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            final List<WriteModel<Document>> updates = summaries.stream()
+                    .map(summary -> new UpdateOneModel<Document>(Filters.eq("_id", summary.get("_id")), Updates.combine(
+                            Updates.set("count", summary.get("count")),
+                            Updates.set("total_iota", summary.get("total_iota")),
+                            Updates.set("last_purchase", summary.get("last_purchase"))
+                    ), new UpdateOptions().upsert(true)))
+                    .collect(Collectors.toList());
+            return this.adapter.toList(database.getCollection("player_summaries").bulkWrite(updates)).thenApply(unused -> null);
+        });
+    }
+
+    /**
+     * Migration 4: Drops the single field indices that were replaced by compound indices with the id
+     * <p>
+     * The compound indices back the same queries and the paged reads, which resume after an id.
+     *
+     * @param database The database
+     *
+     * @return A callback
+     */
+    private CompletableFuture<Void> dropReplacedIndices(final MongoDatabase database) {
+        return CompletableFuture.allOf(
+                this.dropIndices(database.getCollection("pending"), "product", "address"),
+                this.dropIndices(database.getCollection("completed"), "product")
+        );
+    }
+
+    /**
+     * Drops indices of a collection if they exist
+     *
+     * @param collection The collection
+     * @param names      The names of the indices
+     *
+     * @return A callback
+     */
+    private CompletableFuture<Void> dropIndices(final MongoCollection<Document> collection, final String... names) {
+        return this.adapter.toList(collection.listIndexes()).thenCompose(indexDocuments -> {
+            final Set<String> existing = indexDocuments.stream()
+                    .map(document -> document.getString("name"))
+                    .collect(Collectors.toSet());
+            final List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (final String name : names) {
+                if (existing.contains(name)) {
+                    futures.add(this.adapter.completion(collection.dropIndex(name)));
+                }
+            }
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+        });
+    }
+
+    /**
+     * Migration 5: Builds the sales rollups from the existing completed transactions
+     * <p>
+     * The transactions are streamed and only their rollups are kept in memory. The rollups are set instead of
+     * incremented, so an interrupted run can be repeated. Archived transactions are counted as well, the player
+     * summaries count them too. Setting the rollups would overwrite concurrent increments, so no transaction is
+     * completed before the storage is initialized. Other servers that share the database have to be stopped while
+     * updating.
+     *
+     * @param database The database
+     *
+     * @return A callback
+     */
+    private CompletableFuture<Void> buildSalesRollups(final MongoDatabase database) {
+        final SalesRollupBuilder builder = new SalesRollupBuilder();
+        final Consumer<Document> counter = document ->
+                builder.add(document.getInteger("product"), document.getLong("iota"), document.getLong("timestamp_completed"));
+        return this.adapter.forEach(database.getCollection("completed").find()
+                .projection(Projections.include("product", "iota", "timestamp_completed"))
+                .batchSize(this.adapter.getBatchSize()), counter
+        ).thenCompose(unused -> this.adapter.toList(database.listCollectionNames())).thenCompose(names -> {
+            CompletableFuture<Void> future = CompletableFuture.completedFuture(null);
+            for (final String name : names) {
+                if (!name.startsWith("completed_archive_")) {
+                    continue;
+                }
+
+                // An interrupted archive run leaves copies of transactions that are still in the completed collection
+                future = future.thenCompose(unused -> this.adapter.forEach(database.getCollection(name).aggregate(Arrays.asList(
+                        Aggregates.lookup("completed", "_id", "_id", "unarchived"),
+                        Aggregates.match(Filters.size("unarchived", 0)),
+                        Aggregates.project(Projections.include("product", "iota", "timestamp_completed"))
+                )).batchSize(this.adapter.getBatchSize()), counter));
+            }
+            return future;
+        }).thenCompose(unused -> {
+            if (builder.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            final List<WriteModel<Document>> updates = builder.build().stream()
+                    .map(rollup -> new UpdateOneModel<Document>(Filters.eq("_id", rollup.getRollupId()), Updates.combine(
+                            Updates.set("period", rollup.getPeriod().name()),
+                            Updates.set("product", rollup.getProductId()),
+                            Updates.set("bucket", rollup.getBucket()),
+                            Updates.set("count", rollup.getSales()),
+                            Updates.set("iota", rollup.getTotalIota())
+                    ), new UpdateOptions().upsert(true)))
+                    .collect(Collectors.toList());
+            return this.adapter.completion(database.getCollection("sales_rollups").bulkWrite(updates));
+        });
+    }
+
+    /**
+     * Migration 6: Drops the single field indices that were replaced by compound indices
+     * <p>
+     * The state index was replaced by the state and timestamp index of the expiry sweep and the player index by
+     * the player and completion time index of the history.
+     *
+     * @param database The database
+     *
+     * @return A callback
+     */
+    private CompletableFuture<Void> dropStaleIndices(final MongoDatabase database) {
+        return CompletableFuture.allOf(
+                this.dropIndices(database.getCollection("pending"), "state"),
+                this.dropIndices(database.getCollection("completed"), "player")
+        );
+    }
+
+    /**
+     * Migration 7: Moves completed transactions that repeat the hash or the pending transaction of another one into
+     * the "completed_duplicates" collection
+     * <p>
+     * The unique indices on both fields can't be created while duplicates exist. The earliest completion of each
+     * group is kept. The player summaries and sales rollups still count the moved copies, so every move is logged.
+     *
+     * @param database The database
+     *
+     * @return A callback
+     */
+    private CompletableFuture<Void> moveDuplicateCompletions(final MongoDatabase database) {
+        return this.moveDuplicates(database, "hash")
+                .thenCompose(unused -> this.moveDuplicates(database, "linked_transaction"));
+    }
+
+    /**
+     * Moves completed transactions that share a field value with an earlier completed transaction into the
+     * "completed_duplicates" collection
+     * <p>
+     * The copies are inserted before they are removed, copies left behind by an interrupted run are detected by
+     * their id, so running this again is safe.
+     *
+     * @param database The database
+     * @param field    The field that has to be unique
+     *
+     * @return A callback
+     */
+    private CompletableFuture<Void> moveDuplicates(final MongoDatabase database, final String field) {
+        final MongoCollection<Document> completed = database.getCollection("completed");
+        final MongoCollection<Document> duplicates = database.getCollection("completed_duplicates");
+        return this.adapter.toList(completed.aggregate(Arrays.asList(
+                Aggregates.match(Filters.exists(field)),
+                Aggregates.group("$" + field,
+                        Accumulators.sum("count", 1),
+                        Accumulators.push("copies", new Document("_id", "$_id").append("timestamp", "$timestamp_completed"))),
+                Aggregates.match(Filters.gt("count", 1))
+        )).allowDiskUse(true)).thenCompose(groups -> {
+            if (groups.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            final List<Object> duplicateIds = new ArrayList<>();
+            for (final Document group : groups) {
+                final List<Document> copies = new ArrayList<>(group.getList("copies", Document.class));
+                copies.sort(Comparator.comparingLong(copy -> copy.getLong("timestamp")));
+                final List<Object> ids = copies.subList(1, copies.size()).stream()
+                        .map(copy -> copy.get("_id"))
+                        .collect(Collectors.toList());
+                this.plugin.getLogger().warning("Completed transactions " + ids + " repeat the " + field + " of completed transaction "
+                        + copies.get(0).get("_id") + ", moving them to 'completed_duplicates'");
+                duplicateIds.addAll(ids);
+            }
+
+            return this.adapter.toList(completed.find(Filters.in("_id", duplicateIds)))
+                    .thenCompose(documents -> this.adapter.completion(duplicates.insertMany(documents, new InsertManyOptions().ordered(false)))
+                            .handle((unused, throwable) -> {
+                                if (throwable == null || throwable instanceof MongoBulkWriteException && ((MongoBulkWriteException) throwable).getWriteErrors()
+                                        .stream().allMatch(writeError -> writeError.getCategory() == ErrorCategory.DUPLICATE_KEY)) {
+                                    // Duplicates were already copied by an earlier run
+                                    return null;
+                                }
+                                throw new CompletionException(throwable);
+                            }))
+                    .thenCompose(unused -> this.adapter.completion(completed.deleteMany(Filters.in("_id", duplicateIds))))
+                    .thenRun(() -> this.plugin.getLogger().warning("Moved " + duplicateIds.size() + " completed transactions with a duplicate "
+                            + field + ", the player summaries and sales rollups still count them"));
+        });
+    }
+
+    /**
+     * The declared indices and queries of a collection
+     */
+    private static final class CollectionSchema {
+
+        private final String name;
+        private final List<IndexModel> indices = new ArrayList<>();
+        private final List<Query> queries = new ArrayList<>();
+
+        private CollectionSchema(final String name) {
+            this.name = name;
+        }
+
+        private CollectionSchema index(final Bson keys, final IndexOptions options) {
+            this.indices.add(new IndexModel(keys, options));
+            return this;
+        }
+
+        private CollectionSchema query(final Document filter) {
+            return this.sortedQuery(filter, null);
+        }
+
+        private CollectionSchema sortedQuery(final Document filter, final Document sort) {
+            this.queries.add(new Query(filter, sort));
+            return this;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public List<IndexModel> getIndices() {
+            return this.indices;
+        }
+
+        public List<Query> getQueries() {
+            return this.queries;
+        }
+
+    }
+
+    /**
+     * A query shape that is issued by a storage service
+     */
+    private static final class Query {
+
+        private final Document filter;
+        private final Document sort;
+
+        private Query(final Document filter, final Document sort) {
+            this.filter = filter;
+            this.sort = sort;
+        }
+
+        public Document getFilter() {
+            return this.filter;
+        }
+
+        public Document getSort() {
+            return this.sort;
+        }
+
+    }
+
+}
@@ -0,0 +1,122 @@
+package de.cerus.iotaspigotpoc.transaction;
+
+import co.aikar.commands.lib.expiringmap.ExpiringMap;
+import de.cerus.iotaspigotpoc.transaction.node.IotaNodePool;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.iota.jota.error.ArgumentException;
+import org.iota.jota.model.Transaction;
+import org.iota.jota.utils.InputValidator;
+
+/**
+ * Size and time bounded cache for bundle lookups
+ * <p>
+ * Bundles never change once they are attached, so successful lookups are kept for a long time. Hashes the node
+ * doesn't know (yet) are remembered for a short time so players retrying a confirm don't cause node traffic.
+ * Concurrent lookups of the same hash share a single node request.
+ */
+public class BundleCache {
+
+    private final JavaPlugin plugin;
+    private final IotaNodePool nodePool;
+    private final ExpiringMap<String, CompletableFuture<Lookup>> cache;
+    private final long negativeTtlSeconds;
+
+    public BundleCache(final JavaPlugin plugin, final IotaNodePool nodePool) {
+        this.plugin = plugin;
+        this.nodePool = nodePool;
+
+        final FileConfiguration config = plugin.getConfig();
+        this.negativeTtlSeconds = Math.max(1, config.getLong("iota.cache.negative-ttl", 30));
+        this.cache = ExpiringMap.builder()
+                .maxSize(Math.max(1, config.getInt("iota.cache.max-size", 1000)))
+                .expiration(Math.max(1, config.getLong("iota.cache.ttl", 600)), TimeUnit.SECONDS)
+                .variableExpiration()
+                .build();
+    }
+
+    /**
+     * Looks up the bundle of a transaction
+     * <p>
+     * The callback only completes exceptionally for errors that are not worth caching, e.g. when every node
+     * is busy or timed out.
+     *
+     * @param hash The transaction hash
+     *
+     * @return A callback with the lookup result
+     */
+    public CompletableFuture<Lookup> lookup(final String hash) {
+        if (!InputValidator.isHash(hash)) {
+            // No need to ask a node about something that can't be a hash
+            return CompletableFuture.completedFuture(Lookup.failed("Invalid hash"));
+        }
+
+        final CompletableFuture<Lookup> cached = this.cache.get(hash);
+        if (cached != null) {
+            return cached;
+        }
+
+        final CompletableFuture<Lookup> future = new CompletableFuture<>();
+        final CompletableFuture<Lookup> existing = this.cache.putIfAbsent(hash, future);
+        if (existing != null) {
+            // Someone else started the same lookup in the meantime
+            return existing;
+        }
+
+        this.nodePool.executeHedged(client -> client.getBundle(hash)).whenComplete((bundleResponse, throwable) -> {
+            if (throwable == null) {
+                future.complete(Lookup.found(bundleResponse.getTransactions()));
+                return;
+            }
+
+            final Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+            if (!(cause instanceof ArgumentException)) {
+                // Not the hash's fault, don't remember it
+                this.cache.remove(hash, future);
+                future.completeExceptionally(cause);
+                return;
+            }
+
+            this.plugin.getLogger().warning("Failed to fetch transaction for hash '" + hash + "': " + cause.getMessage());
+            this.cache.setExpiration(hash, this.negativeTtlSeconds, TimeUnit.SECONDS);
+            future.complete(Lookup.failed("No transaction found for this hash"));
+        });
+        return future;
+    }
+
+    /**
+     * Result of a bundle lookup
+     */
+    public static final class Lookup {
+
+        private final List<Transaction> transactions;
+        private final String error;
+
+        private Lookup(final List<Transaction> transactions, final String error) {
+            this.transactions = transactions;
+            this.error = error;
+        }
+
+        private static Lookup found(final List<Transaction> transactions) {
+            return new Lookup(transactions, null);
+        }
+
+        private static Lookup failed(final String error) {
+            return new Lookup(null, error);
+        }
+
+        public List<Transaction> getTransactions() {
+            return this.transactions;
+        }
+
+        public String getError() {
+            return this.error;
+        }
+
+    }
+
+}
@@ -0,0 +1,219 @@
+package de.cerus.iotaspigotpoc.transaction;
+
+import de.cerus.iotaspigotpoc.model.PooledAddress;
+import de.cerus.iotaspigotpoc.storage.address.AddressStorageService;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * Hands out deposit addresses
+ * <p>
+ * In SEED mode addresses are generated in the background and kept in a pool that is persisted in the storage.
+ * The pool is refilled up to the high watermark as soon as it drops below the low watermark, so taking an
+ * address never has to wait for address generation unless the pool ran completely dry.
+ */
+public class DepositAddressPool {
+
+    private final Queue<String> addresses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final JavaPlugin plugin;
+    private final AddressStorageService addressStorageService;
+    private final IotaCommunicator iotaCommunicator;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private CompletableFuture<Void> refillFuture;
+
+    public DepositAddressPool(final JavaPlugin plugin, final AddressStorageService addressStorageService, final IotaCommunicator iotaCommunicator) {
+        this.plugin = plugin;
+        this.addressStorageService = addressStorageService;
+        this.iotaCommunicator = iotaCommunicator;
+
+        final FileConfiguration config = plugin.getConfig();
+        this.lowWatermark = Math.max(0, config.getInt("address.pool.low", 5));
+        this.highWatermark = Math.max(this.lowWatermark + 1, config.getInt("address.pool.high", 20));
+    }
+
+    /**
+     * Loads the persisted addresses and starts filling the pool
+     */
+    public void load() {
+        if (!this.isSeedMode()) {
+            return;
+        }
+
+        this.addressStorageService.retrieveAvailable().whenComplete((pooledAddresses, throwable) -> {
+            if (throwable != null) {
+                this.plugin.getLogger().severe("Failed to load deposit address pool");
+                this.plugin.getLogger().severe(throwable.getMessage());
+                return;
+            }
+
+            pooledAddresses.forEach(pooledAddress -> this.offer(pooledAddress.getAddress()));
+            this.refillIfNeeded();
+        });
+    }
+
+    /**
+     * Takes a deposit address
+     * Depending on the settings this will either return a fixed address all the time
+     * or it will return the next unspent address belonging to the set seed
+     *
+     * @return A callback with the address or null if no address is available
+     */
+    public CompletableFuture<String> takeAddress() {
+        final FileConfiguration config = this.plugin.getConfig();
+        switch (config.getString("address.mode", "SEED")) {
+            case "SEED":
+                // Return the next pooled address, wait for the refill if the pool ran dry
+                return this.poll().thenCompose(address -> address != null
+                        ? CompletableFuture.completedFuture(address)
+                        : this.refill().thenCompose(unused -> this.poll()));
+            case "ADDRESS":
+                // Return the fixed address
+                return CompletableFuture.completedFuture(config.getString("address.address"));
+            default:
+                // Print error
+                this.plugin.getLogger().severe("Invalid address mode");
+                return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Puts addresses of transactions that were never paid back into the pool
+     * <p>
+     * Only addresses that were never spent from and never received any value are released, see
+     * {@link IotaCommunicator#filterReusable(Collection, int)}. Only addresses generated from the seed are released,
+     * the fixed address of ADDRESS mode never leaves the config.
+     *
+     * @param addresses The addresses
+     *
+     * @return A callback
+     */
+    public CompletableFuture<Void> release(final Collection<String> addresses) {
+        if (!this.isSeedMode() || addresses.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final int maxPerRequest = Math.max(1, this.plugin.getConfig().getInt("watcher.max-addresses-per-request", 500));
+        return this.iotaCommunicator.filterReusable(addresses, maxPerRequest).thenCompose(reusableAddresses -> {
+            if (reusableAddresses.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            // The key index of a taken address isn't known anymore, it's only needed for ordering anyway
+            final List<PooledAddress> pooledAddresses = reusableAddresses.stream()
+                    .map(address -> new PooledAddress(address, PooledAddress.UNKNOWN_INDEX))
+                    .collect(Collectors.toList());
+            return this.addressStorageService.storeAddresses(pooledAddresses)
+                    .thenRun(() -> reusableAddresses.forEach(this::offer));
+        });
+    }
+
+    /**
+     * Returns the amount of addresses that are ready to be taken
+     *
+     * @return The pool size
+     */
+    public int getSize() {
+        return this.size.get();
+    }
+
+    /**
+     * Takes an address out of the pool and removes it from the storage
+     * <p>
+     * The address is only handed out once it was removed, otherwise it goes back into the pool. An address that
+     * is still stored would be loaded into the pool again after a restart.
+     *
+     * @return A callback with the address or null if the pool is empty
+     */
+    private CompletableFuture<String> poll() {
+        final String address = this.addresses.poll();
+        if (address == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        this.size.decrementAndGet();
+        this.refillIfNeeded();
+        return this.addressStorageService.removeAddress(address).whenComplete((unused, throwable) -> {
+            if (throwable != null) {
+                this.offer(address);
+            }
+        }).thenApply(unused -> address);
+    }
+
+    /**
+     * Adds an address to the pool
+     *
+     * @param address The address
+     */
+    private void offer(final String address) {
+        this.addresses.offer(address);
+        this.size.incrementAndGet();
+    }
+
+    /**
+     * Starts a refill if the pool dropped below the low watermark
+     */
+    private void refillIfNeeded() {
+        if (this.size.get() < this.lowWatermark) {
+            this.refill();
+        }
+    }
+
+    /**
+     * Fills the pool up to the high watermark
+     * <p>
+     * Only one refill runs at a time, concurrent calls share the running refill.
+     *
+     * @return A callback
+     */
+    private synchronized CompletableFuture<Void> refill() {
+        if (this.refillFuture != null) {
+            return this.refillFuture;
+        }
+
+        final int amount = this.highWatermark - this.size.get();
+        if (amount <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // Reserve the key indices first so generation starts right at the cursor
+        final CompletableFuture<Void> future = this.addressStorageService.reserveIndices(amount).thenCompose(startIndex ->
+                this.iotaCommunicator.generateAddresses(startIndex, amount)
+        ).thenCompose(pooledAddresses -> this.addressStorageService.storeAddresses(pooledAddresses)
+                .thenRun(() -> pooledAddresses.stream()
+                        .map(PooledAddress::getAddress)
+                        .forEach(this::offer)));
+        this.refillFuture = future;
+
+        future.whenComplete((unused, throwable) -> {
+            if (throwable != null) {
+                this.plugin.getLogger().severe("Failed to refill deposit address pool");
+                this.plugin.getLogger().severe(throwable.getMessage());
+            }
+            synchronized (this) {
+                if (this.refillFuture == future) {
+                    this.refillFuture = null;
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Checks whether addresses are generated from the seed
+     *
+     * @return Whether SEED mode is enabled
+     */
+    private boolean isSeedMode() {
+        return "SEED".equals(this.plugin.getConfig().getString("address.mode", "SEED"));
+    }
+
+}
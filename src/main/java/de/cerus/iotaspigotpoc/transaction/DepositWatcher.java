@@ -0,0 +1,172 @@
+package de.cerus.iotaspigotpoc.transaction;
+
+import de.cerus.iotaspigotpoc.model.PendingTransaction;
+import de.cerus.iotaspigotpoc.storage.pending.PendingTransactionStorageService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.iota.jota.model.Transaction;
+
+/**
+ * Periodically checks the deposit addresses of all open transactions and completes the ones that were paid
+ * <p>
+ * All addresses are queried in one batched node request per cycle, so the node traffic only depends on the
+ * poll interval and not on the amount of players.
+ */
+public class DepositWatcher {
+
+    private final Set<UUID> inFlight = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean polling = new AtomicBoolean(false);
+    private final JavaPlugin plugin;
+    private final PendingTransactionStorageService pendingTransactionStorageService;
+    private final IotaCommunicator iotaCommunicator;
+    private final TransactionController transactionController;
+    private BukkitTask task;
+
+    public DepositWatcher(final JavaPlugin plugin,
+                          final PendingTransactionStorageService pendingTransactionStorageService,
+                          final IotaCommunicator iotaCommunicator,
+                          final TransactionController transactionController) {
+        this.plugin = plugin;
+        this.pendingTransactionStorageService = pendingTransactionStorageService;
+        this.iotaCommunicator = iotaCommunicator;
+        this.transactionController = transactionController;
+    }
+
+    /**
+     * Starts polling if the watcher is enabled in the config
+     */
+    public void start() {
+        final FileConfiguration config = this.plugin.getConfig();
+        if (!config.getBoolean("watcher.enabled", true)) {
+            return;
+        }
+
+        final long intervalTicks = Math.max(1, config.getLong("watcher.interval", 30)) * 20;
+        this.task = Bukkit.getScheduler().runTaskTimerAsynchronously(this.plugin, this::poll, intervalTicks, intervalTicks);
+    }
+
+    /**
+     * Stops polling
+     */
+    public void stop() {
+        if (this.task != null) {
+            this.task.cancel();
+            this.task = null;
+        }
+    }
+
+    /**
+     * Runs a single poll cycle
+     * <p>
+     * Cycles never overlap, if the previous cycle is still running this call is a no-op.
+     */
+    private void poll() {
+        if (!this.polling.compareAndSet(false, true)) {
+            // Previous cycle is still running
+            return;
+        }
+
+        final int maxPerRequest = Math.max(1, this.plugin.getConfig().getInt("watcher.max-addresses-per-request", 500));
+        this.retrieveOpenTransactions().thenCompose(openTransactions -> {
+            if (openTransactions.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            // Group the open transactions by their deposit address
+            final Map<String, List<PendingTransaction>> transactionsByAddress = new HashMap<>();
+            for (final PendingTransaction openTransaction : openTransactions) {
+                transactionsByAddress.computeIfAbsent(this.iotaCommunicator.removeChecksum(openTransaction.getAssignedAddress()),
+                        address -> new ArrayList<>()).add(openTransaction);
+            }
+
+            return this.iotaCommunicator.findTransactions(transactionsByAddress.keySet(), maxPerRequest)
+                    .thenAccept(transactions -> this.handleTransactions(transactionsByAddress, transactions));
+        }).whenComplete((unused, throwable) -> {
+            if (throwable != null) {
+                this.plugin.getLogger().warning("Failed to poll deposit addresses");
+                this.plugin.getLogger().warning(throwable.getClass().getName() + ": " + throwable.getMessage());
+            }
+            this.polling.set(false);
+        });
+    }
+
+    /**
+     * Retrieves all open transactions that are not being completed right now
+     *
+     * @return A callback with the open transactions
+     */
+    private CompletableFuture<Collection<PendingTransaction>> retrieveOpenTransactions() {
+        return this.pendingTransactionStorageService.retrieveAllOpen().thenApply(openTransactions -> openTransactions.stream()
+                .filter(transaction -> !this.inFlight.contains(transaction.getTransactionId()))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Matches incoming transactions against the open transactions and completes the paid ones
+     *
+     * @param transactionsByAddress The open transactions grouped by deposit address
+     * @param transactions          The transactions that were sent to the deposit addresses
+     */
+    private void handleTransactions(final Map<String, List<PendingTransaction>> transactionsByAddress, final List<Transaction> transactions) {
+        for (final Transaction transaction : transactions) {
+            if (transaction.getValue() <= 0) {
+                // Only value transfers can pay for something
+                continue;
+            }
+
+            final List<PendingTransaction> candidates = transactionsByAddress.get(transaction.getAddress());
+            if (candidates == null) {
+                continue;
+            }
+
+            for (final PendingTransaction candidate : candidates) {
+                if (!this.iotaCommunicator.matches(candidate, transaction)
+                        || !this.inFlight.add(candidate.getTransactionId())) {
+                    continue;
+                }
+
+                candidates.remove(candidate);
+                this.complete(candidate, transaction.getHash());
+                break;
+            }
+        }
+    }
+
+    /**
+     * Completes a paid transaction and notifies the buyer
+     *
+     * @param pendingTransaction The paid transaction
+     * @param transactionHash    The hash of the payment
+     */
+    private void complete(final PendingTransaction pendingTransaction, final String transactionHash) {
+        this.transactionController.completeVerifiedTransaction(pendingTransaction, transactionHash).whenComplete((pair, throwable) -> {
+            this.inFlight.remove(pendingTransaction.getTransactionId());
+
+            final Player player = Bukkit.getPlayer(pendingTransaction.getPlayerUuid());
+            if (throwable != null || pair.getLow() != TransactionController.CODE_SUCCESS) {
+                this.plugin.getLogger().warning("Failed to complete paid transaction " + pendingTransaction.getTransactionId()
+                        + ": " + (throwable != null ? throwable.getMessage() : pair.getHi()));
+                return;
+            }
+
+            if (player != null) {
+                player.sendMessage("§aYour payment was received. Thank you for your purchase!");
+            }
+        });
+    }
+
+}
@@ -0,0 +1,129 @@
+package de.cerus.iotaspigotpoc.transaction;
+
+import de.cerus.iotaspigotpoc.model.PendingTransaction;
+import de.cerus.iotaspigotpoc.storage.pending.PendingTransactionStorageService;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Periodically expires open transactions that were not paid within the expiry window
+ * <p>
+ * Transactions are expired in batches and the deposit addresses of expired transactions go back to the pool,
+ * so abandoned purchases neither stay open forever nor use up addresses.
+ */
+public class ExpirySweeper {
+
+    private final AtomicBoolean sweeping = new AtomicBoolean(false);
+    private final JavaPlugin plugin;
+    private final PendingTransactionStorageService pendingTransactionStorageService;
+    private final DepositAddressPool depositAddressPool;
+    private final long expiryMillis;
+    private final int batchSize;
+    private final int maxBatches;
+    private final boolean releaseAddresses;
+    private BukkitTask task;
+
+    public ExpirySweeper(final JavaPlugin plugin,
+                         final PendingTransactionStorageService pendingTransactionStorageService,
+                         final DepositAddressPool depositAddressPool) {
+        this.plugin = plugin;
+        this.pendingTransactionStorageService = pendingTransactionStorageService;
+        this.depositAddressPool = depositAddressPool;
+
+        final FileConfiguration config = plugin.getConfig();
+        this.expiryMillis = Math.max(1, config.getLong("transaction.expiry", 60)) * 60 * 1000;
+        this.batchSize = Math.max(1, config.getInt("transaction.sweeper.batch-size", 100));
+        this.maxBatches = Math.max(1, config.getInt("transaction.sweeper.max-batches", 10));
+        this.releaseAddresses = config.getBoolean("transaction.sweeper.release-addresses", true);
+    }
+
+    /**
+     * Starts sweeping
+     */
+    public void start() {
+        final long intervalTicks = Math.max(1, this.plugin.getConfig().getLong("transaction.sweeper.interval", 60)) * 20;
+        this.task = Bukkit.getScheduler().runTaskTimerAsynchronously(this.plugin, this::sweep, intervalTicks, intervalTicks);
+    }
+
+    /**
+     * Stops sweeping
+     */
+    public void stop() {
+        if (this.task != null) {
+            this.task.cancel();
+            this.task = null;
+        }
+    }
+
+    /**
+     * Runs a single sweep
+     * <p>
+     * Sweeps never overlap, if the previous sweep is still running this call is a no-op.
+     */
+    private void sweep() {
+        if (!this.sweeping.compareAndSet(false, true)) {
+            // Previous sweep is still running
+            return;
+        }
+
+        this.sweepBatch(System.currentTimeMillis() - this.expiryMillis, 1).whenComplete((unused, throwable) -> {
+            if (throwable != null) {
+                this.plugin.getLogger().warning("Failed to expire pending transactions");
+                this.plugin.getLogger().warning(throwable.getMessage());
+            }
+            this.sweeping.set(false);
+        });
+    }
+
+    /**
+     * Expires a batch and continues with the next one if the batch was full
+     *
+     * @param startedBefore Transactions that were started before this timestamp expire
+     * @param batch         The number of the batch in this sweep
+     *
+     * @return A callback
+     */
+    private CompletableFuture<Void> sweepBatch(final long startedBefore, final int batch) {
+        return this.pendingTransactionStorageService.expireOpen(startedBefore, this.batchSize).thenCompose(expiredTransactions -> {
+            if (expiredTransactions.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            this.notifyPlayers(expiredTransactions);
+            final CompletableFuture<Void> releaseFuture = !this.releaseAddresses
+                    ? CompletableFuture.completedFuture(null)
+                    : this.depositAddressPool.release(expiredTransactions.stream()
+                            .map(PendingTransaction::getAssignedAddress)
+                            .distinct()
+                            .collect(Collectors.toList()));
+
+            if (expiredTransactions.size() < this.batchSize || batch >= this.maxBatches) {
+                // Done for this sweep
+                return releaseFuture;
+            }
+            return releaseFuture.thenCompose(unused -> this.sweepBatch(startedBefore, batch + 1));
+        });
+    }
+
+    /**
+     * Tells online players that their purchase expired
+     *
+     * @param expiredTransactions The expired transactions
+     */
+    private void notifyPlayers(final Collection<PendingTransaction> expiredTransactions) {
+        for (final PendingTransaction expiredTransaction : expiredTransactions) {
+            final Player player = Bukkit.getPlayer(expiredTransaction.getPlayerUuid());
+            if (player != null) {
+                player.sendMessage("§eYour pending purchase expired because no payment was received in time.");
+            }
+        }
+    }
+
+}
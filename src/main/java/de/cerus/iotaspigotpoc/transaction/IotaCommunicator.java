@@ -1,35 +1,72 @@
 package de.cerus.iotaspigotpoc.transaction;
 
 import de.cerus.iotaspigotpoc.model.PendingTransaction;
-import org.bukkit.configuration.file.FileConfiguration;
+import de.cerus.iotaspigotpoc.model.PooledAddress;
+import de.cerus.iotaspigotpoc.transaction.node.IotaNodePool;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.iota.jota.IotaAPI;
 import org.iota.jota.builder.AddressRequest;
-import org.iota.jota.dto.response.GetBundleResponse;
-import org.iota.jota.utils.TrytesConverter;
+import org.iota.jota.model.Transaction;
 
 /**
  * Simple layer on top of the IotaAPI client
  */
 public class IotaCommunicator {
 
+    // Amount of trytes of the signature fragment that hold the message
+    private static final int MESSAGE_TRYTES = 2186;
+
     private final JavaPlugin plugin;
-    private IotaAPI iotaClient;
+    private final IotaNodePool nodePool;
+    private final BundleCache bundleCache;
 
-    public IotaCommunicator(final JavaPlugin plugin) {
+    public IotaCommunicator(final JavaPlugin plugin, final IotaNodePool nodePool) {
         this.plugin = plugin;
-        this.startIotaClient();
+        this.nodePool = nodePool;
+        this.bundleCache = new BundleCache(plugin, nodePool);
     }
 
     /**
-     * Initializes the client
+     * Checks whether a transaction is completed without blocking the calling thread
+     * <p>
+     * The bundle is looked up through the bundle cache. If every node is saturated, fails or takes longer
+     * than the configured timeout the callback is completed with an error message.
+     *
+     * @param pendingTransaction The transaction to check
+     * @param hash               The transaction hash
+     *
+     * @return A callback with null if the transaction is completed or an error message otherwise
      */
-    private void startIotaClient() {
-        this.iotaClient = new IotaAPI.Builder()
-                .protocol("https")
-                .host("nodes.thetangle.org")
-                .port(443)
-                .build();
+    public CompletableFuture<String> verifyTransaction(final PendingTransaction pendingTransaction, final String hash) {
+        return this.bundleCache.lookup(hash)
+                .thenApply(lookup -> lookup.getError() != null
+                        ? lookup.getError()
+                        : this.transactionComplete(pendingTransaction, hash, lookup.getTransactions()))
+                .exceptionally(throwable -> {
+                    final Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    if (cause instanceof RejectedExecutionException) {
+                        // Too many lookups in flight
+                        return "The IOTA node is busy, please try again later";
+                    }
+                    if (cause instanceof TimeoutException) {
+                        return "Timed out while contacting the IOTA node";
+                    }
+
+                    this.plugin.getLogger().warning("Failed to verify transaction for hash '" + hash + "'");
+                    this.plugin.getLogger().warning(cause.getClass().getName() + ": " + cause.getMessage());
+                    return "Failed to verify transaction";
+                });
     }
 
     /**
@@ -39,58 +76,177 @@ public class IotaCommunicator {
      *
      * @param pendingTransaction The transaction to check
      * @param hash               The transaction hash
+     * @param transactions       The transactions in the bundle of the transaction
      *
      * @return Whether it is completed (null) or not (not null, error message)
      */
-    public String transactionComplete(final PendingTransaction pendingTransaction, final String hash) {
-        final GetBundleResponse bundleResponse;
-        try {
-            // Try to get transaction
-            bundleResponse = this.iotaClient.getBundle(hash);
-        } catch (final Exception e) {
-            this.plugin.getLogger().warning("Failed to fetch transaction for hash '" + hash + "'");
-            this.plugin.getLogger().warning("Usually this indicates that the player provided a invalid hash.");
-            this.plugin.getLogger().warning(e.getClass().getName() + ": " + e.getMessage());
-            return "Invalid hash";
+    private String transactionComplete(final PendingTransaction pendingTransaction, final String hash, final List<Transaction> transactions) {
+        for (final Transaction transaction : transactions) {
+            // Only check transaction matching our hash
+            if (transaction.getHash().equals(hash) && this.matches(pendingTransaction, transaction)) {
+                return null;
+            }
         }
+        return "No completed transaction found";
+    }
 
-        // Filter response
-        return bundleResponse.getTransactions().stream()
-                .filter(transaction -> (transaction.getHash()).equals(hash)) // Only check transaction matching our hash
-                .filter(transaction -> {
-                    // Check the message
-                    // A message is considered valid if it starts with the uuid of the buyer and ends with the id of the transaction
-                    final String msg = TrytesConverter.trytesToAscii(transaction.getSignatureFragments().substring(0, 2186)).trim();
-                    final String realMsg = pendingTransaction.getPlayerUuid().toString() + " " + pendingTransaction.getTransactionId();
-                    return realMsg.equals(msg);
-                }) // Value has to exactly match the price
-                .anyMatch(transaction -> transaction.getValue() == pendingTransaction.getIotaAmount()) ? null : "No completed transaction found";
+    /**
+     * Looks up all transactions that were sent to one of the specified addresses
+     * <p>
+     * The addresses are queried in as few node requests as possible, one findTransactions + getTrytes
+     * round trip per chunk of addresses.
+     *
+     * @param addresses     The addresses to look up
+     * @param maxPerRequest Max amount of addresses per node request
+     *
+     * @return A callback with all transactions that were sent to the addresses
+     */
+    public CompletableFuture<List<Transaction>> findTransactions(final Collection<String> addresses, final int maxPerRequest) {
+        final String[] addressArray = addresses.stream()
+                .map(this::removeChecksum)
+                .distinct()
+                .toArray(String[]::new);
+        if (addressArray.length == 0) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+
+        return this.nodePool.executeHedged(client -> {
+            final List<Transaction> transactions = new ArrayList<>();
+            for (int i = 0; i < addressArray.length; i += maxPerRequest) {
+                final String[] chunk = Arrays.copyOfRange(addressArray, i, Math.min(addressArray.length, i + maxPerRequest));
+                transactions.addAll(client.findTransactionObjectsByAddresses(chunk));
+            }
+            return transactions;
+        });
     }
 
     /**
-     * Retrieves a address for deposits
-     * Depending on the settings this will either return a fixed address all the time
-     * or it will return the next unspent address belonging to the set seed
+     * Checks if a transaction pays for a pending transaction
+     * <p>
+     * A transaction matches if its value exactly matches the price and if its message starts with the
+     * uuid of the buyer and ends with the id of the transaction
+     *
+     * @param pendingTransaction The pending transaction
+     * @param transaction        The transaction to check
      *
-     * @return A address
+     * @return Whether the transaction pays for the pending transaction
      */
-    public String getDepositAddress() {
-        final FileConfiguration config = this.plugin.getConfig();
-        switch (config.getString("address.mode", "SEED")) {
-            case "SEED":
-                // Return the next unspent address
-                return this.iotaClient.generateNewAddresses(new AddressRequest.Builder(
-                        config.getString("address.seed").replace(" ", ""),
-                        2
-                ).amount(1).checksum(true).build()).first();
-            case "ADDRESS":
-                // Return the fixed address
-                return config.getString("address.address");
-            default:
-                // Print error
-                this.plugin.getLogger().severe("Invalid address mode");
-                return null;
+    public boolean matches(final PendingTransaction pendingTransaction, final Transaction transaction) {
+        // Value has to exactly match the price
+        if (transaction.getValue() != pendingTransaction.getIotaAmount()) {
+            return false;
+        }
+
+        // Check the message in place instead of decoding the whole signature fragment
+        final String expectedTrytes = pendingTransaction.getMessageTrytes();
+        final String fragments = transaction.getSignatureFragments();
+        if (fragments == null || fragments.length() < MESSAGE_TRYTES || !fragments.startsWith(expectedTrytes)) {
+            return false;
         }
+
+        // Everything after the message has to be padding, just like trim() would have removed it
+        for (int i = expectedTrytes.length(); i + 1 < MESSAGE_TRYTES; i += 2) {
+            if (this.tryteValue(fragments.charAt(i)) + this.tryteValue(fragments.charAt(i + 1)) * 27 > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts a tryte into its numeric value
+     *
+     * @param tryte A tryte
+     *
+     * @return The value (0 - 26)
+     */
+    private int tryteValue(final char tryte) {
+        return tryte == '9' ? 0 : tryte - 'A' + 1;
+    }
+
+    /**
+     * Removes the checksum from an address if it has one
+     *
+     * @param address A address
+     *
+     * @return The address without checksum
+     */
+    public String removeChecksum(final String address) {
+        return address.length() > 81 ? address.substring(0, 81) : address;
+    }
+
+    /**
+     * Generates deposit addresses for the configured seed without blocking the calling thread
+     * <p>
+     * The addresses at the key indices [startIndex, startIndex + amount) are generated and every address
+     * that was already spent from is dropped.
+     *
+     * @param startIndex The first key index
+     * @param amount     The amount of addresses to generate
+     *
+     * @return A callback with the unspent addresses
+     */
+    public CompletableFuture<List<PooledAddress>> generateAddresses(final int startIndex, final int amount) {
+        return this.nodePool.execute(client -> {
+            final List<String> addresses = client.generateNewAddresses(new AddressRequest.Builder(
+                    this.plugin.getConfig().getString("address.seed").replace(" ", ""),
+                    2
+            ).index(startIndex).amount(amount).checksum(true).build()).getAddresses();
+
+            // Never hand out addresses that were spent from
+            final boolean[] spent = client.wereAddressesSpentFrom(addresses.stream()
+                    .map(this::removeChecksum)
+                    .toArray(String[]::new)).getStates();
+            final List<PooledAddress> pooledAddresses = new ArrayList<>();
+            for (int i = 0; i < addresses.size(); i++) {
+                if (!spent[i]) {
+                    pooledAddresses.add(new PooledAddress(addresses.get(i), startIndex + i));
+                }
+            }
+            return pooledAddresses;
+        });
+    }
+
+    /**
+     * Filters addresses that can be handed out again without blocking the calling thread
+     * <p>
+     * An address is dropped if it was spent from, e.g. by the operator, or if any value was sent to it. A late
+     * payment to a released address could not be told apart from the payment of the next buyer.
+     *
+     * @param addresses     The addresses
+     * @param maxPerRequest Max amount of addresses per node request
+     *
+     * @return A callback with the addresses that can be reused
+     */
+    public CompletableFuture<List<String>> filterReusable(final Collection<String> addresses, final int maxPerRequest) {
+        final List<String> addressList = new ArrayList<>(addresses);
+        if (addressList.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+
+        return this.nodePool.execute(client -> {
+            final Set<String> usedAddresses = new HashSet<>();
+            for (int i = 0; i < addressList.size(); i += maxPerRequest) {
+                final String[] chunk = addressList.subList(i, Math.min(addressList.size(), i + maxPerRequest)).stream()
+                        .map(this::removeChecksum)
+                        .toArray(String[]::new);
+
+                final boolean[] spent = client.wereAddressesSpentFrom(chunk).getStates();
+                for (int j = 0; j < chunk.length; j++) {
+                    if (spent[j]) {
+                        usedAddresses.add(chunk[j]);
+                    }
+                }
+                for (final Transaction transaction : client.findTransactionObjectsByAddresses(chunk)) {
+                    if (transaction.getValue() != 0) {
+                        usedAddresses.add(transaction.getAddress());
+                    }
+                }
+            }
+            return addressList.stream()
+                    .filter(address -> !usedAddresses.contains(this.removeChecksum(address)))
+                    .collect(Collectors.toList());
+        });
     }
 
 }
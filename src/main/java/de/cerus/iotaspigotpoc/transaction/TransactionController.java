@@ -1,15 +1,18 @@
 package de.cerus.iotaspigotpoc.transaction;
 
 import de.cerus.iotaspigotpoc.IotaSpigotPocPlugin;
+import de.cerus.iotaspigotpoc.delivery.DeliveryService;
 import de.cerus.iotaspigotpoc.model.CompletedTransaction;
 import de.cerus.iotaspigotpoc.model.PendingTransaction;
 import de.cerus.iotaspigotpoc.model.Product;
-import de.cerus.iotaspigotpoc.product.ProductRegistry;
+import de.cerus.iotaspigotpoc.model.TransactionState;
 import de.cerus.iotaspigotpoc.storage.completed.CompletedTransactionStorageService;
+import de.cerus.iotaspigotpoc.storage.pending.CompletionClaim;
 import de.cerus.iotaspigotpoc.storage.pending.PendingTransactionStorageService;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
-import org.bukkit.Bukkit;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.iota.jota.utils.Pair;
 
@@ -24,18 +27,26 @@ public class TransactionController {
     public static final int CODE_HAS_PENDING = 3;
     public static final int CODE_HAS_NO_PENDING = 4;
 
+    // Attempts to store a completed transaction, the delay doubles after every attempt
+    private static final int STORE_ATTEMPTS = 5;
+    private static final long STORE_RETRY_MILLIS = 1000;
+
     private final PendingTransactionStorageService pendingTransactionStorageService;
     private final CompletedTransactionStorageService completedTransactionStorageService;
     private final IotaCommunicator iotaCommunicator;
-    private final ProductRegistry productRegistry;
+    private final DepositAddressPool depositAddressPool;
+    private final DeliveryService deliveryService;
+    private final CompletableFuture<Void> recovered = new CompletableFuture<>();
 
     public TransactionController(final PendingTransactionStorageService pendingTransactionStorageService,
                                  final CompletedTransactionStorageService completedTransactionStorageService,
-                                 final IotaCommunicator iotaCommunicator, final ProductRegistry productRegistry) {
+                                 final IotaCommunicator iotaCommunicator, final DepositAddressPool depositAddressPool,
+                                 final DeliveryService deliveryService) {
         this.pendingTransactionStorageService = pendingTransactionStorageService;
         this.completedTransactionStorageService = completedTransactionStorageService;
         this.iotaCommunicator = iotaCommunicator;
-        this.productRegistry = productRegistry;
+        this.depositAddressPool = depositAddressPool;
+        this.deliveryService = deliveryService;
     }
 
     /**
@@ -49,17 +60,36 @@ public class TransactionController {
      * @return <ReturnCode, ErrorMessage>
      */
     public CompletableFuture<Pair<Integer, String>> completeTransaction(final PendingTransaction pendingTransaction, final String transactionHash) {
-        final String errorMsg;
-        if ((errorMsg = this.iotaCommunicator.transactionComplete(pendingTransaction, transactionHash)) != null) {
-            // Error out if we can't complete
-            return CompletableFuture.completedFuture(new Pair<>(CODE_ERROR, errorMsg));
-        }
+        // Verify the transaction off-thread and continue once the node answered
+        return this.iotaCommunicator.verifyTransaction(pendingTransaction, transactionHash).thenCompose(errorMsg -> {
+            if (errorMsg != null) {
+                // Error out if we can't complete
+                return CompletableFuture.completedFuture(new Pair<>(CODE_ERROR, errorMsg));
+            }
+            return this.completeVerifiedTransaction(pendingTransaction, transactionHash);
+        });
+    }
 
-        if (pendingTransaction.getProductId() != pendingTransaction.getProductId()) {
-            // Error out if products don't match
-            return CompletableFuture.completedFuture(new Pair<>(CODE_ERROR, "Product id does not match"));
+    /**
+     * Completes a pending transaction whose payment was already verified, e.g. by the {@link DepositWatcher}
+     * <p>
+     * The delivery is reserved in the journal first, then the completion is claimed atomically: the transaction has
+     * to be open and the hash must not have been claimed before. Only the winning claim stores the completed
+     * transaction and delivers the product, so concurrent confirms (even from different servers) deliver exactly
+     * once per payment. A crash at any point leaves the reservation behind, see {@link #recover()}.
+     * <p>
+     * Transactions are only completed once the storage is initialized, its migrations might rebuild the sales rollups
+     * that every completion updates.
+     *
+     * @param pendingTransaction The verified transaction
+     * @param transactionHash    The transaction hash
+     *
+     * @return <ReturnCode, ErrorMessage>
+     */
+    public CompletableFuture<Pair<Integer, String>> completeVerifiedTransaction(final PendingTransaction pendingTransaction, final String transactionHash) {
+        if (!this.recovered.isDone()) {
+            return this.recovered.thenCompose(unused -> this.completeVerifiedTransaction(pendingTransaction, transactionHash));
         }
-
         final CompletableFuture<Pair<Integer, String>> future = new CompletableFuture<>();
         final CompletedTransaction completedTransaction = new CompletedTransaction(
                 UUID.randomUUID(),
@@ -71,30 +101,155 @@ public class TransactionController {
                 pendingTransaction.getTimestamp(),
                 System.currentTimeMillis()
         );
-        // Store transaction
-        this.completedTransactionStorageService.storeCompletedTransaction(completedTransaction).whenComplete((unused, storeThrowable) -> {
-            if (storeThrowable != null) {
-                // Error out
-                future.complete(new Pair<>(CODE_ERROR, storeThrowable.getMessage()));
+        // Journal the delivery before the payment is claimed, a crash right after the claim can't lose it
+        this.deliveryService.reserve(completedTransaction).whenComplete((unused, reserveThrowable) -> {
+            if (reserveThrowable != null) {
+                // Error out, the payment is not claimed yet
+                future.complete(new Pair<>(CODE_ERROR, reserveThrowable.getMessage()));
                 return;
             }
 
-            final Product product = this.productRegistry.getById(pendingTransaction.getProductId());
-            Bukkit.getScheduler().runTask(JavaPlugin.getPlugin(IotaSpigotPocPlugin.class), () -> {
-                // Run the product commands
-                // This has to be done on the main thread because of Minecraft's shitty architecture
-                product.getCommands().forEach(cmd -> {
-                    Bukkit.dispatchCommand(Bukkit.getConsoleSender(), cmd
-                            .replace("{PLAYER_UUID}", pendingTransaction.getPlayerUuid().toString())
-                            .replace("{PLAYER_NAME}", Bukkit.getOfflinePlayer(pendingTransaction.getPlayerUuid()).getName()));
-                });
-            });
-            // Success!
-            future.complete(new Pair<>(CODE_SUCCESS, null));
+            // Claim the payment, only the claim that wins delivers the product
+            this.pendingTransactionStorageService.claimCompletion(pendingTransaction, completedTransaction)
+                    .whenComplete((claim, claimThrowable) -> {
+                        if (claimThrowable != null) {
+                            // The claim might have gone through anyway
+                            this.resolve(completedTransaction).whenComplete((delivered, resolveThrowable) -> future.complete(
+                                    delivered != null && delivered ? new Pair<>(CODE_SUCCESS, null) : new Pair<>(CODE_ERROR, claimThrowable.getMessage())));
+                            return;
+                        }
+                        if (claim == CompletionClaim.NOT_OPEN) {
+                            // Someone else closed the transaction in the meantime
+                            this.deliveryService.discard(completedTransaction.getTransactionId());
+                            future.complete(new Pair<>(CODE_ERROR, "This transaction is no longer open"));
+                            return;
+                        }
+                        if (claim == CompletionClaim.HASH_TAKEN) {
+                            // The payment was already used for another transaction
+                            this.deliveryService.discard(completedTransaction.getTransactionId());
+                            future.complete(new Pair<>(CODE_ERROR, "This transaction hash was already used"));
+                            return;
+                        }
+
+                        // Store transaction
+                        this.storeAndDeliver(completedTransaction).whenComplete((delivered, deliveryThrowable) -> {
+                            if (deliveryThrowable != null) {
+                                // Error out, the reservation is picked up again on the next start
+                                future.complete(new Pair<>(CODE_ERROR, "Your payment was received but could not be processed yet, "
+                                        + "your purchase will be delivered after the next restart"));
+                                return;
+                            }
+
+                            // Success!
+                            future.complete(new Pair<>(CODE_SUCCESS, null));
+                        });
+                    });
         });
         return future;
     }
 
+    /**
+     * Finishes or drops the deliveries that were reserved when the server stopped
+     * <p>
+     * A reservation whose completed transaction is stored or whose claim went through is delivered, every other
+     * reservation lost its claim and is dropped. Called once the storage and the delivery journal are ready, new
+     * transactions are completed from then on.
+     */
+    public void recover() {
+        this.recovered.complete(null);
+        for (final CompletedTransaction completedTransaction : this.deliveryService.getReserved()) {
+            this.resolve(completedTransaction).whenComplete((delivered, throwable) -> {
+                if (throwable != null) {
+                    final Logger logger = JavaPlugin.getPlugin(IotaSpigotPocPlugin.class).getLogger();
+                    logger.severe("Failed to recover the delivery of completed transaction " + completedTransaction.getTransactionId());
+                    logger.severe(throwable.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Finds out whether the claim of a reserved delivery went through and delivers or drops it
+     *
+     * @param completedTransaction The completed transaction of the reservation
+     *
+     * @return A callback with whether the product was delivered
+     */
+    private CompletableFuture<Boolean> resolve(final CompletedTransaction completedTransaction) {
+        final UUID completionId = completedTransaction.getTransactionId();
+        return this.completedTransactionStorageService.retrieveById(completionId).thenCompose(storedTransaction -> {
+            if (storedTransaction != null) {
+                // Claimed and stored, only the delivery is missing
+                return this.deliveryService.confirm(completionId).thenApply(unused -> true);
+            }
+
+            return this.pendingTransactionStorageService.isCompletedBy(completedTransaction.getLinkedPendingTransactionId(), completionId)
+                    .thenCompose(claimed -> {
+                        if (claimed) {
+                            return this.storeAndDeliver(completedTransaction);
+                        }
+                        return this.deliveryService.discard(completionId).thenApply(unused -> false);
+                    });
+        });
+    }
+
+    /**
+     * Stores a completed transaction and delivers the product
+     * <p>
+     * The payment is already claimed at this point. The store is retried a few times, the product is only delivered
+     * once the completed transaction is stored. If it can't be stored the delivery stays reserved.
+     *
+     * @param completedTransaction The completed transaction
+     *
+     * @return A callback with true once the delivery is queued or stored
+     */
+    private CompletableFuture<Boolean> storeAndDeliver(final CompletedTransaction completedTransaction) {
+        return this.store(completedTransaction, 1)
+                .thenCompose(unused -> this.deliveryService.confirm(completedTransaction.getTransactionId()))
+                .thenApply(unused -> true)
+                .whenComplete((unused, throwable) -> {
+                    if (throwable != null) {
+                        final Logger logger = JavaPlugin.getPlugin(IotaSpigotPocPlugin.class).getLogger();
+                        logger.severe("Failed to finish completed transaction " + completedTransaction.getTransactionId()
+                                + ", it is retried on the next start");
+                        logger.severe(throwable.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Stores a completed transaction, retrying with a growing delay
+     *
+     * @param completedTransaction The completed transaction
+     * @param attempt              The number of this attempt, starting at 1
+     *
+     * @return A callback that completes once the transaction is stored
+     */
+    private CompletableFuture<Void> store(final CompletedTransaction completedTransaction, final int attempt) {
+        return this.completedTransactionStorageService.storeCompletedTransaction(completedTransaction)
+                .handle((unused, throwable) -> throwable)
+                .thenCompose(storeThrowable -> {
+                    if (storeThrowable == null) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+
+                    // The insert might have gone through anyway, e.g. if only the acknowledgement timed out
+                    return this.completedTransactionStorageService.retrieveById(completedTransaction.getTransactionId())
+                            .exceptionally(throwable -> null)
+                            .thenCompose(storedTransaction -> {
+                                if (storedTransaction != null) {
+                                    return CompletableFuture.completedFuture(null);
+                                }
+                                if (attempt >= STORE_ATTEMPTS) {
+                                    return CompletableFuture.failedFuture(storeThrowable);
+                                }
+                                return CompletableFuture.runAsync(() -> { },
+                                        CompletableFuture.delayedExecutor(STORE_RETRY_MILLIS << (attempt - 1), TimeUnit.MILLISECONDS))
+                                        .thenCompose(unused -> this.store(completedTransaction, attempt + 1));
+                            });
+                });
+    }
+
     /**
      * Attempts to start a transaction
      * <p>
@@ -106,29 +261,54 @@ public class TransactionController {
      * @return <ReturnCode, ErrorMessage>
      */
     public CompletableFuture<Pair<Integer, String>> startTransaction(final UUID playerUuid, final Product product) {
+        return this.startTransaction(playerUuid, product, true);
+    }
+
+    /**
+     * Attempts to start a transaction
+     * <p>
+     * The open transaction of a player may come from a cache that another server's completion or expiry didn't
+     * reach, so it is read from the storage again before the player is turned away.
+     *
+     * @param playerUuid The players uuid
+     * @param product    The product
+     * @param recheck    Whether a found open transaction is read from the storage again
+     *
+     * @return <ReturnCode, ErrorMessage>
+     */
+    private CompletableFuture<Pair<Integer, String>> startTransaction(final UUID playerUuid, final Product product, final boolean recheck) {
         final CompletableFuture<Pair<Integer, String>> future = new CompletableFuture<>();
-        this.pendingTransactionStorageService.retrieveAll(playerUuid).whenComplete((pendingTransactions, throwable) -> {
+        this.pendingTransactionStorageService.findOpen(playerUuid).whenComplete((openTransaction, throwable) -> {
             if (throwable != null) {
                 // Error out
                 future.complete(new Pair<>(CODE_ERROR, throwable.getMessage()));
                 return;
             }
 
-            this.completedTransactionStorageService.retrieveAll(playerUuid).whenComplete((completedTransactions, otherThrowable) -> {
-                if (otherThrowable != null) {
-                    // Error out
-                    future.complete(new Pair<>(CODE_ERROR, otherThrowable.getMessage()));
-                    return;
-                }
+            if (openTransaction != null && !recheck) {
+                // Error out
+                future.complete(new Pair<>(CODE_HAS_PENDING, null));
+                return;
+            }
+            if (openTransaction != null) {
+                this.pendingTransactionStorageService.retrieveById(openTransaction.getTransactionId()).whenComplete((storedTransaction, retrieveThrowable) -> {
+                    if (retrieveThrowable != null || (storedTransaction != null && storedTransaction.getState() == TransactionState.OPEN)) {
+                        // Error out
+                        future.complete(new Pair<>(CODE_HAS_PENDING, null));
+                        return;
+                    }
+
+                    // Closed elsewhere, reading it dropped it from the cache
+                    this.startTransaction(playerUuid, product, false).whenComplete((pair, startThrowable) -> future.complete(
+                            startThrowable != null ? new Pair<>(CODE_ERROR, startThrowable.getMessage()) : pair));
+                });
+                return;
+            }
 
-                // Check if the player has any pending transactions
-                final boolean hasPending = pendingTransactions.stream()
-                        .anyMatch(transaction -> completedTransactions.stream()
-                                .noneMatch(completedTransaction ->
-                                        completedTransaction.getLinkedPendingTransactionId().equals(transaction.getTransactionId())));
-                if (hasPending) {
-                    // Error out
-                    future.complete(new Pair<>(CODE_HAS_PENDING, null));
+            // Take a deposit address and store the new transaction
+            this.depositAddressPool.takeAddress().whenComplete((address, addressThrowable) -> {
+                if (addressThrowable != null || address == null) {
+                    future.complete(new Pair<>(CODE_ERROR, "No deposit address available, please try again later"));
                     return;
                 }
 
@@ -137,10 +317,10 @@ public class TransactionController {
                         playerUuid,
                         product.getId(),
                         product.getPrice(),
-                        this.iotaCommunicator.getDepositAddress(),
-                        System.currentTimeMillis()
+                        address,
+                        System.currentTimeMillis(),
+                        TransactionState.OPEN
                 );
-                // Store the new transaction
                 this.pendingTransactionStorageService.storePendingTransaction(pendingTransaction).whenComplete((unused, storeThrowable) -> {
                     if (storeThrowable != null) {
                         future.complete(new Pair<>(CODE_ERROR, storeThrowable.getMessage()));
@@ -0,0 +1,103 @@
+package de.cerus.iotaspigotpoc.transaction.node;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import org.iota.jota.IotaAPI;
+
+/**
+ * A single IOTA node endpoint and its health / latency stats
+ */
+public class IotaNode {
+
+    private static final int SAMPLE_SIZE = 64;
+
+    private final String endpoint;
+    private final IotaAPI client;
+    private final long[] latencySamples = new long[SAMPLE_SIZE];
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private int sampleCount;
+    private int sampleIndex;
+    private volatile boolean healthy = true;
+    private volatile long averageLatency;
+
+    public IotaNode(final String endpoint, final IotaAPI client) {
+        this.endpoint = endpoint;
+        this.client = client;
+    }
+
+    /**
+     * Records a successful request
+     *
+     * @param latencyMillis The time the request took
+     */
+    public void recordSuccess(final long latencyMillis) {
+        this.requests.incrementAndGet();
+        synchronized (this.latencySamples) {
+            this.latencySamples[this.sampleIndex] = latencyMillis;
+            this.sampleIndex = (this.sampleIndex + 1) % SAMPLE_SIZE;
+            this.sampleCount = Math.min(SAMPLE_SIZE, this.sampleCount + 1);
+
+            // Exponentially weighted so a node that got slow is deprioritized quickly
+            this.averageLatency = this.sampleCount == 1 ? latencyMillis : (this.averageLatency * 7 + latencyMillis) / 8;
+        }
+    }
+
+    /**
+     * Records a failed request
+     */
+    public void recordFailure() {
+        this.requests.incrementAndGet();
+        this.failures.incrementAndGet();
+    }
+
+    /**
+     * Calculates a latency percentile over the most recent requests
+     *
+     * @param percentile The percentile (0 - 100)
+     *
+     * @return The latency in milliseconds or -1 if nothing was recorded yet
+     */
+    public long getLatencyPercentile(final double percentile) {
+        final long[] samples;
+        synchronized (this.latencySamples) {
+            if (this.sampleCount == 0) {
+                return -1;
+            }
+            samples = Arrays.copyOf(this.latencySamples, this.sampleCount);
+        }
+
+        Arrays.sort(samples);
+        final int index = (int) Math.ceil(percentile / 100d * samples.length) - 1;
+        return samples[Math.max(0, Math.min(samples.length - 1, index))];
+    }
+
+    public String getEndpoint() {
+        return this.endpoint;
+    }
+
+    public IotaAPI getClient() {
+        return this.client;
+    }
+
+    public boolean isHealthy() {
+        return this.healthy;
+    }
+
+    public void setHealthy(final boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    public long getAverageLatency() {
+        return this.averageLatency;
+    }
+
+    public long getRequests() {
+        return this.requests.get();
+    }
+
+    public long getFailures() {
+        return this.failures.get();
+    }
+
+}
@@ -0,0 +1,315 @@
+package de.cerus.iotaspigotpoc.transaction.node;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.iota.jota.IotaAPI;
+import org.iota.jota.dto.response.GetNodeInfoResponse;
+import org.iota.jota.error.ArgumentException;
+
+/**
+ * Routes requests to a pool of IOTA nodes
+ * <p>
+ * Requests go to the fastest healthy node and fail over to the next node if a node errors out or times out.
+ * Reads can optionally be hedged: if the fastest node did not answer within its usual latency the same read is
+ * sent to the second fastest node and whichever answers first wins. Every node has its own threads, so a hung node
+ * can't take the capacity that failover and hedged requests to the other nodes need.
+ */
+public class IotaNodePool {
+
+    private static final String DEFAULT_NODE = "https://nodes.thetangle.org:443";
+
+    private final JavaPlugin plugin;
+    private final List<IotaNode> nodes;
+    private final Map<IotaNode, ExecutorService> executors = new IdentityHashMap<>();
+    private final long timeoutMillis;
+    private final boolean hedging;
+    private final double hedgingPercentile;
+    private BukkitTask probeTask;
+
+    public IotaNodePool(final JavaPlugin plugin) {
+        this.plugin = plugin;
+
+        final FileConfiguration config = plugin.getConfig();
+        this.timeoutMillis = config.getLong("iota.verification.timeout", 15000);
+        this.hedging = config.getBoolean("iota.hedging.enabled", true);
+        this.hedgingPercentile = config.getDouble("iota.hedging.percentile", 95);
+        this.nodes = Collections.unmodifiableList(this.createNodes());
+    }
+
+    /**
+     * Creates the executor that the requests of a node are run on
+     * <p>
+     * The executor is bounded in both threads and queued tasks so a slow node can't pile up an unlimited amount of work
+     *
+     * @param nodeIndex The index of the node, used in the thread names
+     *
+     * @return A bounded executor
+     */
+    private ExecutorService createExecutor(final int nodeIndex) {
+        final FileConfiguration config = this.plugin.getConfig();
+        final int threads = Math.max(1, config.getInt("iota.verification.threads", 2));
+        final int queueSize = Math.max(1, config.getInt("iota.verification.queue", 64));
+
+        final AtomicInteger threadCounter = new AtomicInteger();
+        final ThreadFactory threadFactory = runnable -> {
+            final Thread thread = new Thread(runnable, "iota-spigot-poc-node-" + nodeIndex + "-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        final ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+
+    /**
+     * Creates a client and an executor for every configured node endpoint
+     * <p>
+     * The clients give up connecting and reading after the request timeout, so a hung node releases its thread
+     * instead of blocking it until the connection dies.
+     *
+     * @return A list of nodes
+     */
+    private List<IotaNode> createNodes() {
+        List<String> endpoints = this.plugin.getConfig().getStringList("iota.nodes");
+        if (endpoints.isEmpty()) {
+            endpoints = Collections.singletonList(DEFAULT_NODE);
+        }
+
+        // The client timeout is in seconds
+        final int timeoutSeconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(this.timeoutMillis + 999));
+        final List<IotaNode> nodes = new ArrayList<>();
+        for (final String endpoint : endpoints) {
+            try {
+                final URL url = new URL(endpoint);
+                final IotaNode node = new IotaNode(endpoint, new IotaAPI.Builder()
+                        .protocol(url.getProtocol())
+                        .host(url.getHost())
+                        .port(url.getPort() == -1 ? url.getDefaultPort() : url.getPort())
+                        .timeout(timeoutSeconds)
+                        .build());
+                this.executors.put(node, this.createExecutor(nodes.size() + 1));
+                nodes.add(node);
+            } catch (final MalformedURLException e) {
+                this.plugin.getLogger().severe("Invalid node endpoint '" + endpoint + "'");
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Starts the periodic health probes
+     */
+    public void start() {
+        final long intervalTicks = Math.max(1, this.plugin.getConfig().getLong("iota.probe-interval", 60)) * 20;
+        this.probeTask = Bukkit.getScheduler().runTaskTimerAsynchronously(this.plugin, this::probe, 0, intervalTicks);
+    }
+
+    /**
+     * Stops the probes and the executors, pending requests will not be run
+     */
+    public void shutdown() {
+        if (this.probeTask != null) {
+            this.probeTask.cancel();
+        }
+        this.executors.values().forEach(ExecutorService::shutdownNow);
+    }
+
+    /**
+     * Runs a request on the fastest healthy node and fails over to the other nodes
+     *
+     * @param request The request
+     * @param <T>     The response type
+     *
+     * @return A callback with the response
+     */
+    public <T> CompletableFuture<T> execute(final Function<IotaAPI, T> request) {
+        return this.attempt(this.rankNodes(), 0, request);
+    }
+
+    /**
+     * Runs a read request like {@link #execute(Function)} but hedges it if hedging is enabled
+     * <p>
+     * If the fastest node did not answer within its configured latency percentile the read is also sent to the
+     * second fastest node. Only use this for requests that don't change anything.
+     *
+     * @param request The read request
+     * @param <T>     The response type
+     *
+     * @return A callback with the first successful response
+     */
+    public <T> CompletableFuture<T> executeHedged(final Function<IotaAPI, T> request) {
+        final List<IotaNode> rankedNodes = this.rankNodes();
+        final long hedgeDelay = rankedNodes.isEmpty() ? -1 : rankedNodes.get(0).getLatencyPercentile(this.hedgingPercentile);
+        if (!this.hedging || rankedNodes.size() < 2 || hedgeDelay < 0) {
+            return this.attempt(rankedNodes, 0, request);
+        }
+
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final AtomicInteger running = new AtomicInteger(1);
+        this.attempt(rankedNodes, 0, request).whenComplete((response, throwable) -> this.completeHedged(future, running, response, throwable));
+
+        CompletableFuture.delayedExecutor(hedgeDelay, TimeUnit.MILLISECONDS).execute(() -> {
+            if (future.isDone()) {
+                return;
+            }
+
+            // The fastest node is slower than usual, ask the second one as well
+            running.incrementAndGet();
+            this.submit(rankedNodes.get(1), request, true).whenComplete((response, throwable) -> this.completeHedged(future, running, response, throwable));
+        });
+        return future;
+    }
+
+    /**
+     * Completes a hedged request with the first success or with the last failure
+     *
+     * @param future    The hedged callback
+     * @param running   The amount of requests that are still running
+     * @param response  The response of a request
+     * @param throwable The error of a request
+     * @param <T>       The response type
+     */
+    private <T> void completeHedged(final CompletableFuture<T> future, final AtomicInteger running, final T response, final Throwable throwable) {
+        if (throwable == null) {
+            future.complete(response);
+        } else if (running.decrementAndGet() == 0) {
+            future.completeExceptionally(throwable);
+        }
+    }
+
+    /**
+     * Runs a request on a node and fails over to the next node on errors
+     *
+     * @param rankedNodes The nodes in the order they should be tried
+     * @param index       The index of the node to try
+     * @param request     The request
+     * @param <T>         The response type
+     *
+     * @return A callback with the response
+     */
+    private <T> CompletableFuture<T> attempt(final List<IotaNode> rankedNodes, final int index, final Function<IotaAPI, T> request) {
+        if (index >= rankedNodes.size()) {
+            return CompletableFuture.failedFuture(new IllegalStateException("No IOTA node available"));
+        }
+
+        return this.submit(rankedNodes.get(index), request, true).handle((response, throwable) -> {
+            if (throwable == null) {
+                return CompletableFuture.completedFuture(response);
+            }
+
+            final Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+            if (cause instanceof ArgumentException || index + 1 >= rankedNodes.size()) {
+                // Invalid requests fail on every node, a saturated node is skipped like a failed one
+                return CompletableFuture.<T>failedFuture(cause);
+            }
+            return this.attempt(rankedNodes, index + 1, request);
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * Runs a request on a single node
+     * <p>
+     * Probes are not recorded, their latency would skew the ranking and the hedging delay of the actual requests.
+     *
+     * @param node    The node
+     * @param request The request
+     * @param record  Whether to record the latency and failures of the request
+     * @param <T>     The response type
+     *
+     * @return A callback with the response
+     */
+    private <T> CompletableFuture<T> submit(final IotaNode node, final Function<IotaAPI, T> request, final boolean record) {
+        final CompletableFuture<T> future;
+        try {
+            future = CompletableFuture.supplyAsync(() -> {
+                final long start = System.currentTimeMillis();
+                final T response = request.apply(node.getClient());
+                if (record) {
+                    node.recordSuccess(System.currentTimeMillis() - start);
+                }
+                return response;
+            }, this.executors.get(node));
+        } catch (final RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return future.orTimeout(this.timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((response, throwable) -> {
+            final Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+            if (cause != null && !(cause instanceof ArgumentException)) {
+                if (record) {
+                    node.recordFailure();
+                }
+                if (cause instanceof TimeoutException) {
+                    node.setHealthy(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks the health of every node
+     * <p>
+     * A node is considered healthy if it answers and if it is in sync with the network.
+     */
+    private void probe() {
+        for (final IotaNode node : this.nodes) {
+            this.submit(node, IotaAPI::getNodeInfo, false).whenComplete((nodeInfo, throwable) ->
+                    node.setHealthy(throwable == null && this.isSynced(nodeInfo)));
+        }
+    }
+
+    /**
+     * Checks if a node is in sync with the network
+     *
+     * @param nodeInfo The node info
+     *
+     * @return Whether the node is synced
+     */
+    private boolean isSynced(final GetNodeInfoResponse nodeInfo) {
+        return nodeInfo.getLatestMilestoneIndex() - nodeInfo.getLatestSolidSubtangleMilestoneIndex() <= 1;
+    }
+
+    /**
+     * Orders the nodes by preference, healthy nodes sorted by latency come first
+     *
+     * @return The ranked nodes
+     */
+    private List<IotaNode> rankNodes() {
+        final List<IotaNode> rankedNodes = new ArrayList<>(this.nodes);
+        rankedNodes.sort(Comparator.comparing((IotaNode node) -> !node.isHealthy())
+                .thenComparingLong(IotaNode::getAverageLatency));
+        return rankedNodes;
+    }
+
+    /**
+     * Retrieves all nodes
+     *
+     * @return all nodes
+     */
+    public List<IotaNode> getNodes() {
+        return this.nodes;
+    }
+
+}
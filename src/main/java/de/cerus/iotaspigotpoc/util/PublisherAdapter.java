@@ -0,0 +1,259 @@
+package de.cerus.iotaspigotpoc.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Turns reactive streams publishers, e.g. MongoDB operations, into futures
+ * <p>
+ * Every returned future completes: normally once the publisher completed, exceptionally if the publisher failed, a
+ * consumer threw or the timeout passed. A future that completes early cancels its subscription. Results are
+ * requested in batches, so a large result set is never requested at once and a consumer that streams it only
+ * holds a single batch.
+ */
+public class PublisherAdapter {
+
+    private final int batchSize;
+    private final long timeoutMillis;
+    private final Logger logger;
+
+    /**
+     * @param batchSize     The amount of results requested at once
+     * @param timeoutMillis The time in milliseconds after which an operation fails, 0 for no timeout
+     * @param logger        The logger for {@link #logFailure(String)}
+     */
+    public PublisherAdapter(final int batchSize, final long timeoutMillis, final Logger logger) {
+        this.batchSize = Math.max(1, batchSize);
+        this.timeoutMillis = timeoutMillis;
+        this.logger = logger;
+    }
+
+    /**
+     * Retrieves the first result of a publisher and cancels the rest
+     *
+     * @param publisher The publisher
+     * @param <T>       The result type
+     *
+     * @return A callback with the first result or null if there is none
+     */
+    public <T> CompletableFuture<T> first(final Publisher<T> publisher) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final AtomicReference<T> resultRef = new AtomicReference<>();
+        publisher.subscribe(new BoundedSubscriber<>(future, resultRef::set, () -> future.complete(resultRef.get()), 1, true));
+        return this.withTimeout(future);
+    }
+
+    /**
+     * Collects every result of a publisher
+     *
+     * @param publisher The publisher
+     * @param <T>       The result type
+     *
+     * @return A callback with the results
+     */
+    public <T> CompletableFuture<List<T>> toList(final Publisher<T> publisher) {
+        return this.toCollection(publisher, ArrayList::new);
+    }
+
+    /**
+     * Collects every result of a publisher into a collection
+     * <p>
+     * The callback has the type the caller asks for, e.g. a {@link Collection} instead of a {@link List}.
+     *
+     * @param publisher         The publisher
+     * @param collectionFactory Creates the empty collection
+     * @param <T>               The result type
+     * @param <C>               The collection type
+     *
+     * @return A callback with the results
+     */
+    public <T, C extends Collection<T>> CompletableFuture<C> toCollection(final Publisher<T> publisher, final Supplier<C> collectionFactory) {
+        final CompletableFuture<C> future = new CompletableFuture<>();
+        final C results = collectionFactory.get();
+        publisher.subscribe(new BoundedSubscriber<>(future, results::add, () -> future.complete(results), this.batchSize, false));
+        return this.withTimeout(future);
+    }
+
+    /**
+     * Passes every result of a publisher to a consumer, one batch at a time
+     * <p>
+     * The consumer is called on the thread of the publisher. If it throws, the subscription is cancelled and the
+     * callback fails.
+     *
+     * @param publisher The publisher
+     * @param consumer  The consumer
+     * @param <T>       The result type
+     *
+     * @return A callback that completes once every result was consumed
+     */
+    public <T> CompletableFuture<Void> forEach(final Publisher<T> publisher, final Consumer<? super T> consumer) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        publisher.subscribe(new BoundedSubscriber<>(future, consumer, () -> future.complete(null), this.batchSize, false));
+        return this.withTimeout(future);
+    }
+
+    /**
+     * Waits for a publisher to complete, ignoring its results
+     *
+     * @param publisher The publisher, e.g. a write
+     *
+     * @return A callback
+     */
+    public CompletableFuture<Void> completion(final Publisher<?> publisher) {
+        return this.forEach(publisher, result -> {
+        });
+    }
+
+    /**
+     * Creates a callback that logs failures of an operation
+     *
+     * @param message The message to log
+     * @param <T>     The result type
+     *
+     * @return A callback for {@link CompletableFuture#whenComplete(BiConsumer)}
+     */
+    public <T> BiConsumer<T, Throwable> logFailure(final String message) {
+        return (result, throwable) -> {
+            if (throwable != null) {
+                this.logger.severe(message);
+                this.logger.severe(String.valueOf(throwable.getMessage()));
+            }
+        };
+    }
+
+    /**
+     * Returns the amount of results requested at once
+     *
+     * @return The batch size
+     */
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+
+    /**
+     * Fails a future once the timeout passed
+     *
+     * @param future The future
+     * @param <T>    The result type
+     *
+     * @return The same future
+     */
+    private <T> CompletableFuture<T> withTimeout(final CompletableFuture<T> future) {
+        if (this.timeoutMillis <= 0) {
+            return future;
+        }
+        return future.orTimeout(this.timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Subscriber that keeps a bounded amount of results requested and completes a future exactly once
+     *
+     * @param <T> The result type
+     */
+    private static final class BoundedSubscriber<T> implements Subscriber<T> {
+
+        private final CompletableFuture<?> future;
+        private final Consumer<? super T> consumer;
+        private final Runnable completion;
+        private final int batchSize;
+        private final boolean single;
+        private Subscription subscription;
+        private long outstanding;
+        private boolean done;
+
+        /**
+         * @param future     The future that fails on errors and gets cancelled subscriptions
+         * @param consumer   Gets every result
+         * @param completion Completes the future once every result was consumed
+         * @param batchSize  The amount of results requested at once
+         * @param single     Whether only the first result is wanted
+         */
+        private BoundedSubscriber(final CompletableFuture<?> future, final Consumer<? super T> consumer,
+                                  final Runnable completion, final int batchSize, final boolean single) {
+            this.future = future;
+            this.consumer = consumer;
+            this.completion = completion;
+            this.batchSize = batchSize;
+            this.single = single;
+        }
+
+        @Override
+        public void onSubscribe(final Subscription subscription) {
+            if (this.subscription != null) {
+                // A subscriber may only be subscribed once
+                subscription.cancel();
+                return;
+            }
+            this.subscription = subscription;
+
+            // Stop the publisher if the future is completed from the outside, e.g. by the timeout
+            this.future.whenComplete((result, throwable) -> subscription.cancel());
+            if (!this.future.isDone()) {
+                this.outstanding = this.batchSize;
+                subscription.request(this.batchSize);
+            }
+        }
+
+        @Override
+        public void onNext(final T result) {
+            if (this.done) {
+                return;
+            }
+
+            try {
+                this.consumer.accept(result);
+            } catch (final Throwable throwable) {
+                this.done = true;
+                this.subscription.cancel();
+                this.future.completeExceptionally(throwable);
+                return;
+            }
+
+            if (this.single) {
+                // Only the first result was wanted
+                this.done = true;
+                this.subscription.cancel();
+                this.completion.run();
+                return;
+            }
+
+            // Request the next batch once half of the current one arrived, so the publisher never idles
+            if (--this.outstanding <= this.batchSize / 2) {
+                final long requested = this.batchSize - this.outstanding;
+                this.outstanding += requested;
+                this.subscription.request(requested);
+            }
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+            if (this.done) {
+                return;
+            }
+            this.done = true;
+            this.future.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if (this.done) {
+                return;
+            }
+            this.done = true;
+            this.completion.run();
+        }
+
+    }
+
+}
@@ -0,0 +1,99 @@
+package de.cerus.iotaspigotpoc.util;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Lock-free token bucket per player
+ * <p>
+ * Implemented as a generic cell rate algorithm: instead of a token count and a refill timestamp every player only
+ * has the time at which their bucket is full again, stored in a single {@link AtomicLong}. Taking a token is one
+ * compare-and-set of that time, refilling happens implicitly as time passes, so no thread has to refill or expire
+ * buckets. A full bucket is equal to no bucket, which lets stale entries be dropped while the limiter is used.
+ */
+public class RateLimiter {
+
+    private static final int MIN_PRUNE_SIZE = 1024;
+
+    private final Map<UUID, AtomicLong> bucketMap = new ConcurrentHashMap<>();
+    private final LongSupplier clock;
+    private final long intervalNanos;
+    private final long burstNanos;
+    private volatile int pruneSize = MIN_PRUNE_SIZE;
+
+    /**
+     * @param burst    The amount of tokens in a full bucket
+     * @param interval The time it takes to refill a single token
+     * @param unit     The unit of the interval
+     */
+    public RateLimiter(final int burst, final long interval, final TimeUnit unit) {
+        this(burst, interval, unit, System::nanoTime);
+    }
+
+    /**
+     * @param burst    The amount of tokens in a full bucket
+     * @param interval The time it takes to refill a single token
+     * @param unit     The unit of the interval
+     * @param clock    The clock in nanoseconds
+     */
+    public RateLimiter(final int burst, final long interval, final TimeUnit unit, final LongSupplier clock) {
+        this.clock = clock;
+        this.intervalNanos = Math.max(1, unit.toNanos(interval));
+        this.burstNanos = this.intervalNanos * Math.max(1, burst);
+    }
+
+    /**
+     * Takes a token from the bucket of a player if there is one
+     *
+     * @param playerUuid The players uuid
+     *
+     * @return 0 if a token was taken, otherwise the time in nanoseconds until the next token is available
+     */
+    public long tryAcquire(final UUID playerUuid) {
+        final AtomicLong fullAt = this.bucketMap.computeIfAbsent(playerUuid, uuid -> new AtomicLong(Long.MIN_VALUE));
+        while (true) {
+            final long now = this.clock.getAsLong();
+            final long current = fullAt.get();
+            // A bucket that is full since a while is just full
+            final long base = current == Long.MIN_VALUE || current - now < 0 ? now : current;
+            final long next = base + this.intervalNanos;
+            final long overflow = next - now - this.burstNanos;
+            if (overflow > 0) {
+                return overflow;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                this.pruneIfNeeded(now);
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the amount of players that have a bucket that is not known to be full
+     *
+     * @return The amount of buckets
+     */
+    public int size() {
+        return this.bucketMap.size();
+    }
+
+    /**
+     * Drops full buckets once the map grew past a threshold, amortized over many acquisitions
+     *
+     * @param now The current time
+     */
+    private void pruneIfNeeded(final long now) {
+        if (this.bucketMap.size() < this.pruneSize) {
+            return;
+        }
+
+        // A token taken between the check and the removal is lost in the player's favor, which is acceptable
+        this.bucketMap.values().removeIf(fullAt -> fullAt.get() - now <= 0);
+        this.pruneSize = Math.max(MIN_PRUNE_SIZE, this.bucketMap.size() * 2);
+    }
+
+}